@@ -0,0 +1,89 @@
+package beastbooster.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.BEASTInterface;
+import beast.base.evolution.tree.TreeInterface;
+
+/**
+ * Coordinates the BEAGLE calls of the batched DuckBeagleTreeLikelihoods on the same tree. When the
+ * first of them is evaluated, all others that need recalculating in the same posterior evaluation
+ * are evaluated with it, phase by phase: first the operation lists of all partitions are built, then
+ * the matrix updates of all partitions are made, and then the partials and root likelihoods, so
+ * the calls of every phase follow each other without traversals of other partitions in between.
+ * The other likelihoods return the log likelihood that was calculated for them when evaluated.
+ *
+ * Every likelihood has its own BEAGLE instance with its own buffers and scaling, so calls are
+ * made per instance, and not as a single call on a multi-partition instance.
+ *
+ * A batch is only referenced by its likelihoods, and found through the other outputs of the tree,
+ * so it goes when its likelihoods go. Likelihoods that are replaced should leave their batch.
+ */
+class DuckBeagleBatch {
+	private final List<DuckBeagleTreeLikelihood> likelihoods = new ArrayList<>();
+	/** likelihoods evaluated in the current batch **/
+	private final List<DuckBeagleTreeLikelihood> evaluated = new ArrayList<>();
+
+	/**
+	 * Adds the likelihood to the batch of another batched likelihood on the tree, or to a new batch
+	 * if there is none.
+	 * @return the batch the likelihood was added to
+	 */
+	static synchronized DuckBeagleBatch join(DuckBeagleTreeLikelihood likelihood, TreeInterface tree) {
+		DuckBeagleBatch batch = null;
+		if (tree instanceof BEASTInterface) {
+			for (BEASTInterface output : ((BEASTInterface) tree).getOutputs()) {
+				if (output != likelihood && output instanceof DuckBeagleTreeLikelihood &&
+						((DuckBeagleTreeLikelihood) output).batch != null) {
+					batch = ((DuckBeagleTreeLikelihood) output).batch;
+					break;
+				}
+			}
+		}
+		if (batch == null) {
+			batch = new DuckBeagleBatch();
+		}
+		batch.add(likelihood);
+		return batch;
+	}
+
+	synchronized void add(DuckBeagleTreeLikelihood likelihood) {
+		if (!likelihoods.contains(likelihood)) {
+			likelihoods.add(likelihood);
+		}
+	}
+
+	synchronized void remove(DuckBeagleTreeLikelihood likelihood) {
+		likelihoods.remove(likelihood);
+	}
+
+	/**
+	 * @return log likelihood of the given likelihood, evaluating it together with all other
+	 * likelihoods that need recalculating, unless it was evaluated with another likelihood already
+	 */
+	synchronized double calculateLogP(DuckBeagleTreeLikelihood likelihood) {
+		if (!likelihood.batchEvaluated) {
+			evaluated.clear();
+			evaluated.add(likelihood);
+			for (DuckBeagleTreeLikelihood other : likelihoods) {
+				if (other != likelihood && other.batchPending) {
+					evaluated.add(other);
+				}
+			}
+			for (DuckBeagleTreeLikelihood other : evaluated) {
+				other.prepareUpdates();
+			}
+			for (DuckBeagleTreeLikelihood other : evaluated) {
+				other.updateTransitionMatrices();
+			}
+			for (DuckBeagleTreeLikelihood other : evaluated) {
+				other.updatePartials();
+				other.batchPending = false;
+				other.batchEvaluated = other != likelihood;
+			}
+		}
+		likelihood.batchEvaluated = false;
+		return likelihood.getCurrentLogP();
+	}
+}
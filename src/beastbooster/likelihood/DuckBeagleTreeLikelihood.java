@@ -10,6 +10,7 @@ import beagle.BeagleInfo;
 import beagle.InstanceDetails;
 import beagle.ResourceDetails;
 import beast.base.inference.CalculationNode;
+import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.alignment.Alignment;
 import beast.base.evolution.branchratemodel.StrictClockModel;
@@ -21,17 +22,48 @@ import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 
 public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Targetable {
+	final public Input<Boolean> batchInput = new Input<>("batch", "evaluate together with the other likelihoods on the same tree that "
+			+ "have batch=true, so that the BEAGLE calls of all partitions are made phase by phase when the first of them is "
+			+ "evaluated. Batched likelihoods are evaluated one batch at a time, so should not be evaluated on different threads. "
+			+ "Without native BEAGLE, batched likelihoods use the Java implementation of BEAGLE, unless the duck.java.beagle "
+			+ "property is false (default false)", false);
+	final public Input<Integer> partialsCacheInput = new Input<>("partialsCache", "number of partials of internal nodes in "
+			+ "another orientation than the current target requires that are kept, so they can be reused when the target "
+			+ "moves back. Not used when partials are scaled (default 0, no partials are kept)", 0);
 
 	int target = -1;
+
+	/** coordinator of the batched likelihoods on the same tree, or null if not batched **/
+	DuckBeagleBatch batch;
+	/** set when requiresRecalculation() found this likelihood needs recalculating, and cleared once it is recalculated **/
+	boolean batchPending;
+	/** set when the batch calculated logP while evaluating another likelihood, and cleared once logP is returned **/
+	boolean batchEvaluated;
+	/** makes the next evaluation recalculate everything, including eigen decompositions and category rates **/
+	void requireFullUpdate() {
+		hasDirt = Tree.IS_FILTHY;
+		updateSubstitutionModel = true;
+		siteModelVersion++;
+		substitutionModelVersion++;
+	}
+
 	public void setTarget(int target) {
-		if (this.target >= 0) {
-			m_branchLengths[this.target] = -1;
-		}
-		this.target = target;
-		m_branchLengths[target] = -1;
 		this.target = target;
 	}
 
+	/** operations for traversing the tree rerooted at the target **/
+	private TargetTraversal traversal;
+	/** update status of every node in the last traversal **/
+	private int [] nodeUpdates;
+	/**
+	 * key of the transition probability matrix for the branch between every node and its origin in the
+	 * last traversal: the number of the node at the child end of the branch, the number of the root for the
+	 * branch through the root when rerooted at a target, or zeroLengthMatrixKey for the branch of length zero
+	 * between the target and the pseudo-root
+	 **/
+	private int [] matrixKeys;
+	private int zeroLengthMatrixKey;
+
     // This property is a comma-delimited list of resource numbers (0 == CPU) to
     // allocate each BEAGLE instance to. If less than the number of instances then
     // will wrap around.
@@ -42,6 +74,11 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
     private static final String REQUIRED_FLAGS_PROPERTY = "beagle.required.flags";
     private static final String SCALING_PROPERTY = "beagle.scaling";
     private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
+    // Set to true to use the Java implementation of BEAGLE when no native BEAGLE instance can be loaded,
+    // to 'only' to use it instead of native BEAGLE, or to false to not use it at all, e.g.
+    // java -Dduck.java.beagle=true beastfx.app.beast.BeastMCMC
+    // Defaults to true for batched likelihoods, so they are batched without native BEAGLE, and to false otherwise.
+    private static final String JAVA_BEAGLE_PROPERTY = "duck.java.beagle";
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
 
@@ -52,18 +89,36 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
     private static List<String> scalingOrder = null;
 
     private static final int RESCALE_FREQUENCY = 10000;
-    private static final int RESCALE_TIMES = 1;
 
     boolean m_bUseAmbiguities, m_bUseTipLikelihoods;
     int m_nStateCount;
     int m_nNodeCount;
     
+    /** category rates, weights and frequencies as last uploaded to BEAGLE **/
     private double [] currentCategoryRates;
 //    private double [] storedCurrentCategoryRates;
     private double [] currentFreqs;
     private double [] currentCategoryWeights;
     
+    /**
+     * Versions of the site and substitution model, increased whenever they may have changed, that is,
+     * when they are dirty and after a restore of a proposal that changed them. Rates, weights and
+     * frequencies are uploaded to BEAGLE when the uploaded version is out of date, instead of
+     * comparing them element by element.
+     */
+    private long siteModelVersion, storedSiteModelVersion, uploadedSiteModelVersion = -1;
+    private long substitutionModelVersion, storedSubstitutionModelVersion, uploadedSubstitutionModelVersion = -1;
+
     private int invariantCategory = -1;
+    /** constant patterns as pattern * stateCount + state, null if there is no invariant category **/
+    private int [] constantPatterns;
+
+    /** arguments of calculateRootLogLikelihoods, reused every evaluation **/
+    private final int [] rootBufferIndices = new int[1];
+    private final int [] rootCategoryWeightsIndices = {0};
+    private final int [] rootStateFrequencyIndices = {0};
+    private final int [] rootScaleBufferIndices = new int[1];
+    private final double [] sumLogLikelihoods = new double[1];
 
     @Override
     public void initAndValidate() {
@@ -88,8 +143,13 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         if (branchRateModel == null) {
         	branchRateModel = new StrictClockModel();
         }
-        m_branchLengths = new double[m_nNodeCount];
-        storedBranchLengths = new double[m_nNodeCount];
+        // branch lengths per matrix key, including the branch of length zero at the target
+        zeroLengthMatrixKey = m_nNodeCount;
+        m_branchLengths = new double[m_nNodeCount + 1];
+        storedBranchLengths = new double[m_nNodeCount + 1];
+        m_branchLengths[zeroLengthMatrixKey] = -1;
+        storedBranchLengths[zeroLengthMatrixKey] = -1;
+        matrixKeys = new int[m_nNodeCount];
 
         m_nStateCount = dataInput.get().getMaxStateCount();
         patternCount = dataInput.get().getPatternCount();
@@ -143,14 +203,17 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             compactPartialsCount = 0;
         }
 
-        // one partials buffer for each tip and two for each internal node (for store restore)
-        partialBufferHelper = new BufferIndexHelper(m_nNodeCount, tipCount);
+        // one partials buffer for each tip and two for each internal node (for store restore) and cached partials
+        if (partialsCacheInput.get() < 0) {
+        	throw new IllegalArgumentException("partialsCache should not be negative");
+        }
+        partialsPool = new PartialsBufferPool(tipCount, m_nNodeCount, partialsCacheInput.get());
 
         // two eigen buffers for each decomposition for store and restore.
         eigenBufferHelper = new BufferIndexHelper(eigenCount, 0);
 
-        // two matrices for each node less the root
-        matrixBufferHelper = new BufferIndexHelper(m_nNodeCount, 0);
+        // two matrices for each matrix key
+        matrixBufferHelper = new BufferIndexHelper(m_nNodeCount + 1, 0);
 
         // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
         scaleBufferHelper = new BufferIndexHelper(getScaleBufferCount(), 0);
@@ -242,23 +305,42 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 
         instanceCount++;
 
-        try {
-	        beagle = BeagleFactory.loadBeagleInstance(
+        final String javaBeagle = System.getProperty(JAVA_BEAGLE_PROPERTY, batchInput.get() ? "true" : "false");
+        boolean useJavaBeagle = javaBeagle.equals("only");
+        if (!useJavaBeagle) {
+	        try {
+		        beagle = BeagleFactory.loadBeagleInstance(
+		                tipCount,
+		                partialsPool.getBufferCount(),
+		                compactPartialsCount,
+		                m_nStateCount,
+		                patternCount,
+		                eigenBufferHelper.getBufferCount(),            // eigenBufferCount
+		                matrixBufferHelper.getBufferCount(),
+		                categoryCount,
+		                scaleBufferHelper.getBufferCount(), // Always allocate; they may become necessary
+		                resourceList,
+		                preferenceFlags,
+		                requirementFlags
+		        );
+	        } catch (Exception e) {
+	        	beagle = null;
+	        }
+	        useJavaBeagle = beagle == null && Boolean.valueOf(javaBeagle);
+        }
+        if (useJavaBeagle) {
+        	beagle = JavaBeagle.loadBeagleInstance(
 	                tipCount,
-	                partialBufferHelper.getBufferCount(),
+	                partialsPool.getBufferCount(),
 	                compactPartialsCount,
 	                m_nStateCount,
 	                patternCount,
-	                eigenBufferHelper.getBufferCount(),            // eigenBufferCount
+	                eigenBufferHelper.getBufferCount(),
 	                matrixBufferHelper.getBufferCount(),
 	                categoryCount,
-	                scaleBufferHelper.getBufferCount(), // Always allocate; they may become necessary
-	                resourceList,
-	                preferenceFlags,
+	                scaleBufferHelper.getBufferCount(),
 	                requirementFlags
 	        );
-        } catch (Exception e) {
-        	beagle = null;
         }
         if (beagle == null) {
             return false;
@@ -267,7 +349,9 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         InstanceDetails instanceDetails = beagle.getDetails();
         ResourceDetails resourceDetails = null;
 
-        if (instanceDetails != null) {
+        if (useJavaBeagle) {
+        	Log.info.println("  Using Java implementation of BEAGLE");
+        } else if (instanceDetails != null) {
             resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
             if (resourceDetails != null) {
                 StringBuilder sb = new StringBuilder("  Using BEAGLE version: " + BeagleInfo.getVersion()
@@ -320,8 +404,8 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         beagle.setPatternWeights(patternWeights);
 
         if (this.rescalingScheme == PartialsRescalingScheme.AUTO &&
-                resourceDetails != null &&
-                (resourceDetails.getFlags() & BeagleFlag.SCALING_AUTO.getMask()) == 0) {
+                (useJavaBeagle || resourceDetails != null &&
+                (resourceDetails.getFlags() & BeagleFlag.SCALING_AUTO.getMask()) == 0)) {
             // If auto scaling in BEAGLE is not supported then do it here
             this.rescalingScheme = PartialsRescalingScheme.DYNAMIC;
             Log.warning.println("  Auto rescaling not supported in BEAGLE, using : " + this.rescalingScheme.getText());
@@ -332,6 +416,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC) {
             everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
         }
+        rescalingScheduler = new RescalingScheduler(internalNodeCount, rescalingFrequency);
 
         updateSubstitutionModel = true;
         updateSiteModel = true;
@@ -339,14 +424,37 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         setUpSubstModel();
         // set up sitemodel
         
-        beagle.setCategoryRates(categoryRates);
-        currentCategoryRates = categoryRates;
+        currentCategoryRates = new double[categoryRates.length];
         currentFreqs = new double[m_nStateCount];
         currentCategoryWeights = new double[categoryRates.length];
-        
+        uploadedSiteModelVersion = siteModelVersion - 1;
+        uploadedSubstitutionModelVersion = substitutionModelVersion - 1;
+        uploadSiteModel();
+
+        constantPatterns = null;
+        if (invariantCategory >= 0) {
+        	List<Integer> constantPattern = getConstantPattern();
+        	constantPatterns = new int[constantPattern.size()];
+        	for (int i = 0; i < constantPatterns.length; i++) {
+        		constantPatterns[i] = constantPattern.get(i);
+        	}
+        }
+
+        leaveBatch();
+        if (batchInput.get()) {
+        	batch = DuckBeagleBatch.join(this, treeInput.get());
+        }
         return true;
     }
 
+    /** takes this likelihood out of its batch, so it is no longer evaluated with the others, e.g. when it is replaced **/
+    void leaveBatch() {
+    	if (batch != null) {
+    		batch.remove(this);
+    		batch = null;
+    	}
+    }
+
     
     private static List<Integer> parseSystemPropertyIntegerArray(String propertyName) {
         List<Integer> order = new ArrayList<>();
@@ -511,34 +619,28 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 //    }
 
 
+    @Override
+    public boolean requiresRecalculation() {
+    	final boolean requiresRecalculation = requiresUpdate();
+    	// a new evaluation starts, in which the batch recalculates this likelihood at most once
+    	batchPending = requiresRecalculation;
+    	batchEvaluated = false;
+    	return requiresRecalculation;
+    }
+
     /**
      * check state for changed variables and update temp results if necessary *
      */
-    @Override
-    public boolean requiresRecalculation() {
+    private boolean requiresUpdate() {
         hasDirt = Tree.IS_CLEAN;
         
-        double[] categoryRates = m_siteModel.getCategoryRates(null);
-        if (getConstantPattern() != null) {
-            double [] tmp = new double [categoryRates.length - 1];
-            for (int k = 0; k < invariantCategory; k++) {
-            	tmp[k] = categoryRates[k];
-            }
-            for (int k = invariantCategory + 1; k < categoryRates.length; k++) {
-            	tmp[k-1] = categoryRates[k];
-            }
-            categoryRates = tmp;
-        }
-        for (int i = 0; i < categoryRates.length; i++) {
-        	if (categoryRates[i] != currentCategoryRates[i]) {
-        		updateSiteModel = true;
-        		break;
-        	}
+        if (m_siteModel.isDirtyCalculation()) {
+        	siteModelVersion++;
         }
-        //updateSiteModel |= m_siteModel.isDirtyCalculation();
 
-        if (substitutionModel instanceof CalculationNode) {
-        	updateSubstitutionModel |= ((CalculationNode) substitutionModel).isDirtyCalculation();
+        if (substitutionModel instanceof CalculationNode && ((CalculationNode) substitutionModel).isDirtyCalculation()) {
+        	updateSubstitutionModel = true;
+        	substitutionModelVersion++;
         }
         
         if (dataInput.get().isDirtyCalculation()) {
@@ -562,7 +664,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
      */
     @Override
     public void store() {
-        partialBufferHelper.storeState();
+        partialsPool.store();
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
 
@@ -571,17 +673,28 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             System.arraycopy(scaleBufferIndices, 0, storedScaleBufferIndices, 0, scaleBufferIndices.length);
 //            storedRescalingCount = rescalingCount;
         }
+        rescalingScheduler.store();
 //        super.store();
         System.arraycopy(m_branchLengths, 0, storedBranchLengths, 0, m_branchLengths.length);
         storedLogP = logP;
+        storedSiteModelVersion = siteModelVersion;
+        storedSubstitutionModelVersion = substitutionModelVersion;
         accept();
     }
 
     @Override
     public void restore() {
-  		updateSiteModel = true; // this is required to upload the categoryRates to BEAGLE after the restore
+  		// upload the category rates, weights and frequencies to BEAGLE again if the proposal changed them
+  		if (siteModelVersion != storedSiteModelVersion) {
+  			siteModelVersion++;
+  		}
+  		if (substitutionModelVersion != storedSubstitutionModelVersion) {
+  			substitutionModelVersion++;
+  		}
+  		batchPending = false;
+  		batchEvaluated = false;
         
-        partialBufferHelper.restoreState();
+        partialsPool.restore();
         eigenBufferHelper.restoreState();
         matrixBufferHelper.restoreState();
 
@@ -592,6 +705,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             scaleBufferIndices = tmp2;
 //            rescalingCount = storedRescalingCount;
         }
+        rescalingScheduler.restore();
 
 //        updateRestrictedNodePartials = true;
 //        super.restore();
@@ -613,7 +727,19 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
      */
     @Override
     public double calculateLogP() {
+    	if (batch != null) {
+    		return batch.calculateLogP(this);
+    	}
+    	prepareUpdates();
+    	updateTransitionMatrices();
+    	return updatePartials();
+    }
 
+    /**
+     * Queues matrix updates and partials operations for the current state, and uploads the
+     * substitution and site model if they changed.
+     */
+    void prepareUpdates() {
         if (patternLogLikelihoods == null) {
             patternLogLikelihoods = new double[patternCount];
         }
@@ -624,6 +750,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             branchUpdateCount = new int[eigenCount];
             scaleBufferIndices = new int[internalNodeCount];
             storedScaleBufferIndices = new int[internalNodeCount];
+            scaledBufferIndices = new int[internalNodeCount];
         }
 
         if (operations == null) {
@@ -632,24 +759,14 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
         }
 
         recomputeScaleFactors = false;
+        rescalingScheduler.startEvaluation();
 
         if (this.rescalingScheme == PartialsRescalingScheme.ALWAYS) {
             useScaleFactors = true;
             recomputeScaleFactors = true;
         } else if (this.rescalingScheme == PartialsRescalingScheme.DYNAMIC && everUnderflowed) {
+            // the rescaling scheduler decides which of the updated nodes get new scale factors
             useScaleFactors = true;
-            if (rescalingCountInner < RESCALE_TIMES) {
-                recomputeScaleFactors = true;
-                hasDirt = Tree.IS_FILTHY;// makeDirty();
-//                System.err.println("Recomputing scale factors");
-            }
-
-            rescalingCountInner++;
-            rescalingCount++;
-            if (rescalingCount > RESCALE_FREQUENCY) {
-                rescalingCount = 0;
-                rescalingCountInner = 0;
-            }
         } else if (this.rescalingScheme == PartialsRescalingScheme.DELAYED && everUnderflowed) {
             useScaleFactors = true;
             recomputeScaleFactors = true;
@@ -657,6 +774,10 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             rescalingCount++;
         }
 
+        // cached partials are not scaled, so are only used while scaling is off
+        partialsPool.startEvaluation(treeInput.get(), hasDirt != Tree.IS_CLEAN || branchRateModel.isDirtyCalculation()
+        		|| useScaleFactors || useAutoScaling);
+
         for (int i = 0; i < eigenCount; i++) {
             branchUpdateCount[i] = 0;
         }
@@ -671,27 +792,37 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
             setUpSubstModel();
         }
 
-        if (updateSiteModel) {
-            double[] categoryRates = m_siteModel.getCategoryRates(null);
-            if (getConstantPattern() != null) {
-	            double [] tmp = new double [categoryRates.length - 1];
-	            for (int k = 0; k < invariantCategory; k++) {
-	            	tmp[k] = categoryRates[k];
-	            }
-	            for (int k = invariantCategory + 1; k < categoryRates.length; k++) {
-	            	tmp[k-1] = categoryRates[k];
-	            }
-	            categoryRates = tmp;
-	        }
-            for (int i = 0; i < categoryRates.length; i++) {
-            	if (categoryRates[i] != currentCategoryRates[i]) {
-                    beagle.setCategoryRates(categoryRates);
-                    i = categoryRates.length;
-            	}
-            }
-            currentCategoryRates = categoryRates;
-        }
+        uploadSiteModel();
+    }
+
+    /**
+     * Uploads the category rates, category weights and state frequencies to BEAGLE if their model
+     * changed since the last upload. The invariant category is left out if constant patterns are
+     * handled separately.
+     */
+    private void uploadSiteModel() {
+    	if (siteModelVersion != uploadedSiteModelVersion) {
+    		int k = 0;
+    		for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+    			if (i != invariantCategory) {
+    				currentCategoryRates[k] = m_siteModel.getRateForCategory(i, null);
+    				currentCategoryWeights[k] = m_siteModel.getProportionForCategory(i, null);
+    				k++;
+    			}
+    		}
+    		beagle.setCategoryRates(currentCategoryRates);
+    		beagle.setCategoryWeights(0, currentCategoryWeights);
+    		uploadedSiteModelVersion = siteModelVersion;
+    	}
+    	if (substitutionModelVersion != uploadedSubstitutionModelVersion) {
+    		System.arraycopy(substitutionModel.getFrequencies(), 0, currentFreqs, 0, m_nStateCount);
+    		beagle.setStateFrequencies(0, currentFreqs);
+    		uploadedSubstitutionModelVersion = substitutionModelVersion;
+    	}
+    }
 
+    /** submits the queued matrix updates **/
+    void updateTransitionMatrices() {
         for (int i = 0; i < eigenCount; i++) {
             if (branchUpdateCount[i] > 0) {
                 beagle.updateTransitionMatrices(
@@ -713,7 +844,14 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 //                totalOperationCount += operationCount[i];
 //            }
 //        }
+    }
 
+    /**
+     * Submits the queued partials operations and calculates the log likelihood at the root, trying
+     * again with rescaling on under- or overflow if the rescaling scheme allows.
+     */
+    double updatePartials() {
+        final Node root = treeInput.get().getRoot();
         double logL;
         boolean done;
         boolean firstRescaleAttempt = true;
@@ -722,57 +860,38 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 
             beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
 
-            int rootIndex = partialBufferHelper.getOffsetIndex(root.getNr());
-
-            double[] categoryWeights = m_siteModel.getCategoryProportions(null);
-            if (getConstantPattern() != null) {
-	            double [] tmp = new double [categoryWeights.length - 1];
-	            for (int k = 0; k < invariantCategory; k++) {
-	            	tmp[k] = categoryWeights[k];
-	            }
-	            for (int k = invariantCategory + 1; k < categoryWeights.length; k++) {
-	            	tmp[k-1] = categoryWeights[k];
-	            }
-	            categoryWeights = tmp;
-            }
-            double[] frequencies = substitutionModel.getFrequencies();
+            int rootIndex = partialsPool.getIndex(root.getNr());
+            final double[] frequencies = currentFreqs;
 
             int cumulateScaleBufferIndex = Beagle.NONE;
             if (useScaleFactors) {
 
-                if (recomputeScaleFactors) {
-                    scaleBufferHelper.flipOffset(internalNodeCount);
+                if (rescalingScheduler.hasRescaled()) {
+                    if (rescalingScheduler.flipCumulative()) {
+                        scaleBufferHelper.flipOffset(internalNodeCount);
+                    }
                     cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
                     beagle.resetScaleFactors(cumulateScaleBufferIndex);
-                    beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, cumulateScaleBufferIndex);
-                } else {
+                    // nodes without scale factors have unscaled partials, so they do not contribute
+                    int scaledCount = 0;
+                    for (int n = 0; n < internalNodeCount; n++) {
+                        if (rescalingScheduler.isScaled(n)) {
+                            scaledBufferIndices[scaledCount++] = scaleBufferIndices[n];
+                        }
+                    }
+                    beagle.accumulateScaleFactors(scaledBufferIndices, scaledCount, cumulateScaleBufferIndex);
+                } else if (rescalingScheduler.hasScaled()) {
                     cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
                 }
             } else if (useAutoScaling) {
                 beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, Beagle.NONE);
             }
 
-            // these could be set only when they change but store/restore would need to be considered
-            
-            for (int i = 0; i < categoryWeights.length; i++) {
-            	if (categoryWeights[i] != currentCategoryWeights[i]) {
-                    beagle.setCategoryWeights(0, categoryWeights);
-            		i = categoryWeights.length;
-            	}
-            }
-            currentCategoryWeights = categoryWeights;
-            for (int i = 0; i < frequencies.length; i++) {
-            	if (frequencies[i] != currentFreqs[i]) {
-                    beagle.setStateFrequencies(0, frequencies);
-            		i = frequencies.length;
-            	}
-            }
-            currentFreqs = frequencies;
-
-            double[] sumLogLikelihoods = new double[1];
-
-            beagle.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
-                    new int[]{cumulateScaleBufferIndex}, 1, sumLogLikelihoods);
+            // category weights and frequencies were uploaded in prepareUpdates when they changed
+            rootBufferIndices[0] = rootIndex;
+            rootScaleBufferIndices[0] = cumulateScaleBufferIndex;
+            beagle.calculateRootLogLikelihoods(rootBufferIndices, rootCategoryWeightsIndices, rootStateFrequencyIndices,
+                    rootScaleBufferIndices, 1, sumLogLikelihoods);
 
             logL = sumLogLikelihoods[0];
 
@@ -787,7 +906,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
                 setProportionInvariant(m_siteModel.getProportionInvariant());
                 
                 
-    	        for (int k : getConstantPattern()) {
+    	        for (int k : constantPatterns) {
     	        	int i = k / m_nStateCount;
     	        	int j = k % m_nStateCount;
     	        	patternLogLikelihoods[i] = (Math.log(Math.exp(patternLogLikelihoods[i]) + getProportionInvariant() * frequencies[j]));
@@ -805,6 +924,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 
                 if (firstRescaleAttempt && (rescalingScheme == PartialsRescalingScheme.DYNAMIC || rescalingScheme == PartialsRescalingScheme.DELAYED)) {
                     // we have had a potential under/over flow so attempt a rescaling                	
+                	rescalingScheduler.underflowed();
                 	useScaleFactors = true;
                     recomputeScaleFactors = true;
 
@@ -857,16 +977,16 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 //    }
 
     protected void setPartials(int number, double[] partials) {
-        beagle.setPartials(partialBufferHelper.getOffsetIndex(number), partials);
+        beagle.setPartials(partialsPool.getIndex(number), partials);
     }
 
     private double getAscertainmentCorrectedLogLikelihood(Alignment patternList,
                                                           double[] patternLogLikelihoods,
                                                           int[] patternWeights,
                                                           double [] frequencies) {
-    	if (getConstantPattern() != null) {
+    	if (constantPatterns != null) {
 	        setProportionInvariant(m_siteModel.getProportionInvariant());
-	        for (int k : getConstantPattern()) {
+	        for (int k : constantPatterns) {
 	        	int i = k / m_nStateCount;
 	        	int j = k % m_nStateCount;
 	        	patternLogLikelihoods[i] = (Math.log(Math.exp(patternLogLikelihoods[i]) + getProportionInvariant() * frequencies[j]));
@@ -892,279 +1012,185 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
     private int traverse(Node node, int[] operatorNumber, boolean flip) {
 		TreeInterface tree = treeInput.get();
 		if (target == -1 || tree.getNode(target).isRoot()) {
+			if (hasDirt != Tree.IS_CLEAN) {
+				// the matrices of the branch through the root and of the target are not updated while not rerooted
+				m_branchLengths[tree.getRoot().getNr()] = -1;
+				m_branchLengths[zeroLengthMatrixKey] = -1;
+			}
 			return originalTraverse(node, operatorNumber, flip);
 		}
-		return traverseToTarget(tree.getNode(target), null, operatorNumber, flip);
-	}
-
-    
-    
-    private int traverseToTarget(Node node, Node origin, int[] operatorNumber, boolean flip) {
-
-        int nodeIndex = node.getNr();
-        boolean updateTarget = m_branchLengths[nodeIndex] < 0;
-        //Node parent = node.getParent();
-
+		if (traversal == null) {
+			traversal = new TargetTraversal(tree.getNodeCount());
+			nodeUpdates = new int[tree.getNodeCount()];
+		}
+		if (hasDirt != Tree.IS_CLEAN) {
+			// the matrices of the branches to the children of the root are not updated while rerooted
+			final Node root = tree.getRoot();
+			m_branchLengths[root.getLeft().getNr()] = -1;
+			m_branchLengths[root.getRight().getNr()] = -1;
+		}
+		traversal.update(tree, target);
         if (operatorNumber != null) {
             operatorNumber[0] = -1;
         }
+		return traverseToTarget(tree, flip);
+	}
 
-        // First update the transition probability matrix(ices) for this branch
-        int update = (node.isDirty() | hasDirt);
-
-
-        if (origin != null) {
-        	double branchTime;
-        	if (node.getParent().isRoot() && origin.getParent().isRoot()) {
-            	final double branchRate1 = branchRateModel.getRateForBranch(node);
-            	final double branchRate2 = branchRateModel.getRateForBranch(origin);
-            	Node root = node.getParent();
-            	final double branchTime1 = root.getHeight() - node.getHeight();
-            	final double branchTime2 = root.getHeight() - origin.getHeight();
-            	branchTime = branchTime1 * branchRate1 + branchTime2 * branchRate2;
-            	// double branchRate = branchTime / (branchTime1 + branchTime2);
-        	} else {
-        		double branchRate = node.getParent() == origin ? branchRateModel.getRateForBranch(node) : branchRateModel.getRateForBranch(origin);
-            	branchTime = Math.abs(node.getHeight() - origin.getHeight()) * branchRate;
-        	}
-
-	        // First update the transition probability matrix(ices) for this branch
-	        //if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_StoredBranchLengths[nodeIndex])) {
-	        if (update != Tree.IS_CLEAN || Math.abs(branchTime - m_branchLengths[nodeIndex]) > 1e-13) {
-	            m_branchLengths[nodeIndex] = branchTime;
-	            if (branchTime < 0.0) {
-	                throw new RuntimeException("Negative branch length: " + branchTime);
-	            }
-
-	            if (flip) {
-	                // first flip the matrixBufferHelper
-	                matrixBufferHelper.flipOffset(nodeIndex);
-	            }
-
-	            // then set which matrix to update
-	            final int eigenIndex = 0;// = m_substitutionModel.getBranchIndex(node);
-	            final int updateCount = branchUpdateCount[eigenIndex];
-	            matrixUpdateIndices[eigenIndex][updateCount] = matrixBufferHelper.getOffsetIndex(nodeIndex);
-	            
-	            branchLengths[eigenIndex][updateCount] = branchTime;
-	            branchUpdateCount[eigenIndex]++;
-
-	            update |= Tree.IS_DIRTY;
-	        }
-	    } else {
-	        //if (update != Tree.IS_CLEAN) {
-	    		
-	            if (flip) {
-	                // first flip the matrixBufferHelper
-	                matrixBufferHelper.flipOffset(nodeIndex);
-	            }
-
-	            // then set which matrix to update
-	            final int eigenIndex = 0;// = m_substitutionModel.getBranchIndex(node);
-	            final int updateCount = branchUpdateCount[eigenIndex];
-	            matrixUpdateIndices[eigenIndex][updateCount] = matrixBufferHelper.getOffsetIndex(nodeIndex);
-	            
-	            branchLengths[eigenIndex][updateCount] = 0.0;
-	            branchUpdateCount[eigenIndex]++;
-	            
-	            update |= Tree.IS_DIRTY;
-	        //}
-        }
-
-        
-        
-
-
-        // If the node is internal, update the partial likelihoods.
-        if (!node.isLeaf()) {
-
-//            // Traverse down the two child nodes
-//            Node child1 = node.getLeft();
-//            final int[] op1 = {-1};
-//            final int update1 = traverseToTarget(child1, other, op1, flip);
-//
-//            Node child2 = node.getRight();
-//            final int[] op2 = {-1};
-//            final int update2 = traverseToTarget(child2, other, op2, flip);
-            
-            // Traverse down the two child nodes
-        	Node neighbour1, neighbour2, neighbour3 = null;
-        	int update1, update2, update3 = Tree.IS_CLEAN;
-            final int[] op1 = {-1};
-            final int[] op2 = {-1};
-        	if (node.getParent() == origin || (node.getParent().isRoot() && origin != null && origin.getParent().isRoot())) {
-        		// going down
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 = traverseToTarget(neighbour1, node, op1, flip);
-
-        		neighbour2 = node.getRight();
-        		update2 = traverseToTarget(neighbour2, node, op2, flip);
-        	} else if (node.getLeft() == origin) {
-        		// coming from the left
-        		neighbour1 = node.getParent();
-        		if (neighbour1.isRoot()) {
-        			neighbour1 = neighbour1.getLeft() == node ? neighbour1.getRight() : neighbour1.getLeft();
-        		}
-        		update1 = traverseToTarget(neighbour1, node, op1, flip);
-        		
-        		neighbour2 = node.getRight();
-        		update2 = traverseToTarget(neighbour2, node, op2, flip);
-        		
-        	} else if (node.getRight() == origin) {
-        		// coming from the right
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 = traverseToTarget(neighbour1, node, op1, flip);
-        		
-        		neighbour2 = node.getParent();
-        		if (neighbour2.isRoot()) {
-        			neighbour2 = neighbour2.getLeft() == node ? neighbour2.getRight() : neighbour2.getLeft();
-        		}
-        		update2 = traverseToTarget(neighbour2, node, op2, flip);
-        	} else if (origin == null) {
-        		// going down
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 = traverseToTarget(neighbour1, node, op1, flip);
-
-        		neighbour2 = node.getRight();
-        		update2 = traverseToTarget(neighbour2, node, op2, flip);
-
-        		// going up
-        		neighbour3 = node.getParent();
-        		if (neighbour3.isRoot()) {
-        			neighbour3 = neighbour3.getLeft() == node ? neighbour3.getRight() : neighbour3.getLeft();
-        		}
-        		
-                final int[] op3 = {-1};
-        		update3 = traverseToTarget(neighbour3, node, op3, flip);
-        	} else {
-        		throw new RuntimeException("Programmer error: should not get at " + this.getClass().getSimpleName() + ".traverse()");
-        	}
-            
-            
-            // If either child node was updated then update this node too
-            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || updateTarget) {
-
-                int x = operationCount[operationListCount] * Beagle.OPERATION_TUPLE_SIZE;
-
-                if (flip) {
-                    // first flip the partialBufferHelper
-                    partialBufferHelper.flipOffset(nodeIndex);
-                }
-
-                final int[] operations = this.operations[operationListCount];
-
-                operations[x] = partialBufferHelper.getOffsetIndex(nodeIndex);
-
-                if (useScaleFactors) {
-                    // get the index of this scaling buffer
-                    int n = nodeIndex - tipCount;
-
-                    if (recomputeScaleFactors) {
-                        // flip the indicator: can take either n or (internalNodeCount + 1) - n
-                        scaleBufferHelper.flipOffset(n);
-
-                        // store the index
-                        scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
-
-                        operations[x + 1] = scaleBufferIndices[n]; // Write new scaleFactor
-                        operations[x + 2] = Beagle.NONE;
-
-                    } else {
-                        operations[x + 1] = Beagle.NONE;
-                        operations[x + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
-                    }
-
-                } else {
+    /**
+     * Queues matrix updates and partials operations in post-order of the tree rerooted at the target,
+     * with as last operation the partials of the pseudo-root at the target, which go in the root buffer.
+     * @return update status of the target
+     */
+    private int traverseToTarget(TreeInterface tree, boolean flip) {
+        final int[] traversalOperations = traversal.getOperations();
+        final int traversalOperationCount = traversal.getOperationCount();
+        int update = Tree.IS_CLEAN;
+        for (int i = 0; i < traversalOperationCount; i++) {
+            final int x = i * TargetTraversal.OPERATION_SIZE;
+            final int nodeIndex = traversalOperations[x + TargetTraversal.NODE];
+            final int orientation = traversalOperations[x + TargetTraversal.ORIENTATION];
+            final int neighbour1 = traversalOperations[x + TargetTraversal.NEIGHBOUR1];
+            final int neighbour2 = traversalOperations[x + TargetTraversal.NEIGHBOUR2];
+            final Node node = tree.getNode(nodeIndex);
+
+            update = (node.isDirty() | hasDirt);
+
+            // First update the transition probability matrix(ices) for this branch, which is kept
+            // under the key of the branch, so it is shared by both orientations
+            final Node origin = orientation == TargetTraversal.AT_TARGET ? null : tree.getNode(traversalOperations[x + TargetTraversal.ORIGIN]);
+            if (orientation != TargetTraversal.AT_TARGET) {
+            	int matrixKey;
+            	double branchTime;
+            	if (orientation == TargetTraversal.THROUGH_ROOT) {
+                	final double branchRate1 = branchRateModel.getRateForBranch(node);
+                	final double branchRate2 = branchRateModel.getRateForBranch(origin);
+                	Node root = node.getParent();
+                	final double branchTime1 = root.getHeight() - node.getHeight();
+                	final double branchTime2 = root.getHeight() - origin.getHeight();
+                	branchTime = branchTime1 * branchRate1 + branchTime2 * branchRate2;
+                	matrixKey = root.getNr();
+            	} else if (orientation == TargetTraversal.DOWN) {
+                	branchTime = (origin.getHeight() - node.getHeight()) * branchRateModel.getRateForBranch(node);
+                	matrixKey = nodeIndex;
+            	} else {
+                	branchTime = (node.getHeight() - origin.getHeight()) * branchRateModel.getRateForBranch(origin);
+                	matrixKey = origin.getNr();
+            	}
 
-                    if (useAutoScaling) {
-                        scaleBufferIndices[nodeIndex - tipCount] = partialBufferHelper.getOffsetIndex(nodeIndex);
-                    }
-                    operations[x + 1] = Beagle.NONE; // Not using scaleFactors
-                    operations[x + 2] = Beagle.NONE;
+    	        if (update != Tree.IS_CLEAN || Math.abs(branchTime - m_branchLengths[matrixKey]) > 1e-13) {
+    	            m_branchLengths[matrixKey] = branchTime;
+    	            if (branchTime < 0.0) {
+    	                throw new RuntimeException("Negative branch length: " + branchTime);
+    	            }
+    	            addMatrixUpdate(matrixKey, branchTime, flip);
+    	            update |= Tree.IS_DIRTY;
+    	        }
+    	        matrixKeys[nodeIndex] = matrixKey;
+            } else {
+                // the target gets a branch of length zero, which only needs calculating once per substitution model
+                if (hasDirt != Tree.IS_CLEAN || m_branchLengths[zeroLengthMatrixKey] != 0.0) {
+                	m_branchLengths[zeroLengthMatrixKey] = 0.0;
+                	addMatrixUpdate(zeroLengthMatrixKey, 0.0, flip);
                 }
-
-                operations[x + 3] = partialBufferHelper.getOffsetIndex(neighbour1.getNr()); // source node 1
-                operations[x + 4] = matrixBufferHelper.getOffsetIndex(neighbour1.getNr()); // source matrix 1
-                operations[x + 5] = partialBufferHelper.getOffsetIndex(neighbour2.getNr()); // source node 2
-                operations[x + 6] = matrixBufferHelper.getOffsetIndex(neighbour2.getNr()); // source matrix 2
-
-                operationCount[operationListCount]++;
-
+                matrixKeys[nodeIndex] = zeroLengthMatrixKey;
                 update |= Tree.IS_DIRTY;
-
             }
-            if (origin == null ) { // update3 != Tree.IS_CLEAN) {
-            	int rootIndex = treeInput.get().getRoot().getNr();
-//                likelihoodCore.setNodePartialsForUpdate(rootIndex);
-//                if (update >= Tree.IS_FILTHY) {
-//                    likelihoodCore.setNodeStatesForUpdate(rootIndex);
-//                }
-//
-//                if (m_siteModel.integrateAcrossCategories()) {
-//                    likelihoodCore.calculatePartials(nodeIndex, neighbour3.getNr(), rootIndex);
-//                } else {
-//                    throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
-//                    //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
-//                }
-            	
-                int x = operationCount[operationListCount] * Beagle.OPERATION_TUPLE_SIZE;
-
-                if (flip) {
-                    // first flip the partialBufferHelper
-                    partialBufferHelper.flipOffset(rootIndex);
+
+            // If the node is internal, update the partial likelihoods.
+            if (neighbour1 >= 0) {
+                // If either neighbour was updated, or partials for this orientation are not at hand, then update this node too
+                final int partialsOrientation = orientation != TargetTraversal.UP ? PartialsBufferPool.DOWN :
+                	node.getLeft() == origin ? PartialsBufferPool.UP_LEFT : PartialsBufferPool.UP_RIGHT;
+                if (nodeUpdates[neighbour1] != Tree.IS_CLEAN || nodeUpdates[neighbour2] != Tree.IS_CLEAN
+                		|| !partialsPool.reuse(nodeIndex, partialsOrientation)) {
+                    addPartialsOperation(nodeIndex, neighbour1, neighbour2, partialsOrientation);
+                    update |= Tree.IS_DIRTY;
+                }
+                if (orientation == TargetTraversal.AT_TARGET) {
+                    final int neighbour3 = traversal.getTargetNeighbour3();
+                    addPartialsOperation(tree.getRoot().getNr(), nodeIndex, neighbour3, PartialsBufferPool.PSEUDO_ROOT);
+                    update |= nodeUpdates[neighbour3];
+                    update |= Tree.IS_DIRTY;
                 }
+            }
+            nodeUpdates[nodeIndex] = update;
+        }
+        return update;
+    }
 
-                final int[] operations = this.operations[operationListCount];
+    private void addMatrixUpdate(int matrixKey, double branchTime, boolean flip) {
+        if (flip) {
+            // first flip the matrixBufferHelper
+            matrixBufferHelper.flipOffset(matrixKey);
+        }
 
-                operations[x] = partialBufferHelper.getOffsetIndex(rootIndex);
+        // then set which matrix to update
+        final int eigenIndex = 0;// = m_substitutionModel.getBranchIndex(node);
+        final int updateCount = branchUpdateCount[eigenIndex];
+        matrixUpdateIndices[eigenIndex][updateCount] = matrixBufferHelper.getOffsetIndex(matrixKey);
 
-                if (useScaleFactors) {
-                    // get the index of this scaling buffer
-                    int n = rootIndex - tipCount;
+        branchLengths[eigenIndex][updateCount] = branchTime;
+        branchUpdateCount[eigenIndex]++;
+    }
 
-                    if (recomputeScaleFactors) {
-                        // flip the indicator: can take either n or (internalNodeCount + 1) - n
-                        scaleBufferHelper.flipOffset(n);
+    /**
+     * Adds an operation calculating partials of nodeIndex in the orientation from those of source1 and source2,
+     * using the matrices of the branches between the sources and their origin in the current traversal
+     */
+    private void addPartialsOperation(int nodeIndex, int source1, int source2, int partialsOrientation) {
+        int x = operationCount[operationListCount] * Beagle.OPERATION_TUPLE_SIZE;
 
-                        // store the index
-                        scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
+        final int[] operations = this.operations[operationListCount];
 
-                        operations[x + 1] = scaleBufferIndices[n]; // Write new scaleFactor
-                        operations[x + 2] = Beagle.NONE;
+        // a buffer that is not part of the stored state, so a retry overwrites the last attempt
+        operations[x] = partialsPool.prepareWrite(nodeIndex, partialsOrientation);
+        setScaleIndices(operations, x, nodeIndex);
 
-                    } else {
-                        operations[x + 1] = Beagle.NONE;
-                        operations[x + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
-                    }
+        operations[x + 3] = partialsPool.getIndex(source1); // source node 1
+        operations[x + 4] = matrixBufferHelper.getOffsetIndex(matrixKeys[source1]); // source matrix 1
+        operations[x + 5] = partialsPool.getIndex(source2); // source node 2
+        operations[x + 6] = matrixBufferHelper.getOffsetIndex(matrixKeys[source2]); // source matrix 2
 
-                } else {
+        operationCount[operationListCount]++;
+    }
 
-                    if (useAutoScaling) {
-                        scaleBufferIndices[rootIndex - tipCount] = partialBufferHelper.getOffsetIndex(rootIndex);
-                    }
-                    operations[x + 1] = Beagle.NONE; // Not using scaleFactors
-                    operations[x + 2] = Beagle.NONE;
+    /**
+     * Sets the scale buffers of the partials operation at x: new scale factors are written when the
+     * rescaling scheduler asks for them, otherwise the existing scale factors of the node are applied.
+     */
+    private void setScaleIndices(int[] operations, int x, int nodeIndex) {
+        if (useScaleFactors) {
+            // get the index of this scaling buffer
+            int n = nodeIndex - tipCount;
+
+            // a retry writes to the scale buffer the first attempt wrote to
+            final boolean flipScaleBuffer = !rescalingScheduler.isRescaled(n);
+            if (rescalingScheduler.rescale(n, recomputeScaleFactors)) {
+                if (flipScaleBuffer) {
+                    // flip the indicator: can take either n or (internalNodeCount + 1) - n
+                    scaleBufferHelper.flipOffset(n);
+
+                    // store the index
+                    scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
                 }
 
-                operations[x + 3] = partialBufferHelper.getOffsetIndex(nodeIndex); // source node 1
-                operations[x + 4] = matrixBufferHelper.getOffsetIndex(nodeIndex); // source matrix 1
-                operations[x + 5] = partialBufferHelper.getOffsetIndex(neighbour3.getNr()); // source node 2
-                operations[x + 6] = matrixBufferHelper.getOffsetIndex(neighbour3.getNr()); // source matrix 2
+                operations[x + 1] = scaleBufferIndices[n]; // Write new scaleFactor
+                operations[x + 2] = Beagle.NONE;
 
-                operationCount[operationListCount]++;
+            } else {
+                operations[x + 1] = Beagle.NONE;
+                operations[x + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
+            }
 
-                update |= update3;
-                update |= Tree.IS_DIRTY;
+        } else {
 
-             }
-            
-            
+            if (useAutoScaling) {
+                scaleBufferIndices[nodeIndex - tipCount] = partialsPool.getIndex(nodeIndex);
+            }
+            operations[x + 1] = Beagle.NONE; // Not using scaleFactors
+            operations[x + 2] = Beagle.NONE;
         }
-
-        return update;
-
     }
-
     
     private int originalTraverse(Node node, int[] operatorNumber, boolean flip) {
 
@@ -1178,6 +1204,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 
         // First update the transition probability matrix(ices) for this branch
         int update = (node.isDirty() | hasDirt);
+        matrixKeys[nodeNum] = nodeNum;
 //        if (parent!=null) {
 //        	update |= parent.isDirty();
 //        }
@@ -1216,63 +1243,17 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
 
             // Traverse down the two child nodes
             Node child1 = node.getLeft();
-            final int[] op1 = {-1};
-            final int update1 = originalTraverse(child1, op1, flip);
+            final int update1 = originalTraverse(child1, null, flip);
 
             Node child2 = node.getRight();
-            final int[] op2 = {-1};
-            final int update2 = originalTraverse(child2, op2, flip);
-
-            // If either child node was updated then update this node too
-            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
-
-                int x = operationCount[operationListCount] * Beagle.OPERATION_TUPLE_SIZE;
-
-                if (flip) {
-                    // first flip the partialBufferHelper
-                    partialBufferHelper.flipOffset(nodeNum);
-                }
-
-                final int[] operations = this.operations[operationListCount];
-
-                operations[x] = partialBufferHelper.getOffsetIndex(nodeNum);
-
-                if (useScaleFactors) {
-                    // get the index of this scaling buffer
-                    int n = nodeNum - tipCount;
-
-                    if (recomputeScaleFactors) {
-                        // flip the indicator: can take either n or (internalNodeCount + 1) - n
-                        scaleBufferHelper.flipOffset(n);
-
-                        // store the index
-                        scaleBufferIndices[n] = scaleBufferHelper.getOffsetIndex(n);
-
-                        operations[x + 1] = scaleBufferIndices[n]; // Write new scaleFactor
-                        operations[x + 2] = Beagle.NONE;
-
-                    } else {
-                        operations[x + 1] = Beagle.NONE;
-                        operations[x + 2] = scaleBufferIndices[n]; // Read existing scaleFactor
-                    }
-
-                } else {
-
-                    if (useAutoScaling) {
-                        scaleBufferIndices[nodeNum - tipCount] = partialBufferHelper.getOffsetIndex(nodeNum);
-                    }
-                    operations[x + 1] = Beagle.NONE; // Not using scaleFactors
-                    operations[x + 2] = Beagle.NONE;
-                }
+            final int update2 = originalTraverse(child2, null, flip);
 
-                operations[x + 3] = partialBufferHelper.getOffsetIndex(child1.getNr()); // source node 1
-                operations[x + 4] = matrixBufferHelper.getOffsetIndex(child1.getNr()); // source matrix 1
-                operations[x + 5] = partialBufferHelper.getOffsetIndex(child2.getNr()); // source node 2
-                operations[x + 6] = matrixBufferHelper.getOffsetIndex(child2.getNr()); // source matrix 2
+            // If either child node was updated, or the partials below this node are not at hand, then update this node too
+            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || !partialsPool.reuse(nodeNum, PartialsBufferPool.DOWN)) {
 
-                operationCount[operationListCount]++;
+                addPartialsOperation(nodeNum, child1.getNr(), child2.getNr(), PartialsBufferPool.DOWN);
 
-                update |= (update1 | update2);
+                update |= (update1 | update2 | Tree.IS_DIRTY);
 
             }
         }
@@ -1290,12 +1271,14 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
     private int[] branchUpdateCount;
     private int[] scaleBufferIndices;
     private int[] storedScaleBufferIndices;
+    /** scale buffers of the nodes that have scale factors, accumulated into the cumulative scale buffer **/
+    private int[] scaledBufferIndices;
 
     private int[][] operations;
     private int operationListCount;
     private int[] operationCount;
 
-    protected BufferIndexHelper partialBufferHelper;
+    protected PartialsBufferPool partialsPool;
     private /*final*/ BufferIndexHelper eigenBufferHelper;
     protected BufferIndexHelper matrixBufferHelper;
     protected BufferIndexHelper scaleBufferHelper;
@@ -1311,7 +1294,7 @@ public class DuckBeagleTreeLikelihood extends BeagleTreeLikelihood implements Ta
     private boolean recomputeScaleFactors = false;
     private boolean everUnderflowed = false;
     private int rescalingCount = 0;
-    private int rescalingCountInner = 0;
+    private RescalingScheduler rescalingScheduler;
 
     
     /**
@@ -0,0 +1,233 @@
+package beastbooster.likelihood;
+
+/**
+ * Nucleotide core that keeps the 4x4 transition matrices of a rate category in
+ * local variables while sweeping over the patterns, so the inner loops only
+ * stream partials and the JIT can keep the matrix entries in (vector) registers.
+ *
+ * The summation order is exactly the same as in DuckLikelihoodCore4, so results
+ * are bit-for-bit identical to that core.
+ */
+public class DuckBlockedLikelihoodCore4 extends DuckLikelihoodCore4 {
+
+	public DuckBlockedLikelihoodCore4(int stateCount) {
+		super(stateCount);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	@Override
+	protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3) {
+		int v = 0;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+
+			final double a00 = matrices1[w],      a01 = matrices1[w + 1],  a02 = matrices1[w + 2],  a03 = matrices1[w + 3];
+			final double a10 = matrices1[w + 4],  a11 = matrices1[w + 5],  a12 = matrices1[w + 6],  a13 = matrices1[w + 7];
+			final double a20 = matrices1[w + 8],  a21 = matrices1[w + 9],  a22 = matrices1[w + 10], a23 = matrices1[w + 11];
+			final double a30 = matrices1[w + 12], a31 = matrices1[w + 13], a32 = matrices1[w + 14], a33 = matrices1[w + 15];
+
+			final double b00 = matrices2[w],      b01 = matrices2[w + 1],  b02 = matrices2[w + 2],  b03 = matrices2[w + 3];
+			final double b10 = matrices2[w + 4],  b11 = matrices2[w + 5],  b12 = matrices2[w + 6],  b13 = matrices2[w + 7];
+			final double b20 = matrices2[w + 8],  b21 = matrices2[w + 9],  b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final double p0 = partials1[v], p1 = partials1[v + 1], p2 = partials1[v + 2], p3 = partials1[v + 3];
+				final double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+
+				partials3[v]     = (a00 * p0 + a01 * p1 + a02 * p2 + a03 * p3) * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3);
+				partials3[v + 1] = (a10 * p0 + a11 * p1 + a12 * p2 + a13 * p3) * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3);
+				partials3[v + 2] = (a20 * p0 + a21 * p1 + a22 * p2 + a23 * p3) * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3);
+				partials3[v + 3] = (a30 * p0 + a31 * p1 + a32 * p2 + a33 * p3) * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	@Override
+	protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3) {
+		int v = 0;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+
+			final double b00 = matrices2[w],      b01 = matrices2[w + 1],  b02 = matrices2[w + 2],  b03 = matrices2[w + 3];
+			final double b10 = matrices2[w + 4],  b11 = matrices2[w + 5],  b12 = matrices2[w + 6],  b13 = matrices2[w + 7];
+			final double b20 = matrices2[w + 8],  b21 = matrices2[w + 9],  b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				final double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+
+				if (state1 < 4) {
+					partials3[v]     = matrices1[w + state1]      * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3);
+					partials3[v + 1] = matrices1[w + 4 + state1]  * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3);
+					partials3[v + 2] = matrices1[w + 8 + state1]  * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3);
+					partials3[v + 3] = matrices1[w + 12 + state1] * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3);
+				} else {
+					// Child 1 has a gap or unknown state so don't use it
+					partials3[v]     = b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3;
+					partials3[v + 1] = b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3;
+					partials3[v + 2] = b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3;
+					partials3[v + 3] = b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3;
+				}
+				v += 4;
+			}
+		}
+	}
+
+	@Override
+	protected void calculatePartialsPartialsPartialsPruning(
+			double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+
+			final double a00 = matrices1[w],      a01 = matrices1[w + 1],  a02 = matrices1[w + 2],  a03 = matrices1[w + 3];
+			final double a10 = matrices1[w + 4],  a11 = matrices1[w + 5],  a12 = matrices1[w + 6],  a13 = matrices1[w + 7];
+			final double a20 = matrices1[w + 8],  a21 = matrices1[w + 9],  a22 = matrices1[w + 10], a23 = matrices1[w + 11];
+			final double a30 = matrices1[w + 12], a31 = matrices1[w + 13], a32 = matrices1[w + 14], a33 = matrices1[w + 15];
+
+			final double b00 = matrices2[w],      b01 = matrices2[w + 1],  b02 = matrices2[w + 2],  b03 = matrices2[w + 3];
+			final double b10 = matrices2[w + 4],  b11 = matrices2[w + 5],  b12 = matrices2[w + 6],  b13 = matrices2[w + 7];
+			final double b20 = matrices2[w + 8],  b21 = matrices2[w + 9],  b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			final double c00 = matrices3[w],      c01 = matrices3[w + 1],  c02 = matrices3[w + 2],  c03 = matrices3[w + 3];
+			final double c10 = matrices3[w + 4],  c11 = matrices3[w + 5],  c12 = matrices3[w + 6],  c13 = matrices3[w + 7];
+			final double c20 = matrices3[w + 8],  c21 = matrices3[w + 9],  c22 = matrices3[w + 10], c23 = matrices3[w + 11];
+			final double c30 = matrices3[w + 12], c31 = matrices3[w + 13], c32 = matrices3[w + 14], c33 = matrices3[w + 15];
+
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final double p0 = partials1[v], p1 = partials1[v + 1], p2 = partials1[v + 2], p3 = partials1[v + 3];
+				final double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+				final double r0 = partials3[v], r1 = partials3[v + 1], r2 = partials3[v + 2], r3 = partials3[v + 3];
+
+				partials4[v]     = (a00 * p0 + a01 * p1 + a02 * p2 + a03 * p3) * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3) * (c00 * r0 + c01 * r1 + c02 * r2 + c03 * r3);
+				partials4[v + 1] = (a10 * p0 + a11 * p1 + a12 * p2 + a13 * p3) * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3) * (c10 * r0 + c11 * r1 + c12 * r2 + c13 * r3);
+				partials4[v + 2] = (a20 * p0 + a21 * p1 + a22 * p2 + a23 * p3) * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3) * (c20 * r0 + c21 * r1 + c22 * r2 + c23 * r3);
+				partials4[v + 3] = (a30 * p0 + a31 * p1 + a32 * p2 + a33 * p3) * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3) * (c30 * r0 + c31 * r1 + c32 * r2 + c33 * r3);
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and two have partials.
+	 */
+	@Override
+	protected void calculateStatesPartialsPartialsPruning(int[] stateIndex1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+
+			final double b00 = matrices2[w],      b01 = matrices2[w + 1],  b02 = matrices2[w + 2],  b03 = matrices2[w + 3];
+			final double b10 = matrices2[w + 4],  b11 = matrices2[w + 5],  b12 = matrices2[w + 6],  b13 = matrices2[w + 7];
+			final double b20 = matrices2[w + 8],  b21 = matrices2[w + 9],  b22 = matrices2[w + 10], b23 = matrices2[w + 11];
+			final double b30 = matrices2[w + 12], b31 = matrices2[w + 13], b32 = matrices2[w + 14], b33 = matrices2[w + 15];
+
+			final double c00 = matrices3[w],      c01 = matrices3[w + 1],  c02 = matrices3[w + 2],  c03 = matrices3[w + 3];
+			final double c10 = matrices3[w + 4],  c11 = matrices3[w + 5],  c12 = matrices3[w + 6],  c13 = matrices3[w + 7];
+			final double c20 = matrices3[w + 8],  c21 = matrices3[w + 9],  c22 = matrices3[w + 10], c23 = matrices3[w + 11];
+			final double c30 = matrices3[w + 12], c31 = matrices3[w + 13], c32 = matrices3[w + 14], c33 = matrices3[w + 15];
+
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				final double q0 = partials2[v], q1 = partials2[v + 1], q2 = partials2[v + 2], q3 = partials2[v + 3];
+				final double r0 = partials3[v], r1 = partials3[v + 1], r2 = partials3[v + 2], r3 = partials3[v + 3];
+
+				if (state1 < 4) {
+					partials4[v]     = matrices1[w + state1]      * (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3) * (c00 * r0 + c01 * r1 + c02 * r2 + c03 * r3);
+					partials4[v + 1] = matrices1[w + 4 + state1]  * (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3) * (c10 * r0 + c11 * r1 + c12 * r2 + c13 * r3);
+					partials4[v + 2] = matrices1[w + 8 + state1]  * (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3) * (c20 * r0 + c21 * r1 + c22 * r2 + c23 * r3);
+					partials4[v + 3] = matrices1[w + 12 + state1] * (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3) * (c30 * r0 + c31 * r1 + c32 * r2 + c33 * r3);
+				} else {
+					// Child 1 has a gap or unknown state so don't use it
+					partials4[v]     = (b00 * q0 + b01 * q1 + b02 * q2 + b03 * q3) * (c00 * r0 + c01 * r1 + c02 * r2 + c03 * r3);
+					partials4[v + 1] = (b10 * q0 + b11 * q1 + b12 * q2 + b13 * q3) * (c10 * r0 + c11 * r1 + c12 * r2 + c13 * r3);
+					partials4[v + 2] = (b20 * q0 + b21 * q1 + b22 * q2 + b23 * q3) * (c20 * r0 + c21 * r1 + c22 * r2 + c23 * r3);
+					partials4[v + 3] = (b30 * q0 + b31 * q1 + b32 * q2 + b33 * q3) * (c30 * r0 + c31 * r1 + c32 * r2 + c33 * r3);
+				}
+				v += 4;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when two children have states and one has partials.
+	 */
+	@Override
+	protected void calculateStatesStatesPartialsPruning(
+			int[] stateIndex1, double[] matrices1,
+			int[] stateIndex2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+
+			final double c00 = matrices3[w],      c01 = matrices3[w + 1],  c02 = matrices3[w + 2],  c03 = matrices3[w + 3];
+			final double c10 = matrices3[w + 4],  c11 = matrices3[w + 5],  c12 = matrices3[w + 6],  c13 = matrices3[w + 7];
+			final double c20 = matrices3[w + 8],  c21 = matrices3[w + 9],  c22 = matrices3[w + 10], c23 = matrices3[w + 11];
+			final double c30 = matrices3[w + 12], c31 = matrices3[w + 13], c32 = matrices3[w + 14], c33 = matrices3[w + 15];
+
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				final int state2 = stateIndex2[k];
+				final double r0 = partials3[v], r1 = partials3[v + 1], r2 = partials3[v + 2], r3 = partials3[v + 3];
+
+				final double s0 = c00 * r0 + c01 * r1 + c02 * r2 + c03 * r3;
+				final double s1 = c10 * r0 + c11 * r1 + c12 * r2 + c13 * r3;
+				final double s2 = c20 * r0 + c21 * r1 + c22 * r2 + c23 * r3;
+				final double s3 = c30 * r0 + c31 * r1 + c32 * r2 + c33 * r3;
+
+				if (state1 < 4 && state2 < 4) {
+					partials4[v]     = matrices1[w + state1]      * matrices2[w + state2]      * s0;
+					partials4[v + 1] = matrices1[w + 4 + state1]  * matrices2[w + 4 + state2]  * s1;
+					partials4[v + 2] = matrices1[w + 8 + state1]  * matrices2[w + 8 + state2]  * s2;
+					partials4[v + 3] = matrices1[w + 12 + state1] * matrices2[w + 12 + state2] * s3;
+				} else if (state1 < 4) {
+					// child 2 has a gap or unknown state so treat it as unknown
+					partials4[v]     = matrices1[w + state1]      * s0;
+					partials4[v + 1] = matrices1[w + 4 + state1]  * s1;
+					partials4[v + 2] = matrices1[w + 8 + state1]  * s2;
+					partials4[v + 3] = matrices1[w + 12 + state1] * s3;
+				} else if (state2 < 4) {
+					// child 1 has a gap or unknown state so treat it as unknown
+					partials4[v]     = matrices2[w + state2]      * s0;
+					partials4[v + 1] = matrices2[w + 4 + state2]  * s1;
+					partials4[v + 2] = matrices2[w + 8 + state2]  * s2;
+					partials4[v + 3] = matrices2[w + 12 + state2] * s3;
+				} else {
+					// both children have a gap or unknown state so set partials to 1
+					partials4[v]     = s0;
+					partials4[v + 1] = s1;
+					partials4[v + 2] = s2;
+					partials4[v + 3] = s3;
+				}
+				v += 4;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package beastbooster.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * Core for large state spaces like codons (60-62 states), where the O(S^2) product of
+ * transition matrix and child partials dominates. For every rate category, patterns are
+ * processed in tiles of PATTERN_TILE patterns, and the product of child matrix and partials
+ * is done as a dense matrix multiply over the tile: two matrix rows are combined with four
+ * patterns at a time, so every matrix entry loaded is used four times and every partial
+ * loaded twice, while the tile of partials and the matrix rows stay in L1/L2 cache.
+ *
+ * Parent partials of a tile are initialised to 1 and multiplied in place by the contribution
+ * of every child, which handles both the 2-child and the 3-child (pseudo-root) case.
+ */
+public class DuckCodonLikelihoodCore extends DuckLikelihoodCore {
+	/** number of patterns processed together, a multiple of 4 **/
+	final static int PATTERN_TILE = 16;
+
+	public DuckCodonLikelihoodCore(int nrOfStates) {
+		super(nrOfStates);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+		calculateTiledPartials(nodeIndex1, nodeIndex2, -1, nodeIndex3);
+		if (useScaling) {
+			scalePartials(nodeIndex3);
+		}
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4) {
+		calculateTiledPartials(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4);
+		if (useScaling) {
+			scalePartials(nodeIndex4);
+		}
+	}
+
+	/**
+	 * Prunes into nodeIndex4 with the tiled kernel for three children instead of the generic
+	 * per pattern loop, which reads the full transition matrices for every pattern.
+	 */
+	@Override
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		calculateLogLikelihoodsInSteps(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4,
+				proportions, frequencies, constantPattern, proportionInvariant, outLogLikelihoods);
+	}
+
+	/**
+	 * Calculates partials of parentIndex from two or three children (nodeIndex3 < 0 for two children)
+	 */
+	private void calculateTiledPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int parentIndex) {
+		final double [] partials = this.partials[currentPartialsIndex[parentIndex]][parentIndex];
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			for (int k0 = 0; k0 < nrOfPatterns; k0 += PATTERN_TILE) {
+				final int count = Math.min(PATTERN_TILE, nrOfPatterns - k0);
+				final int u = (l * nrOfPatterns + k0) * nrOfStates;
+				Arrays.fill(partials, u, u + count * nrOfStates, 1.0);
+				multiplyChildTile(nodeIndex1, w, k0, count, partials, u);
+				multiplyChildTile(nodeIndex2, w, k0, count, partials, u);
+				if (nodeIndex3 >= 0) {
+					multiplyChildTile(nodeIndex3, w, k0, count, partials, u);
+				}
+			}
+		}
+	}
+
+	private void multiplyChildTile(int nodeIndex, int w, int k0, int count, double[] out, int u) {
+		final double [] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		if (states[nodeIndex] != null) {
+			multiplyStatesTile(states[nodeIndex], matrices, w, k0, count, out, u);
+		} else {
+			// child partials have the same layout as the parent partials
+			multiplyPartialsTile(partials[currentPartialsIndex[nodeIndex]][nodeIndex], matrices, w, count, out, u);
+		}
+	}
+
+	/**
+	 * Multiplies out[u + k * S + i] by matrices[w + i * S + state(k0 + k)] for k < count,
+	 * leaving patterns with gaps or unknown states untouched.
+	 */
+	protected void multiplyStatesTile(int[] stateIndex, double[] matrices, int w, int k0, int count, double[] out, int u) {
+		final int S = nrOfStates;
+		for (int k = 0; k < count; k++) {
+			final int state = stateIndex[k0 + k];
+			if (state < S) {
+				int x = w + state;
+				for (int i = 0; i < S; i++) {
+					out[u + i] *= matrices[x];
+					x += S;
+				}
+			}
+			u += S;
+		}
+	}
+
+	/**
+	 * Multiplies out[u + k * S + i] by sum_j matrices[w + i * S + j] * partials[u + k * S + j] for k < count.
+	 */
+	protected void multiplyPartialsTile(double[] partials, double[] matrices, int w, int count, double[] out, int u) {
+		final int S = nrOfStates;
+		int k = 0;
+		for (; k + 4 <= count; k += 4) {
+			final int v = u + k * S;
+			int i = 0;
+			for (; i + 2 <= S; i += 2) {
+				final int r = w + i * S;
+				double s00 = 0.0, s01 = 0.0, s02 = 0.0, s03 = 0.0;
+				double s10 = 0.0, s11 = 0.0, s12 = 0.0, s13 = 0.0;
+				for (int j = 0; j < S; j++) {
+					final double m0 = matrices[r + j];
+					final double m1 = matrices[r + S + j];
+					final double p0 = partials[v + j];
+					final double p1 = partials[v + S + j];
+					final double p2 = partials[v + 2 * S + j];
+					final double p3 = partials[v + 3 * S + j];
+					s00 += m0 * p0;
+					s01 += m0 * p1;
+					s02 += m0 * p2;
+					s03 += m0 * p3;
+					s10 += m1 * p0;
+					s11 += m1 * p1;
+					s12 += m1 * p2;
+					s13 += m1 * p3;
+				}
+				out[v + i]             *= s00;
+				out[v + S + i]         *= s01;
+				out[v + 2 * S + i]     *= s02;
+				out[v + 3 * S + i]     *= s03;
+				out[v + i + 1]         *= s10;
+				out[v + S + i + 1]     *= s11;
+				out[v + 2 * S + i + 1] *= s12;
+				out[v + 3 * S + i + 1] *= s13;
+			}
+			for (; i < S; i++) {
+				// odd number of states: last row on its own
+				final int r = w + i * S;
+				double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+				for (int j = 0; j < S; j++) {
+					final double m0 = matrices[r + j];
+					s0 += m0 * partials[v + j];
+					s1 += m0 * partials[v + S + j];
+					s2 += m0 * partials[v + 2 * S + j];
+					s3 += m0 * partials[v + 3 * S + j];
+				}
+				out[v + i]         *= s0;
+				out[v + S + i]     *= s1;
+				out[v + 2 * S + i] *= s2;
+				out[v + 3 * S + i] *= s3;
+			}
+		}
+		for (; k < count; k++) {
+			// remaining patterns of the last tile
+			final int v = u + k * S;
+			int r = w;
+			for (int i = 0; i < S; i++) {
+				double sum = 0.0;
+				for (int j = 0; j < S; j++) {
+					sum += matrices[r + j] * partials[v + j];
+				}
+				out[v + i] *= sum;
+				r += S;
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package beastbooster.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import beast.base.core.Description;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+
+@Description("Compound distribution that evaluates its dirty distributions concurrently on the likelihood execution service. "
+		+ "DuckThreadedTreeLikelihoods with sharedPool=true fork their chunks of patterns on the same pool, so that "
+		+ "partitions and chunks of patterns are scheduled together on a single pool of threads, instead of on a pool "
+		+ "per partition. Distributions are evaluated on different threads, so they should not share objects that "
+		+ "are not thread safe, such as substitution models (DuckThreadedTreeLikelihood duplicates these).")
+public class DuckCompoundDistribution extends CompoundDistribution {
+
+	private final List<DistributionTask> tasks = new ArrayList<>();
+	private double[] logPs;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		logPs = new double[pDistributions.get().size()];
+	}
+
+	@Override
+	public double calculateLogP() {
+		logP = 0;
+		if (ignoreInput.get()) {
+			return logP;
+		}
+		final List<Distribution> distributions = pDistributions.get();
+		tasks.clear();
+		for (int i = 0; i < distributions.size(); i++) {
+			if (distributions.get(i).isDirtyCalculation()) {
+				tasks.add(new DistributionTask(distributions.get(i), i));
+			} else {
+				logPs[i] = distributions.get(i).getCurrentLogP();
+			}
+		}
+		if (tasks.size() == 1) {
+			// nothing to evaluate concurrently, but the distribution may fork on the pool
+			LikelihoodExecutionService.invoke(tasks.get(0));
+		} else if (tasks.size() > 1) {
+			LikelihoodExecutionService.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+		}
+		for (double d : logPs) {
+			logP += d;
+		}
+		return logP;
+	}
+
+	class DistributionTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Distribution distribution;
+		private final int index;
+
+		DistributionTask(Distribution distribution, int index) {
+			this.distribution = distribution;
+			this.index = index;
+		}
+
+		@Override
+		protected void compute() {
+			logPs[index] = distribution.calculateLogP();
+		}
+	}
+}
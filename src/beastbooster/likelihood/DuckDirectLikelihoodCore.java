@@ -0,0 +1,423 @@
+package beastbooster.likelihood;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Likelihood core that keeps partials, transition matrices, tip states and scale factors
+ * in direct (off-heap) buffers, so the Java heap stays flat no matter how large the alignment
+ * is, and the garbage collector never needs to scan or move partials.
+ *
+ * Store/restore is the same as for BeerLikelihoodCore: every node has two buffers and
+ * currentPartialsIndex/currentMatrixIndex select which one is current.
+ *
+ * Note the amount of direct memory is limited by the JVM option -XX:MaxDirectMemorySize,
+ * which defaults to the maximum heap size.
+ */
+public class DuckDirectLikelihoodCore extends DuckLikelihoodCore {
+	/** same threshold as BeerLikelihoodCore **/
+	final static double SCALING_THRESHOLD = 1e-100;
+
+	/** maximum number of doubles in the block buffer, chosen to fit in L1/L2 cache **/
+	final static int BLOCK_BUFFER_SIZE = 4096;
+
+	protected DoubleBuffer[][] directPartials;
+	protected DoubleBuffer[][] directMatrices;
+	protected IntBuffer[] directStates;
+	protected DoubleBuffer[][] directScalingFactors;
+
+	/** heap work space, independent of the number of patterns **/
+	private double[] matrices1, matrices2, matrices3;
+	private double[] blockPartials;
+	private int blockSize;
+
+	public DuckDirectLikelihoodCore(int nrOfStates) {
+		super(nrOfStates);
+	}
+
+	/** does not call super.initialize() since that allocates matrices on the heap **/
+	@Override
+	public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+		if (!integrateCategories) {
+			throw new IllegalArgumentException("Off-heap partials only supported when integrating across categories");
+		}
+		this.nrOfNodes = nodeCount;
+		this.nrOfPatterns = patternCount;
+		this.nrOfMatrices = matrixCount;
+		this.integrateCategories = integrateCategories;
+
+		partialsSize = patternCount * nrOfStates * matrixCount;
+		matrixSize = nrOfStates * nrOfStates;
+
+		currentMatrixIndex = new int[nodeCount];
+		storedMatrixIndex = new int[nodeCount];
+		currentPartialsIndex = new int[nodeCount];
+		storedPartialsIndex = new int[nodeCount];
+
+		directPartials = new DoubleBuffer[2][nodeCount];
+		directStates = new IntBuffer[nodeCount];
+		directScalingFactors = new DoubleBuffer[2][nodeCount];
+		directMatrices = new DoubleBuffer[2][nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			directMatrices[0][i] = newDoubleBuffer(matrixCount * matrixSize);
+			directMatrices[1][i] = newDoubleBuffer(matrixCount * matrixSize);
+		}
+
+		matrices1 = new double[matrixCount * matrixSize];
+		matrices2 = new double[matrixCount * matrixSize];
+		matrices3 = new double[matrixCount * matrixSize];
+		blockSize = Math.max(1, Math.min(patternCount, BLOCK_BUFFER_SIZE / (nrOfStates * matrixCount)));
+		blockPartials = new double[blockSize * nrOfStates * matrixCount];
+	}
+
+	private static DoubleBuffer newDoubleBuffer(int size) {
+		return ByteBuffer.allocateDirect(size * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	@Override
+	public void finalize() throws Throwable {
+		nrOfNodes = 0;
+		directPartials = null;
+		directMatrices = null;
+		directStates = null;
+		directScalingFactors = null;
+	}
+
+	@Override
+	public void setUseScaling(double scale) {
+		useScaling = (scale != 1.0);
+		if (useScaling) {
+			for (int i = 0; i < nrOfNodes; i++) {
+				if (directPartials[0][i] != null && directScalingFactors[0][i] == null) {
+					createScalingFactors(i);
+				}
+			}
+		}
+	}
+
+	private void createScalingFactors(int nodeIndex) {
+		directScalingFactors[0][nodeIndex] = newDoubleBuffer(nrOfPatterns);
+		directScalingFactors[1][nodeIndex] = newDoubleBuffer(nrOfPatterns);
+	}
+
+	@Override
+	public double getLogScalingFactor(int patternIndex) {
+		double logScalingFactor = 0.0;
+		if (useScaling) {
+			for (int i = 0; i < nrOfNodes; i++) {
+				if (directScalingFactors[0][i] != null) {
+					logScalingFactor += directScalingFactors[currentPartialsIndex[i]][i].get(patternIndex);
+				}
+			}
+		}
+		return logScalingFactor;
+	}
+
+	@Override
+	public void createNodePartials(int nodeIndex) {
+		directPartials[0][nodeIndex] = newDoubleBuffer(partialsSize);
+		directPartials[1][nodeIndex] = newDoubleBuffer(partialsSize);
+		if (useScaling) {
+			createScalingFactors(nodeIndex);
+		}
+	}
+
+	@Override
+	public void setNodePartials(int nodeIndex, double[] partials) {
+		if (directPartials[0][nodeIndex] == null) {
+			createNodePartials(nodeIndex);
+		}
+		copyPartials(partials, directPartials[0][nodeIndex]);
+	}
+
+	@Override
+	public void setCurrentNodePartials(int nodeIndex, double[] partials) {
+		copyPartials(partials, directPartials[currentPartialsIndex[nodeIndex]][nodeIndex]);
+	}
+
+	/** copies partials, repeating them for every category if only one category is provided **/
+	private void copyPartials(double[] partials, DoubleBuffer target) {
+		((Buffer) target).position(0);
+		if (partials.length < partialsSize) {
+			for (int i = 0; i < nrOfMatrices; i++) {
+				target.put(partials, 0, partials.length);
+			}
+		} else {
+			target.put(partials, 0, partialsSize);
+		}
+	}
+
+	@Override
+	public void getNodePartials(int nodeIndex, double[] partialsOut) {
+		DoubleBuffer partials = directPartials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		((Buffer) partials).position(0);
+		partials.get(partialsOut, 0, partialsOut.length);
+	}
+
+	@Override
+	public void createNodeStates(int nodeIndex) {
+		directStates[nodeIndex] = ByteBuffer.allocateDirect(nrOfPatterns * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	@Override
+	public void setNodeStates(int nodeIndex, int[] states) {
+		if (directStates[nodeIndex] == null) {
+			createNodeStates(nodeIndex);
+		}
+		((Buffer) directStates[nodeIndex]).position(0);
+		directStates[nodeIndex].put(states, 0, nrOfPatterns);
+	}
+
+	@Override
+	public void getNodeStates(int nodeIndex, int[] states) {
+		((Buffer) directStates[nodeIndex]).position(0);
+		directStates[nodeIndex].get(states, 0, nrOfPatterns);
+	}
+
+	@Override
+	public void setNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+		DoubleBuffer matrices = directMatrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		((Buffer) matrices).position(matrixIndex * matrixSize);
+		matrices.put(matrix, 0, matrixSize);
+	}
+
+	@Override
+	public void setPaddedNodeMatrices(int nodeIndex, double[] matrix) {
+		DoubleBuffer matrices = directMatrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		((Buffer) matrices).position(0);
+		matrices.put(matrix, 0, nrOfMatrices * matrixSize);
+	}
+
+	@Override
+	public void getNodeMatrix(int nodeIndex, int matrixIndex, double[] matrix) {
+		DoubleBuffer matrices = directMatrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		((Buffer) matrices).position(matrixIndex * matrixSize);
+		matrices.get(matrix, 0, matrixSize);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+		calculateDirectPartials(nodeIndex1, nodeIndex2, -1, nodeIndex3);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4) {
+		calculateDirectPartials(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+		throw new RuntimeException("Off-heap partials only supported when integrating across categories");
+	}
+
+	/**
+	 * Calculates partials of parentIndex from two or three children (nodeIndex3 < 0 for two children)
+	 * one block of patterns at a time. Transition matrices are copied to the heap once per call,
+	 * since they do not depend on the number of patterns.
+	 */
+	private void calculateDirectPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int parentIndex) {
+		loadMatrices(nodeIndex1, matrices1);
+		loadMatrices(nodeIndex2, matrices2);
+		if (nodeIndex3 >= 0) {
+			loadMatrices(nodeIndex3, matrices3);
+		}
+
+		final DoubleBuffer partials = directPartials[currentPartialsIndex[parentIndex]][parentIndex];
+		final DoubleBuffer scaleFactors = useScaling ? directScalingFactors[currentPartialsIndex[parentIndex]][parentIndex] : null;
+		for (int k0 = 0; k0 < nrOfPatterns; k0 += blockSize) {
+			final int k1 = Math.min(k0 + blockSize, nrOfPatterns);
+			calculateChildBlock(nodeIndex1, matrices1, k0, k1, true);
+			calculateChildBlock(nodeIndex2, matrices2, k0, k1, false);
+			if (nodeIndex3 >= 0) {
+				calculateChildBlock(nodeIndex3, matrices3, k0, k1, false);
+			}
+			storeBlock(partials, scaleFactors, k0, k1);
+		}
+	}
+
+	private void loadMatrices(int nodeIndex, double[] matrices) {
+		DoubleBuffer buffer = directMatrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		((Buffer) buffer).position(0);
+		buffer.get(matrices, 0, matrices.length);
+	}
+
+	private void calculateChildBlock(int nodeIndex, double[] matrices, int k0, int k1, boolean first) {
+		if (directStates[nodeIndex] != null) {
+			calculateStatesBlock(directStates[nodeIndex], matrices, k0, k1, first);
+		} else {
+			calculatePartialsBlock(directPartials[currentPartialsIndex[nodeIndex]][nodeIndex], matrices, k0, k1, first);
+		}
+	}
+
+	/**
+	 * Sets (if first) or multiplies the block partials with the contribution of a child with states
+	 * for patterns k0 up to k1.
+	 */
+	protected void calculateStatesBlock(IntBuffer stateIndex, double[] matrices, int k0, int k1, boolean first) {
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			for (int k = k0; k < k1; k++) {
+				final int state = stateIndex.get(k);
+				int w = l * matrixSize + state;
+				if (state < nrOfStates) {
+					if (first) {
+						for (int i = 0; i < nrOfStates; i++) {
+							blockPartials[u + i] = matrices[w];
+							w += nrOfStates;
+						}
+					} else {
+						for (int i = 0; i < nrOfStates; i++) {
+							blockPartials[u + i] *= matrices[w];
+							w += nrOfStates;
+						}
+					}
+				} else if (first) {
+					// gap or unknown state, so child contributes 1 to every state
+					for (int i = 0; i < nrOfStates; i++) {
+						blockPartials[u + i] = 1.0;
+					}
+				}
+				u += nrOfStates;
+			}
+		}
+	}
+
+	/**
+	 * Sets (if first) or multiplies the block partials with the contribution of a child with partials
+	 * for patterns k0 up to k1.
+	 */
+	protected void calculatePartialsBlock(DoubleBuffer partials, double[] matrices, int k0, int k1, boolean first) {
+		if (nrOfStates == 4) {
+			calculatePartialsBlock4(partials, matrices, k0, k1, first);
+			return;
+		}
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			int v = (l * nrOfPatterns + k0) * nrOfStates;
+			for (int k = k0; k < k1; k++) {
+				int w = l * matrixSize;
+				for (int i = 0; i < nrOfStates; i++) {
+					double sum = 0.0;
+					for (int j = 0; j < nrOfStates; j++) {
+						sum += matrices[w] * partials.get(v + j);
+						w++;
+					}
+					if (first) {
+						blockPartials[u] = sum;
+					} else {
+						blockPartials[u] *= sum;
+					}
+					u++;
+				}
+				v += nrOfStates;
+			}
+		}
+	}
+
+	/** nucleotide version of calculatePartialsBlock, with the transition matrix in local variables **/
+	private void calculatePartialsBlock4(DoubleBuffer partials, double[] matrices, int k0, int k1, boolean first) {
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			final double m00 = matrices[w],      m01 = matrices[w + 1],  m02 = matrices[w + 2],  m03 = matrices[w + 3];
+			final double m10 = matrices[w + 4],  m11 = matrices[w + 5],  m12 = matrices[w + 6],  m13 = matrices[w + 7];
+			final double m20 = matrices[w + 8],  m21 = matrices[w + 9],  m22 = matrices[w + 10], m23 = matrices[w + 11];
+			final double m30 = matrices[w + 12], m31 = matrices[w + 13], m32 = matrices[w + 14], m33 = matrices[w + 15];
+			int v = (l * nrOfPatterns + k0) * 4;
+			for (int k = k0; k < k1; k++) {
+				final double p0 = partials.get(v), p1 = partials.get(v + 1), p2 = partials.get(v + 2), p3 = partials.get(v + 3);
+				final double s0 = m00 * p0 + m01 * p1 + m02 * p2 + m03 * p3;
+				final double s1 = m10 * p0 + m11 * p1 + m12 * p2 + m13 * p3;
+				final double s2 = m20 * p0 + m21 * p1 + m22 * p2 + m23 * p3;
+				final double s3 = m30 * p0 + m31 * p1 + m32 * p2 + m33 * p3;
+				if (first) {
+					blockPartials[u]     = s0;
+					blockPartials[u + 1] = s1;
+					blockPartials[u + 2] = s2;
+					blockPartials[u + 3] = s3;
+				} else {
+					blockPartials[u]     *= s0;
+					blockPartials[u + 1] *= s1;
+					blockPartials[u + 2] *= s2;
+					blockPartials[u + 3] *= s3;
+				}
+				u += 4;
+				v += 4;
+			}
+		}
+	}
+
+	/** copies patterns k0 up to k1 of the block into the off-heap partials, scaling them if required **/
+	private void storeBlock(DoubleBuffer partials, DoubleBuffer scaleFactors, int k0, int k1) {
+		final int categoryStride = (k1 - k0) * nrOfStates;
+		final int patternStride = nrOfPatterns * nrOfStates;
+		for (int k = k0; k < k1; k++) {
+			double scale = 1.0;
+			if (scaleFactors != null) {
+				double max = 0.0;
+				int u = (k - k0) * nrOfStates;
+				for (int l = 0; l < nrOfMatrices; l++) {
+					for (int i = 0; i < nrOfStates; i++) {
+						if (blockPartials[u + i] > max) {
+							max = blockPartials[u + i];
+						}
+					}
+					u += categoryStride;
+				}
+				if (max > 0.0 && max < SCALING_THRESHOLD) {
+					scale = 1.0 / max;
+					scaleFactors.put(k, Math.log(max));
+				} else {
+					scaleFactors.put(k, 0.0);
+				}
+			}
+
+			int u = (k - k0) * nrOfStates;
+			int v = k * nrOfStates;
+			for (int l = 0; l < nrOfMatrices; l++) {
+				for (int i = 0; i < nrOfStates; i++) {
+					partials.put(v + i, blockPartials[u + i] * scale);
+				}
+				u += categoryStride;
+				v += patternStride;
+			}
+		}
+	}
+
+	/** scaling is done while storing the partials in calculatePartials **/
+	@Override
+	protected void scalePartials(int nodeIndex) {
+	}
+
+	@Override
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		calculateLogLikelihoodsInSteps(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4,
+				proportions, frequencies, constantPattern, proportionInvariant, outLogLikelihoods);
+	}
+
+	@Override
+	public boolean canCalculatePreOrderPartials() {
+		return false;
+	}
+
+	@Override
+	public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+		final DoubleBuffer inPartials = directPartials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		final int size = nrOfPatterns * nrOfStates;
+		for (int u = 0; u < size; u++) {
+			outPartials[u] = inPartials.get(u) * proportions[0];
+		}
+		int v = size;
+		for (int l = 1; l < nrOfMatrices; l++) {
+			for (int u = 0; u < size; u++) {
+				outPartials[u] += inPartials.get(v) * proportions[l];
+				v++;
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package beastbooster.likelihood;
+
+/**
+ * Likelihood core that stores partials in single precision, halving the memory
+ * used by partials and the memory traffic of the pruning kernels.
+ *
+ * Products are calculated in double precision on a block of patterns, then scaled
+ * and rounded to float when stored. Scaling is always on: whenever the largest partial
+ * of a pattern drops below FLOAT_SCALING_THRESHOLD the pattern is normalised and the
+ * log of the scale factor recorded, so partials never underflow the float range.
+ */
+public class DuckFloatLikelihoodCore extends DuckLikelihoodCore {
+	/** patterns with all partials below this value get rescaled **/
+	final static double FLOAT_SCALING_THRESHOLD = 1e-20;
+
+	/** maximum number of doubles in the block buffer, chosen to fit in L1/L2 cache **/
+	final static int BLOCK_BUFFER_SIZE = 4096;
+
+	/** single precision partials, replacing BeerLikelihoodCore.partials **/
+	protected float[][][] floatPartials;
+
+	/** double precision work space for a block of patterns, laid out as [category][pattern][state] **/
+	protected double[] blockPartials;
+	protected int blockSize;
+
+	public DuckFloatLikelihoodCore(int nrOfStates) {
+		super(nrOfStates);
+	}
+
+	@Override
+	public void initialize(int nodeCount, int patternCount, int matrixCount, boolean integrateCategories, boolean useAmbiguities) {
+		super.initialize(nodeCount, patternCount, matrixCount, integrateCategories, useAmbiguities);
+		if (!integrateCategories) {
+			throw new IllegalArgumentException("Float partials only supported when integrating across categories");
+		}
+		floatPartials = new float[2][nodeCount][];
+
+		blockSize = Math.max(1, Math.min(patternCount, BLOCK_BUFFER_SIZE / (nrOfStates * matrixCount)));
+		blockPartials = new double[blockSize * nrOfStates * matrixCount];
+
+		useScaling = true;
+		scalingFactors = new double[2][nodeCount][patternCount];
+	}
+
+	@Override
+	public void finalize() throws Throwable {
+		super.finalize();
+		floatPartials = null;
+		blockPartials = null;
+	}
+
+	/** scaling is always on for float partials, so the scale argument is ignored **/
+	@Override
+	public void setUseScaling(double scale) {
+	}
+
+	@Override
+	public void createNodePartials(int nodeIndex) {
+		floatPartials[0][nodeIndex] = new float[partialsSize];
+		floatPartials[1][nodeIndex] = new float[partialsSize];
+	}
+
+	@Override
+	public void setNodePartials(int nodeIndex, double[] partials) {
+		if (floatPartials[0][nodeIndex] == null) {
+			createNodePartials(nodeIndex);
+		}
+		copyPartials(partials, floatPartials[0][nodeIndex]);
+	}
+
+	@Override
+	public void setCurrentNodePartials(int nodeIndex, double[] partials) {
+		copyPartials(partials, floatPartials[currentPartialsIndex[nodeIndex]][nodeIndex]);
+	}
+
+	/** copies partials, repeating them for every category if only one category is provided **/
+	private void copyPartials(double[] partials, float[] target) {
+		int k = 0;
+		while (k < partialsSize) {
+			for (int i = 0; i < partials.length && k < partialsSize; i++) {
+				target[k++] = (float) partials[i];
+			}
+		}
+	}
+
+	@Override
+	public void getNodePartials(int nodeIndex, double[] partialsOut) {
+		float [] partials = floatPartials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		for (int i = 0; i < partialsOut.length; i++) {
+			partialsOut[i] = partials[i];
+		}
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+		calculateFloatPartials(nodeIndex1, nodeIndex2, -1, nodeIndex3);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4) {
+		calculateFloatPartials(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4);
+	}
+
+	@Override
+	public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int[] matrixMap) {
+		throw new RuntimeException("Float partials only supported when integrating across categories");
+	}
+
+	/**
+	 * Calculates partials of parentIndex from two or three children (nodeIndex3 < 0 for two children)
+	 * one block of patterns at a time, so the double precision intermediates stay in cache.
+	 */
+	private void calculateFloatPartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int parentIndex) {
+		final float [] partials = floatPartials[currentPartialsIndex[parentIndex]][parentIndex];
+		final double [] scaleFactors = scalingFactors[currentPartialsIndex[parentIndex]][parentIndex];
+		for (int k0 = 0; k0 < nrOfPatterns; k0 += blockSize) {
+			final int k1 = Math.min(k0 + blockSize, nrOfPatterns);
+			calculateChildBlock(nodeIndex1, k0, k1, true);
+			calculateChildBlock(nodeIndex2, k0, k1, false);
+			if (nodeIndex3 >= 0) {
+				calculateChildBlock(nodeIndex3, k0, k1, false);
+			}
+			storeBlock(partials, scaleFactors, k0, k1);
+		}
+	}
+
+	private void calculateChildBlock(int nodeIndex, int k0, int k1, boolean first) {
+		final double [] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		if (states[nodeIndex] != null) {
+			calculateStatesBlock(states[nodeIndex], matrices, k0, k1, first);
+		} else {
+			calculatePartialsBlock(floatPartials[currentPartialsIndex[nodeIndex]][nodeIndex], matrices, k0, k1, first);
+		}
+	}
+
+	/**
+	 * Sets (if first) or multiplies the block partials with the contribution of a child with states
+	 * for patterns k0 up to k1.
+	 */
+	protected void calculateStatesBlock(int[] stateIndex, double[] matrices, int k0, int k1, boolean first) {
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			for (int k = k0; k < k1; k++) {
+				final int state = stateIndex[k];
+				int w = l * matrixSize + state;
+				if (state < nrOfStates) {
+					if (first) {
+						for (int i = 0; i < nrOfStates; i++) {
+							blockPartials[u + i] = matrices[w];
+							w += nrOfStates;
+						}
+					} else {
+						for (int i = 0; i < nrOfStates; i++) {
+							blockPartials[u + i] *= matrices[w];
+							w += nrOfStates;
+						}
+					}
+				} else if (first) {
+					// gap or unknown state, so child contributes 1 to every state
+					for (int i = 0; i < nrOfStates; i++) {
+						blockPartials[u + i] = 1.0;
+					}
+				}
+				u += nrOfStates;
+			}
+		}
+	}
+
+	/**
+	 * Sets (if first) or multiplies the block partials with the contribution of a child with partials
+	 * for patterns k0 up to k1.
+	 */
+	protected void calculatePartialsBlock(float[] partials, double[] matrices, int k0, int k1, boolean first) {
+		if (nrOfStates == 4) {
+			calculatePartialsBlock4(partials, matrices, k0, k1, first);
+			return;
+		}
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			int v = (l * nrOfPatterns + k0) * nrOfStates;
+			for (int k = k0; k < k1; k++) {
+				int w = l * matrixSize;
+				for (int i = 0; i < nrOfStates; i++) {
+					double sum = 0.0;
+					for (int j = 0; j < nrOfStates; j++) {
+						sum += matrices[w] * partials[v + j];
+						w++;
+					}
+					if (first) {
+						blockPartials[u] = sum;
+					} else {
+						blockPartials[u] *= sum;
+					}
+					u++;
+				}
+				v += nrOfStates;
+			}
+		}
+	}
+
+	/** nucleotide version of calculatePartialsBlock, with the transition matrix in local variables **/
+	private void calculatePartialsBlock4(float[] partials, double[] matrices, int k0, int k1, boolean first) {
+		int u = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			final double m00 = matrices[w],      m01 = matrices[w + 1],  m02 = matrices[w + 2],  m03 = matrices[w + 3];
+			final double m10 = matrices[w + 4],  m11 = matrices[w + 5],  m12 = matrices[w + 6],  m13 = matrices[w + 7];
+			final double m20 = matrices[w + 8],  m21 = matrices[w + 9],  m22 = matrices[w + 10], m23 = matrices[w + 11];
+			final double m30 = matrices[w + 12], m31 = matrices[w + 13], m32 = matrices[w + 14], m33 = matrices[w + 15];
+			int v = (l * nrOfPatterns + k0) * 4;
+			for (int k = k0; k < k1; k++) {
+				final double p0 = partials[v], p1 = partials[v + 1], p2 = partials[v + 2], p3 = partials[v + 3];
+				final double s0 = m00 * p0 + m01 * p1 + m02 * p2 + m03 * p3;
+				final double s1 = m10 * p0 + m11 * p1 + m12 * p2 + m13 * p3;
+				final double s2 = m20 * p0 + m21 * p1 + m22 * p2 + m23 * p3;
+				final double s3 = m30 * p0 + m31 * p1 + m32 * p2 + m33 * p3;
+				if (first) {
+					blockPartials[u]     = s0;
+					blockPartials[u + 1] = s1;
+					blockPartials[u + 2] = s2;
+					blockPartials[u + 3] = s3;
+				} else {
+					blockPartials[u]     *= s0;
+					blockPartials[u + 1] *= s1;
+					blockPartials[u + 2] *= s2;
+					blockPartials[u + 3] *= s3;
+				}
+				u += 4;
+				v += 4;
+			}
+		}
+	}
+
+	/** scales patterns k0 up to k1 of the block when required and rounds them into the float partials **/
+	private void storeBlock(float[] partials, double[] scaleFactors, int k0, int k1) {
+		final int categoryStride = (k1 - k0) * nrOfStates;
+		final int patternStride = nrOfPatterns * nrOfStates;
+		for (int k = k0; k < k1; k++) {
+			double max = 0.0;
+			int u = (k - k0) * nrOfStates;
+			for (int l = 0; l < nrOfMatrices; l++) {
+				for (int i = 0; i < nrOfStates; i++) {
+					if (blockPartials[u + i] > max) {
+						max = blockPartials[u + i];
+					}
+				}
+				u += categoryStride;
+			}
+
+			double scale = 1.0;
+			if (max > 0.0 && max < FLOAT_SCALING_THRESHOLD) {
+				scale = 1.0 / max;
+				scaleFactors[k] = Math.log(max);
+			} else {
+				scaleFactors[k] = 0.0;
+			}
+
+			u = (k - k0) * nrOfStates;
+			int v = k * nrOfStates;
+			for (int l = 0; l < nrOfMatrices; l++) {
+				for (int i = 0; i < nrOfStates; i++) {
+					partials[v + i] = (float) (blockPartials[u + i] * scale);
+				}
+				u += categoryStride;
+				v += patternStride;
+			}
+		}
+	}
+
+	/** scaling is done while storing the partials in calculatePartials **/
+	@Override
+	protected void scalePartials(int nodeIndex) {
+	}
+
+	@Override
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		calculateLogLikelihoodsInSteps(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4,
+				proportions, frequencies, constantPattern, proportionInvariant, outLogLikelihoods);
+	}
+
+	@Override
+	public boolean canCalculatePreOrderPartials() {
+		return false;
+	}
+
+	@Override
+	public void integratePartials(int nodeIndex, double[] proportions, double[] outPartials) {
+		final float [] inPartials = floatPartials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		final int size = nrOfPatterns * nrOfStates;
+		for (int u = 0; u < size; u++) {
+			outPartials[u] = inPartials[u] * proportions[0];
+		}
+		int v = size;
+		for (int l = 1; l < nrOfMatrices; l++) {
+			for (int u = 0; u < size; u++) {
+				outPartials[u] += inPartials[v] * proportions[l];
+				v++;
+			}
+		}
+	}
+}
@@ -1,9 +1,53 @@
 package beastbooster.likelihood;
 
+import java.util.Arrays;
+
 import beast.base.evolution.likelihood.BeerLikelihoodCore;
 
 public class DuckLikelihoodCore extends BeerLikelihoodCore {
 
+	/** patterns with all partials below this threshold are scaled, as in BeerLikelihoodCore **/
+	final static double SCALING_THRESHOLD = 1e-100;
+	/** number of patterns in a block of which the scaling factors are tracked as a whole **/
+	final static int SCALING_BLOCK_SIZE = 64;
+
+	/**
+	 * Dynamic scaling: for every partials index, node and block of patterns, whether the block
+	 * has non-zero scaling factors. All patterns are checked for underflow every time a node is
+	 * calculated, but only the patterns below the threshold are divided, and only the blocks
+	 * that were scaled need their scaling factors cleared or summed.
+	 */
+	private boolean[][][] scaleBlocks;
+	/** whether the scaling factors of a node can be non-zero, indexed by [partials index][node] **/
+	private boolean[][] nodeScaled;
+	/** sum of log scaling factors over all nodes, cached till scaling factors change **/
+	private double[] logScalingFactors;
+	private boolean logScalingFactorsKnown;
+
+	/** work space for tip state lookup tables, indexed by [category][state1][state2]([state3])[state] **/
+	private double[] stateLookup;
+
+	/** work space for root partials of a single pattern in calculateLogLikelihoods at the pseudo-root **/
+	private double[] patternPartials;
+	private double[] patternProduct;
+
+	/** work space for contributions of the neighbours of a node and their derivatives, indexed by [neighbour][state] **/
+	private double[][] neighbourValues;
+	private double[][] neighbourDerivatives;
+
+	/** integrated root partials for calculateLogLikelihoodsInSteps **/
+	private double[] integratedPartials;
+
+	/**
+	 * Pre-order (outside) partials, indexed by [buffer][node], laid out like the partials.
+	 * Entry [category][pattern][state] of a node is the likelihood of the part of the tree
+	 * outside the subtree below the node, jointly with the node being in that state.
+	 * Buffers are allocated for nodes on first use, and swapped on store/restore as the partials.
+	 */
+	private double[][][] preOrderPartials;
+	private int[] currentPreOrderIndex;
+	private int[] storedPreOrderIndex;
+
 	public DuckLikelihoodCore(int nrOfStates) {
 		super(nrOfStates);
 	}
@@ -99,7 +143,718 @@ public class DuckLikelihoodCore extends BeerLikelihoodCore {
 		}
 
 		if (useScaling) {
-			scalePartials(nodeIndex3);
+			scalePartials(nodeIndex4);
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods of a node with two children from buffers that are not owned by
+	 * this core, as used by JavaBeagle. Every child has either states or partials, the other being null.
+	 * Only the pattern and matrix counts set by initialize() are used, so the core needs no nodes.
+	 */
+	void calculateBufferPartials(int[] states1, double[] partials1, double[] matrices1,
+			int[] states2, double[] partials2, double[] matrices2, double[] partials3) {
+		if (states1 != null) {
+			if (states2 != null) {
+				calculateStatesStatesPruning(states1, matrices1, states2, matrices2, partials3);
+			} else {
+				calculateStatesPartialsPruning(states1, matrices1, partials2, matrices2, partials3);
+			}
+		} else {
+			if (states2 != null) {
+				calculateStatesPartialsPruning(states2, matrices2, partials1, matrices1, partials3);
+			} else {
+				calculatePartialsPartialsPruning(partials1, matrices1, partials2, matrices2, partials3);
+			}
+		}
+	}
+
+	@Override
+	public void setUseScaling(double scale) {
+		super.setUseScaling(scale);
+		if (useScaling) {
+			scaleBlocks = new boolean[2][nrOfNodes][(nrOfPatterns + SCALING_BLOCK_SIZE - 1) / SCALING_BLOCK_SIZE];
+			nodeScaled = new boolean[2][nrOfNodes];
+			logScalingFactors = new double[nrOfPatterns];
+		}
+		logScalingFactorsKnown = false;
+	}
+
+	/**
+	 * Scales partials of a node. Every pattern is checked, but the check of a pattern stops at
+	 * the first partial above the threshold, so it is cheap for patterns that do not underflow.
+	 */
+	@Override
+	protected void scalePartials(int nodeIndex) {
+		final int current = currentPartialsIndex[nodeIndex];
+		final double[] partials = this.partials[current][nodeIndex];
+		final double[] scaleFactors = this.scalingFactors[current][nodeIndex];
+		final boolean[] blocks = scaleBlocks[current][nodeIndex];
+
+		boolean scaled = false;
+		for (int b = 0; b < blocks.length; b++) {
+			final int k0 = b * SCALING_BLOCK_SIZE;
+			final int k1 = Math.min(k0 + SCALING_BLOCK_SIZE, nrOfPatterns);
+			if (blocks[b]) {
+				// clear factors of the previous calculation in this buffer
+				Arrays.fill(scaleFactors, k0, k1, 0.0);
+			}
+			blocks[b] = scalePatterns(partials, scaleFactors, k0, k1);
+			scaled |= blocks[b];
+		}
+		nodeScaled[current][nodeIndex] = scaled;
+		logScalingFactorsKnown = false;
+	}
+
+	/**
+	 * Scales patterns k0 up to k1 of partials of a node like BeerLikelihoodCore.scalePartials does,
+	 * setting scaling factors of the scaled patterns only, so the others should be zero already.
+	 * @return true if any of the patterns is scaled
+	 */
+	private boolean scalePatterns(double[] partials, double[] scaleFactors, int k0, int k1) {
+		final int S = nrOfStates;
+		final int categoryStride = nrOfPatterns * S;
+		boolean scaled = false;
+		for (int k = k0; k < k1; k++) {
+			double scaleFactor = 0.0;
+			boolean underflow = true;
+			check:
+			for (int v = k * S; v < partialsSize; v += categoryStride) {
+				for (int j = 0; j < S; j++) {
+					if (partials[v + j] >= SCALING_THRESHOLD) {
+						underflow = false;
+						break check;
+					}
+					if (partials[v + j] > scaleFactor) {
+						scaleFactor = partials[v + j];
+					}
+				}
+			}
+
+			if (underflow) {
+				for (int v = k * S; v < partialsSize; v += categoryStride) {
+					for (int j = 0; j < S; j++) {
+						partials[v + j] /= scaleFactor;
+					}
+				}
+				scaleFactors[k] = Math.log(scaleFactor);
+				scaled = true;
+			}
+		}
+		return scaled;
+	}
+
+	/**
+	 * Sum of log scaling factors of a pattern over all nodes. Sums for all patterns are
+	 * calculated at once, only over nodes that have been scaled, and cached until partials
+	 * are scaled again or restored, so moving the target without changing partials costs nothing.
+	 */
+	@Override
+	public double getLogScalingFactor(int patternIndex) {
+		if (!useScaling) {
+			return 0.0;
+		}
+		if (nodeScaled == null) {
+			return super.getLogScalingFactor(patternIndex);
+		}
+		if (!logScalingFactorsKnown) {
+			Arrays.fill(logScalingFactors, 0.0);
+			for (int i = 0; i < nrOfNodes; i++) {
+				final int current = currentPartialsIndex[i];
+				if (nodeScaled[current][i]) {
+					final double[] scaleFactors = scalingFactors[current][i];
+					final boolean[] blocks = scaleBlocks[current][i];
+					for (int b = 0; b < blocks.length; b++) {
+						if (blocks[b]) {
+							final int k1 = Math.min((b + 1) * SCALING_BLOCK_SIZE, nrOfPatterns);
+							for (int k = b * SCALING_BLOCK_SIZE; k < k1; k++) {
+								logScalingFactors[k] += scaleFactors[k];
+							}
+						}
+					}
+				}
+			}
+			logScalingFactorsKnown = true;
+		}
+		return logScalingFactors[patternIndex];
+	}
+
+	@Override
+	public void setNodePartialsForUpdate(int nodeIndex) {
+		super.setNodePartialsForUpdate(nodeIndex);
+		logScalingFactorsKnown = false;
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		if (currentPreOrderIndex != null) {
+			System.arraycopy(currentPreOrderIndex, 0, storedPreOrderIndex, 0, nrOfNodes);
+		}
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		logScalingFactorsKnown = false;
+		if (currentPreOrderIndex != null) {
+			int[] tmp = currentPreOrderIndex;
+			currentPreOrderIndex = storedPreOrderIndex;
+			storedPreOrderIndex = tmp;
+		}
+	}
+
+	@Override
+	public void unstore() {
+		super.unstore();
+		logScalingFactorsKnown = false;
+		if (currentPreOrderIndex != null) {
+			System.arraycopy(storedPreOrderIndex, 0, currentPreOrderIndex, 0, nrOfNodes);
+		}
+	}
+
+	/**
+	 * Calculates pattern log likelihoods at a pseudo-root with three children in a single pass
+	 * over the patterns. This gives the same result as calling calculatePartials(nodeIndex1, nodeIndex2,
+	 * nodeIndex3, nodeIndex4), integratePartials(nodeIndex4, ...), adding proportionInvariant to the
+	 * constant patterns and calculateLogLikelihoods(...), but the partials of nodeIndex4 and the
+	 * integrated partials are never written.
+	 * Scaling factors are not taken into account, so this should only be used without scaling.
+	 *
+	 * @param nodeIndex4 the 'parent' node, only used by cores that calculate in steps
+	 * @param constantPattern indices (pattern * nrOfStates + state) of states of constant patterns
+	 *        in increasing order, or null if there is no invariant category
+	 */
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		final int S = nrOfStates;
+		if (patternPartials == null) {
+			patternPartials = new double[S];
+			patternProduct = new double[S];
+		}
+		final double[] sum = patternPartials;
+		final double[] product = patternProduct;
+
+		int c = 0;
+		for (int k = 0; k < nrOfPatterns; k++) {
+			for (int i = 0; i < S; i++) {
+				sum[i] = 0.0;
+			}
+			for (int l = 0; l < nrOfMatrices; l++) {
+				final int w = l * matrixSize;
+				final int v = (l * nrOfPatterns + k) * S;
+				for (int i = 0; i < S; i++) {
+					product[i] = 1.0;
+				}
+				multiplyChildPattern(nodeIndex1, w, v, k, product);
+				multiplyChildPattern(nodeIndex2, w, v, k, product);
+				multiplyChildPattern(nodeIndex3, w, v, k, product);
+				for (int i = 0; i < S; i++) {
+					sum[i] += product[i] * proportions[l];
+				}
+			}
+
+			if (constantPattern != null) {
+				final int u = k * S;
+				while (c < constantPattern.length && constantPattern[c] < u + S) {
+					sum[constantPattern[c] - u] += proportionInvariant;
+					c++;
+				}
+			}
+
+			double likelihood = 0.0;
+			for (int i = 0; i < S; i++) {
+				likelihood += frequencies[i] * sum[i];
+			}
+			outLogLikelihoods[k] = Math.log(likelihood);
+		}
+	}
+
+	/**
+	 * Multiplies product[i] by the contribution of a child to state i of pattern k in the category
+	 * starting at matrix offset w and partials offset v.
+	 */
+	private void multiplyChildPattern(int nodeIndex, int w, int v, int k, double[] product) {
+		final int S = nrOfStates;
+		final double[] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		if (states[nodeIndex] != null) {
+			final int state = states[nodeIndex][k];
+			if (state < S) {
+				for (int i = 0; i < S; i++) {
+					product[i] *= matrices[w + state];
+					w += S;
+				}
+			}
+			// else child has a gap or unknown state so don't use it
+		} else {
+			final double[] partials = this.partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+			for (int i = 0; i < S; i++) {
+				double sum = 0.0;
+				for (int j = 0; j < S; j++) {
+					sum += matrices[w] * partials[v + j];
+					w++;
+				}
+				product[i] *= sum;
+			}
+		}
+	}
+
+	/**
+	 * Implementation of the fused calculateLogLikelihoods in separate steps, for cores that
+	 * do not keep partials in the partials arrays, or that have kernels for three children that
+	 * are faster than the per pattern loop of the fused calculation.
+	 */
+	protected void calculateLogLikelihoodsInSteps(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		if (integratedPartials == null) {
+			integratedPartials = new double[nrOfPatterns * nrOfStates];
+		}
+		calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4);
+		integratePartials(nodeIndex4, proportions, integratedPartials);
+		if (constantPattern != null) {
+			for (final int i : constantPattern) {
+				integratedPartials[i] += proportionInvariant;
+			}
+		}
+		calculateLogLikelihoods(integratedPartials, frequencies, outLogLikelihoods);
+	}
+
+	/**
+	 * Whether this core keeps partials in the partials arrays of BeerLikelihoodCore, which is
+	 * required for calculating pre-order partials and log likelihood derivatives.
+	 */
+	public boolean canCalculatePreOrderPartials() {
+		return true;
+	}
+
+	/**
+	 * Switches the pre-order partials buffer of a node, so the current one is kept for restore.
+	 */
+	public void setNodePreOrderPartialsForUpdate(int nodeIndex) {
+		if (preOrderPartials == null) {
+			preOrderPartials = new double[2][nrOfNodes][];
+			currentPreOrderIndex = new int[nrOfNodes];
+			storedPreOrderIndex = new int[nrOfNodes];
+		}
+		currentPreOrderIndex[nodeIndex] = 1 - currentPreOrderIndex[nodeIndex];
+		if (preOrderPartials[currentPreOrderIndex[nodeIndex]][nodeIndex] == null) {
+			preOrderPartials[currentPreOrderIndex[nodeIndex]][nodeIndex] = new double[partialsSize];
+		}
+	}
+
+	public void getNodePreOrderPartials(int nodeIndex, double[] outPartials) {
+		System.arraycopy(preOrderPartials[currentPreOrderIndex[nodeIndex]][nodeIndex], 0, outPartials, 0, partialsSize);
+	}
+
+	/**
+	 * Calculates pre-order partials of a node from the pre-order partials of its parent and the
+	 * partials of its sibling. The matrices of node and sibling should be those of the branches
+	 * above them, as for calculating the partials of the parent.
+	 */
+	public void calculatePreOrderPartials(int parentIndex, int siblingIndex, int nodeIndex) {
+		calculatePreOrderPartials(preOrderPartials[currentPreOrderIndex[parentIndex]][parentIndex], null,
+				siblingIndex, nodeIndex);
+	}
+
+	/**
+	 * Calculates pre-order partials of a child of the root, for which the pre-order partials
+	 * of the root are the state frequencies.
+	 */
+	public void calculateRootChildPreOrderPartials(double[] frequencies, int siblingIndex, int nodeIndex) {
+		calculatePreOrderPartials(null, frequencies, siblingIndex, nodeIndex);
+	}
+
+	private void calculatePreOrderPartials(double[] parentPreOrderPartials, double[] frequencies,
+			int siblingIndex, int nodeIndex) {
+		final int S = nrOfStates;
+		if (patternPartials == null) {
+			patternPartials = new double[S];
+			patternProduct = new double[S];
+		}
+		final double[] parent = patternPartials;
+		final double[] nodeMatrices = matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		final double[] out = preOrderPartials[currentPreOrderIndex[nodeIndex]][nodeIndex];
+
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				parentPattern(parentPreOrderPartials, frequencies, siblingIndex, w, v, k, parent);
+
+				// down the branch to the node
+				for (int j = 0; j < S; j++) {
+					double sum = 0.0;
+					int u = w + j;
+					for (int i = 0; i < S; i++) {
+						sum += parent[i] * nodeMatrices[u];
+						u += S;
+					}
+					out[v + j] = sum;
+				}
+				v += S;
+			}
+		}
+	}
+
+	/**
+	 * Sets parent[i] to the likelihood of the part of the tree outside the subtree below the parent
+	 * jointly with the parent being in state i, including the sibling, for pattern k in the category
+	 * starting at matrix offset w and partials offset v.
+	 * If parentPreOrderPartials is null, the parent is the root and the frequencies are used instead.
+	 */
+	private void parentPattern(double[] parentPreOrderPartials, double[] frequencies, int siblingIndex,
+			int w, int v, int k, double[] parent) {
+		final int S = nrOfStates;
+		final double[] siblingMatrices = matrices[currentMatrixIndex[siblingIndex]][siblingIndex];
+		if (states[siblingIndex] != null) {
+			final int state = states[siblingIndex][k];
+			for (int i = 0; i < S; i++) {
+				parent[i] = state < S ? siblingMatrices[w + i * S + state] : 1.0;
+			}
+		} else {
+			final double[] siblingPartials = partials[currentPartialsIndex[siblingIndex]][siblingIndex];
+			for (int i = 0; i < S; i++) {
+				double sum = 0.0;
+				for (int j = 0; j < S; j++) {
+					sum += siblingMatrices[w] * siblingPartials[v + j];
+					w++;
+				}
+				parent[i] = sum;
+			}
+		}
+		if (parentPreOrderPartials != null) {
+			for (int i = 0; i < S; i++) {
+				parent[i] *= parentPreOrderPartials[v + i];
+			}
+		} else {
+			for (int i = 0; i < S; i++) {
+				parent[i] *= frequencies[i];
+			}
+		}
+	}
+
+	/**
+	 * Calculates pattern log likelihoods at a node from its partials and pre-order partials.
+	 * This gives the same result as calculating the likelihood at the root, but only requires
+	 * the partials and pre-order partials of the node to be up to date.
+	 * Scaling factors are not taken into account, so this should only be used without scaling.
+	 *
+	 * @param constantPattern indices (pattern * nrOfStates + state) of states of constant patterns,
+	 *        or null if there is no invariant category
+	 */
+	public void calculatePreOrderLogLikelihoods(int nodeIndex, double[] proportions, double[] frequencies,
+			int[] constantPattern, double proportionInvariant, double[] outLogLikelihoods) {
+		final int S = nrOfStates;
+		final double[] partials = this.partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+		final double[] preOrderPartials = this.preOrderPartials[currentPreOrderIndex[nodeIndex]][nodeIndex];
+
+		for (int k = 0; k < nrOfPatterns; k++) {
+			outLogLikelihoods[k] = 0.0;
+		}
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final double proportion = proportions[l];
+			for (int k = 0; k < nrOfPatterns; k++) {
+				double sum = 0.0;
+				for (int i = 0; i < S; i++) {
+					sum += partials[v] * preOrderPartials[v];
+					v++;
+				}
+				outLogLikelihoods[k] += sum * proportion;
+			}
+		}
+
+		if (constantPattern != null) {
+			for (final int i : constantPattern) {
+				outLogLikelihoods[i / S] += proportionInvariant * frequencies[i % S];
+			}
+		}
+		for (int k = 0; k < nrOfPatterns; k++) {
+			outLogLikelihoods[k] = Math.log(outLogLikelihoods[k]);
+		}
+	}
+
+	/**
+	 * Calculates derivatives of pattern log likelihoods at a pseudo-root with three neighbours with respect
+	 * to some quantity x, typically the height of the pseudo-root, from the derivatives of the transition
+	 * probability matrices of the neighbours with respect to x. The likelihood is that of
+	 * calculateLogLikelihoods(nodeIndex1, nodeIndex2, nodeIndex3, ...).
+	 * Since partials of every node are scaled per pattern, scaling factors cancel out and do not need
+	 * to be taken into account.
+	 *
+	 * @param nodeIndex3 third neighbour, or -1 for a pseudo-root with two neighbours
+	 * @param derivatives1 derivatives of the matrices of nodeIndex1, laid out like the matrices,
+	 *        or null if these do not depend on x
+	 * @param constantPattern indices (pattern * nrOfStates + state) of states of constant patterns
+	 *        in increasing order, or null if there is no invariant category
+	 */
+	public void calculateLogLikelihoodDerivatives(int nodeIndex1, int nodeIndex2, int nodeIndex3,
+			double[] derivatives1, double[] derivatives2, double[] derivatives3,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outDerivatives) {
+		calculateLogLikelihoodDerivatives(nodeIndex1, nodeIndex2, nodeIndex3, derivatives1, derivatives2, derivatives3,
+				null, -1, proportions, frequencies, constantPattern, proportionInvariant, outDerivatives);
+	}
+
+	/**
+	 * Calculates derivatives of pattern log likelihoods at a node with respect to some quantity x from
+	 * the derivatives of the transition probability matrices of the node and its children with respect to x,
+	 * using partials of the children and pre-order partials of the parent.
+	 *
+	 * @param parentIndex parent of the node, or -1 if the parent is the root
+	 * @param derivatives derivatives of the matrices of the node, laid out like the matrices,
+	 *        or null if these do not depend on x
+	 */
+	public void calculatePreOrderLogLikelihoodDerivatives(int parentIndex, int siblingIndex, int nodeIndex,
+			int childIndex1, int childIndex2, double[] derivatives, double[] derivatives1, double[] derivatives2,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outDerivatives) {
+		final double[] parentPreOrderPartials = parentIndex < 0 ? null : preOrderPartials[currentPreOrderIndex[parentIndex]][parentIndex];
+		calculateLogLikelihoodDerivatives(childIndex1, childIndex2, nodeIndex, derivatives1, derivatives2, derivatives,
+				parentPreOrderPartials, siblingIndex, proportions, frequencies, constantPattern, proportionInvariant, outDerivatives);
+	}
+
+	/**
+	 * If siblingIndex >= 0, the contribution of nodeIndex3 is the outside likelihood of its parent,
+	 * pushed down the branch of nodeIndex3, and frequencies are already accounted for in it.
+	 */
+	private void calculateLogLikelihoodDerivatives(int nodeIndex1, int nodeIndex2, int nodeIndex3,
+			double[] derivatives1, double[] derivatives2, double[] derivatives3,
+			double[] parentPreOrderPartials, int siblingIndex,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outDerivatives) {
+		final int S = nrOfStates;
+		if (neighbourValues == null) {
+			neighbourValues = new double[4][S];
+			neighbourDerivatives = new double[3][S];
+		}
+		final double[] value1 = neighbourValues[0], value2 = neighbourValues[1], value3 = neighbourValues[2];
+		final double[] derivative1 = neighbourDerivatives[0], derivative2 = neighbourDerivatives[1], derivative3 = neighbourDerivatives[2];
+		final double[] parent = neighbourValues[3];
+		final boolean preOrder = siblingIndex >= 0;
+
+		int c = 0;
+		for (int k = 0; k < nrOfPatterns; k++) {
+			double likelihood = 0.0;
+			double derivative = 0.0;
+			for (int l = 0; l < nrOfMatrices; l++) {
+				final int w = l * matrixSize;
+				final int v = (l * nrOfPatterns + k) * S;
+				neighbourPattern(nodeIndex1, derivatives1, w, v, k, value1, derivative1);
+				neighbourPattern(nodeIndex2, derivatives2, w, v, k, value2, derivative2);
+				if (preOrder) {
+					parentPattern(parentPreOrderPartials, frequencies, siblingIndex, w, v, k, parent);
+					outsidePattern(nodeIndex3, derivatives3, w, parent, value3, derivative3);
+				} else {
+					neighbourPattern(nodeIndex3, derivatives3, w, v, k, value3, derivative3);
+				}
+				double sum = 0.0;
+				double derivativeSum = 0.0;
+				for (int i = 0; i < S; i++) {
+					final double f = preOrder ? 1.0 : frequencies[i];
+					sum += f * value1[i] * value2[i] * value3[i];
+					derivativeSum += f * (derivative1[i] * value2[i] * value3[i] +
+							value1[i] * derivative2[i] * value3[i] +
+							value1[i] * value2[i] * derivative3[i]);
+				}
+				likelihood += sum * proportions[l];
+				derivative += derivativeSum * proportions[l];
+			}
+
+			if (constantPattern != null) {
+				final int u = k * S;
+				while (c < constantPattern.length && constantPattern[c] < u + S) {
+					likelihood += proportionInvariant * frequencies[constantPattern[c] - u];
+					c++;
+				}
+			}
+			outDerivatives[k] = derivative / likelihood;
+		}
+	}
+
+	/**
+	 * Sets value[i] to the contribution of a neighbour to state i of pattern k in the category starting at
+	 * matrix offset w and partials offset v, and derivative[i] to its derivative.
+	 */
+	private void neighbourPattern(int nodeIndex, double[] derivatives, int w, int v, int k,
+			double[] value, double[] derivative) {
+		final int S = nrOfStates;
+		if (nodeIndex < 0) {
+			for (int i = 0; i < S; i++) {
+				value[i] = 1.0;
+				derivative[i] = 0.0;
+			}
+			return;
+		}
+		final double[] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		if (states[nodeIndex] != null) {
+			final int state = states[nodeIndex][k];
+			for (int i = 0; i < S; i++) {
+				if (state < S) {
+					value[i] = matrices[w + i * S + state];
+					derivative[i] = derivatives == null ? 0.0 : derivatives[w + i * S + state];
+				} else {
+					// gap or unknown state
+					value[i] = 1.0;
+					derivative[i] = 0.0;
+				}
+			}
+		} else {
+			final double[] partials = this.partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+			for (int i = 0; i < S; i++) {
+				double sum = 0.0;
+				double derivativeSum = 0.0;
+				for (int j = 0; j < S; j++) {
+					sum += matrices[w] * partials[v + j];
+					if (derivatives != null) {
+						derivativeSum += derivatives[w] * partials[v + j];
+					}
+					w++;
+				}
+				value[i] = sum;
+				derivative[i] = derivativeSum;
+			}
+		}
+	}
+
+	/**
+	 * Sets value[j] to the outside likelihood of the parent pushed down the branch to the node, that is,
+	 * the pre-order partials of the node, and derivative[j] to its derivative.
+	 */
+	private void outsidePattern(int nodeIndex, double[] derivatives, int w, double[] parent,
+			double[] value, double[] derivative) {
+		final int S = nrOfStates;
+		final double[] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		for (int j = 0; j < S; j++) {
+			double sum = 0.0;
+			double derivativeSum = 0.0;
+			int u = w + j;
+			for (int i = 0; i < S; i++) {
+				sum += parent[i] * matrices[u];
+				if (derivatives != null) {
+					derivativeSum += parent[i] * derivatives[u];
+				}
+				u += S;
+			}
+			value[j] = sum;
+			derivative[j] = derivativeSum;
+		}
+	}
+
+	@Override
+	protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
+			int[] stateIndex2, double[] matrices2,
+			double[] partials3) {
+		if (useStateLookup(2)) {
+			calculateStatesStatesLookup(stateIndex1, matrices1, stateIndex2, matrices2, partials3);
+		} else {
+			super.calculateStatesStatesPruning(stateIndex1, matrices1, stateIndex2, matrices2, partials3);
+		}
+	}
+
+	/**
+	 * With S states there are only (S+1)^childCount combinations of tip states (including gaps),
+	 * so when there are more patterns than that it is cheaper to calculate partials for every
+	 * combination once and look them up per pattern.
+	 */
+	protected boolean useStateLookup(int childCount) {
+		long combinations = 1;
+		for (int i = 0; i < childCount; i++) {
+			combinations *= nrOfStates + 1;
+		}
+		return nrOfPatterns > combinations;
+	}
+
+	private double[] getStateLookup(int size) {
+		if (stateLookup == null || stateLookup.length < size) {
+			stateLookup = new double[size];
+		}
+		return stateLookup;
+	}
+
+	/**
+	 * Calculates partials at a node with two children that have states via a lookup table.
+	 * Gaps and unknown states (state >= nrOfStates) contribute 1, as in calculateStatesStatesPruning.
+	 */
+	protected void calculateStatesStatesLookup(int[] stateIndex1, double[] matrices1,
+			int[] stateIndex2, double[] matrices2,
+			double[] partials3) {
+		final int S = nrOfStates;
+		final int T = S + 1;
+		final int tableSize = T * T * S;
+		final double [] table = getStateLookup(nrOfMatrices * tableSize);
+
+		int x = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			for (int state1 = 0; state1 < T; state1++) {
+				for (int state2 = 0; state2 < T; state2++) {
+					for (int i = 0; i < S; i++) {
+						final double a = state1 < S ? matrices1[w + i * S + state1] : 1.0;
+						final double b = state2 < S ? matrices2[w + i * S + state2] : 1.0;
+						table[x++] = a * b;
+					}
+				}
+			}
+		}
+
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int offset = l * tableSize;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = Math.min(stateIndex1[k], S);
+				final int state2 = Math.min(stateIndex2[k], S);
+				final int t = offset + (state1 * T + state2) * S;
+				for (int i = 0; i < S; i++) {
+					partials3[v++] = table[t + i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates partials at a node with three children that have states via a lookup table.
+	 */
+	protected void calculateStatesStatesStatesLookup(int[] stateIndex1, double[] matrices1,
+			int[] stateIndex2, double[] matrices2,
+			int[] stateIndex3, double[] matrices3,
+			double[] partials4) {
+		final int S = nrOfStates;
+		final int T = S + 1;
+		final int tableSize = T * T * T * S;
+		final double [] table = getStateLookup(nrOfMatrices * tableSize);
+
+		int x = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w = l * matrixSize;
+			for (int state1 = 0; state1 < T; state1++) {
+				for (int state2 = 0; state2 < T; state2++) {
+					for (int state3 = 0; state3 < T; state3++) {
+						for (int i = 0; i < S; i++) {
+							final double a = state1 < S ? matrices1[w + i * S + state1] : 1.0;
+							final double b = state2 < S ? matrices2[w + i * S + state2] : 1.0;
+							final double c = state3 < S ? matrices3[w + i * S + state3] : 1.0;
+							table[x++] = a * b * c;
+						}
+					}
+				}
+			}
+		}
+
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int offset = l * tableSize;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = Math.min(stateIndex1[k], S);
+				final int state2 = Math.min(stateIndex2[k], S);
+				final int state3 = Math.min(stateIndex3[k], S);
+				final int t = offset + ((state1 * T + state2) * T + state3) * S;
+				for (int i = 0; i < S; i++) {
+					partials4[v++] = table[t + i];
+				}
+			}
 		}
 	}
 
@@ -109,6 +864,10 @@ public class DuckLikelihoodCore extends BeerLikelihoodCore {
 			int[] stateIndex3, double[] matrices3, 
 			double[] partials4) {
 		   // should never get here for binary tree?
+			if (useStateLookup(3)) {
+				calculateStatesStatesStatesLookup(stateIndex1, matrices1, stateIndex2, matrices2, stateIndex3, matrices3, partials4);
+				return;
+			}
 		
 	       int v = 0;
 
@@ -0,0 +1,256 @@
+package beastbooster.likelihood;
+
+/**
+ * Amino acid core with the number of states fixed at 20, so loop bounds are constants
+ * the JIT can unroll. Matrix-vector products are blocked over 4 rows of the transition
+ * matrix at a time, so every child partial loaded is used for 4 rows and the 4 row sums
+ * are independent (more instruction level parallelism than a single running sum).
+ *
+ * Every row is still summed in the same order as in DuckLikelihoodCore, so results are
+ * identical to the generic core.
+ */
+public class DuckLikelihoodCore20 extends DuckLikelihoodCore {
+	final static int STATES = 20;
+	final static int MATRIX_SIZE = STATES * STATES;
+
+	public DuckLikelihoodCore20(int stateCount) {
+		super(20);
+		if (stateCount != 20) {
+			throw new RuntimeException("DuckLikelihoodCore20 only supports 20 states, not " + stateCount);
+		}
+	}
+
+	/**
+	 * Prunes into nodeIndex4 with the blocked kernel for three children instead of the generic
+	 * per pattern loop, which reads the full transition matrices for every pattern.
+	 */
+	@Override
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		calculateLogLikelihoodsInSteps(nodeIndex1, nodeIndex2, nodeIndex3, nodeIndex4,
+				proportions, frequencies, constantPattern, proportionInvariant, outLogLikelihoods);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials.
+	 */
+	@Override
+	protected void calculatePartialsPartialsPruning(double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3) {
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w0 = l * MATRIX_SIZE;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				for (int i = 0; i < STATES; i += 4) {
+					final int w = w0 + i * STATES;
+					double a0 = 0.0, a1 = 0.0, a2 = 0.0, a3 = 0.0;
+					double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0;
+					for (int j = 0; j < STATES; j++) {
+						final double p = partials1[v + j];
+						final double q = partials2[v + j];
+						a0 += matrices1[w + j] * p;
+						a1 += matrices1[w + STATES + j] * p;
+						a2 += matrices1[w + 2 * STATES + j] * p;
+						a3 += matrices1[w + 3 * STATES + j] * p;
+						b0 += matrices2[w + j] * q;
+						b1 += matrices2[w + STATES + j] * q;
+						b2 += matrices2[w + 2 * STATES + j] * q;
+						b3 += matrices2[w + 3 * STATES + j] * q;
+					}
+					partials3[v + i]     = a0 * b0;
+					partials3[v + i + 1] = a1 * b1;
+					partials3[v + i + 2] = a2 * b2;
+					partials3[v + i + 3] = a3 * b3;
+				}
+				v += STATES;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 */
+	@Override
+	protected void calculateStatesPartialsPruning(int[] stateIndex1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3) {
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w0 = l * MATRIX_SIZE;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				for (int i = 0; i < STATES; i += 4) {
+					final int w = w0 + i * STATES;
+					double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0;
+					for (int j = 0; j < STATES; j++) {
+						final double q = partials2[v + j];
+						b0 += matrices2[w + j] * q;
+						b1 += matrices2[w + STATES + j] * q;
+						b2 += matrices2[w + 2 * STATES + j] * q;
+						b3 += matrices2[w + 3 * STATES + j] * q;
+					}
+					if (state1 < STATES) {
+						partials3[v + i]     = matrices1[w + state1] * b0;
+						partials3[v + i + 1] = matrices1[w + STATES + state1] * b1;
+						partials3[v + i + 2] = matrices1[w + 2 * STATES + state1] * b2;
+						partials3[v + i + 3] = matrices1[w + 3 * STATES + state1] * b3;
+					} else {
+						// Child 1 has a gap or unknown state so don't use it
+						partials3[v + i]     = b0;
+						partials3[v + i + 1] = b1;
+						partials3[v + i + 2] = b2;
+						partials3[v + i + 3] = b3;
+					}
+				}
+				v += STATES;
+			}
+		}
+	}
+
+	@Override
+	protected void calculatePartialsPartialsPartialsPruning(
+			double[] partials1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w0 = l * MATRIX_SIZE;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				for (int i = 0; i < STATES; i += 4) {
+					final int w = w0 + i * STATES;
+					double a0 = 0.0, a1 = 0.0, a2 = 0.0, a3 = 0.0;
+					double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0;
+					double c0 = 0.0, c1 = 0.0, c2 = 0.0, c3 = 0.0;
+					for (int j = 0; j < STATES; j++) {
+						final double p = partials1[v + j];
+						final double q = partials2[v + j];
+						final double r = partials3[v + j];
+						a0 += matrices1[w + j] * p;
+						a1 += matrices1[w + STATES + j] * p;
+						a2 += matrices1[w + 2 * STATES + j] * p;
+						a3 += matrices1[w + 3 * STATES + j] * p;
+						b0 += matrices2[w + j] * q;
+						b1 += matrices2[w + STATES + j] * q;
+						b2 += matrices2[w + 2 * STATES + j] * q;
+						b3 += matrices2[w + 3 * STATES + j] * q;
+						c0 += matrices3[w + j] * r;
+						c1 += matrices3[w + STATES + j] * r;
+						c2 += matrices3[w + 2 * STATES + j] * r;
+						c3 += matrices3[w + 3 * STATES + j] * r;
+					}
+					partials4[v + i]     = a0 * b0 * c0;
+					partials4[v + i + 1] = a1 * b1 * c1;
+					partials4[v + i + 2] = a2 * b2 * c2;
+					partials4[v + i + 3] = a3 * b3 * c3;
+				}
+				v += STATES;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and two have partials.
+	 */
+	@Override
+	protected void calculateStatesPartialsPartialsPruning(int[] stateIndex1, double[] matrices1,
+			double[] partials2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w0 = l * MATRIX_SIZE;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				for (int i = 0; i < STATES; i += 4) {
+					final int w = w0 + i * STATES;
+					double b0 = 0.0, b1 = 0.0, b2 = 0.0, b3 = 0.0;
+					double c0 = 0.0, c1 = 0.0, c2 = 0.0, c3 = 0.0;
+					for (int j = 0; j < STATES; j++) {
+						final double q = partials2[v + j];
+						final double r = partials3[v + j];
+						b0 += matrices2[w + j] * q;
+						b1 += matrices2[w + STATES + j] * q;
+						b2 += matrices2[w + 2 * STATES + j] * q;
+						b3 += matrices2[w + 3 * STATES + j] * q;
+						c0 += matrices3[w + j] * r;
+						c1 += matrices3[w + STATES + j] * r;
+						c2 += matrices3[w + 2 * STATES + j] * r;
+						c3 += matrices3[w + 3 * STATES + j] * r;
+					}
+					if (state1 < STATES) {
+						partials4[v + i]     = matrices1[w + state1] * b0 * c0;
+						partials4[v + i + 1] = matrices1[w + STATES + state1] * b1 * c1;
+						partials4[v + i + 2] = matrices1[w + 2 * STATES + state1] * b2 * c2;
+						partials4[v + i + 3] = matrices1[w + 3 * STATES + state1] * b3 * c3;
+					} else {
+						// Child 1 has a gap or unknown state so don't use it
+						partials4[v + i]     = b0 * c0;
+						partials4[v + i + 1] = b1 * c1;
+						partials4[v + i + 2] = b2 * c2;
+						partials4[v + i + 3] = b3 * c3;
+					}
+				}
+				v += STATES;
+			}
+		}
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when two children have states and one has partials.
+	 */
+	@Override
+	protected void calculateStatesStatesPartialsPruning(
+			int[] stateIndex1, double[] matrices1,
+			int[] stateIndex2, double[] matrices2,
+			double[] partials3, double[] matrices3,
+			double[] partials4) {
+		int v = 0;
+		for (int l = 0; l < nrOfMatrices; l++) {
+			final int w0 = l * MATRIX_SIZE;
+			for (int k = 0; k < nrOfPatterns; k++) {
+				final int state1 = stateIndex1[k];
+				final int state2 = stateIndex2[k];
+				for (int i = 0; i < STATES; i += 4) {
+					final int w = w0 + i * STATES;
+					double c0 = 0.0, c1 = 0.0, c2 = 0.0, c3 = 0.0;
+					for (int j = 0; j < STATES; j++) {
+						final double r = partials3[v + j];
+						c0 += matrices3[w + j] * r;
+						c1 += matrices3[w + STATES + j] * r;
+						c2 += matrices3[w + 2 * STATES + j] * r;
+						c3 += matrices3[w + 3 * STATES + j] * r;
+					}
+					if (state1 < STATES && state2 < STATES) {
+						partials4[v + i]     = matrices1[w + state1] * matrices2[w + state2] * c0;
+						partials4[v + i + 1] = matrices1[w + STATES + state1] * matrices2[w + STATES + state2] * c1;
+						partials4[v + i + 2] = matrices1[w + 2 * STATES + state1] * matrices2[w + 2 * STATES + state2] * c2;
+						partials4[v + i + 3] = matrices1[w + 3 * STATES + state1] * matrices2[w + 3 * STATES + state2] * c3;
+					} else if (state1 < STATES) {
+						// child 2 has a gap or unknown state so treat it as unknown
+						partials4[v + i]     = matrices1[w + state1] * c0;
+						partials4[v + i + 1] = matrices1[w + STATES + state1] * c1;
+						partials4[v + i + 2] = matrices1[w + 2 * STATES + state1] * c2;
+						partials4[v + i + 3] = matrices1[w + 3 * STATES + state1] * c3;
+					} else if (state2 < STATES) {
+						// child 1 has a gap or unknown state so treat it as unknown
+						partials4[v + i]     = matrices2[w + state2] * c0;
+						partials4[v + i + 1] = matrices2[w + STATES + state2] * c1;
+						partials4[v + i + 2] = matrices2[w + 2 * STATES + state2] * c2;
+						partials4[v + i + 3] = matrices2[w + 3 * STATES + state2] * c3;
+					} else {
+						// both children have a gap or unknown state so set partials to 1
+						partials4[v + i]     = c0;
+						partials4[v + i + 1] = c1;
+						partials4[v + i + 2] = c2;
+						partials4[v + i + 3] = c3;
+					}
+				}
+				v += STATES;
+			}
+		}
+	}
+
+}
@@ -19,6 +19,10 @@ public class DuckLikelihoodCore4 extends DuckLikelihoodCore {
 			int[] stateIndex3, double[] matrices3, 
 			double[] partials4) {
 		   // should never get here for binary tree?
+			if (useStateLookup(3)) {
+				calculateStatesStatesStatesLookup(stateIndex1, matrices1, stateIndex2, matrices2, stateIndex3, matrices3, partials4);
+				return;
+			}
 		
 	       int v = 0;
 
@@ -80,9 +84,6 @@ public class DuckLikelihoodCore4 extends DuckLikelihoodCore {
 			                        partials4[v] = matrices1[w + state1] * matrices3[w + state3];
 			                        v++;
 			                        w += 4;
-			                        partials4[v] = matrices1[w + state1] * matrices3[w + state3];
-			                        v++;
-			                        w += 4;
 //			                    }
 	                		} else {
 //			                    for (int i = 0; i < 4; i++) {
@@ -421,6 +422,11 @@ public class DuckLikelihoodCore4 extends DuckLikelihoodCore {
 	protected void calculateStatesStatesPruning(int[] stateIndex1, double[] matrices1,
                                                 int[] stateIndex2, double[] matrices2,
                                                 double[] partials3) {
+		if (useStateLookup(2)) {
+			calculateStatesStatesLookup(stateIndex1, matrices1, stateIndex2, matrices2, partials3);
+			return;
+		}
+
         int v = 0;
 
         for (int l = 0; l < nrOfMatrices; l++) {
@@ -651,6 +657,78 @@ public class DuckLikelihoodCore4 extends DuckLikelihoodCore {
         }
     }
 
+	/** product of child contributions for the 4 states of a single pattern and category **/
+	private final double[] product4 = new double[4];
+
+	/**
+	 * Fused pruning, integration and log likelihood calculation at a pseudo-root
+	 * with three children, unrolled for 4 states.
+	 */
+	@Override
+	public void calculateLogLikelihoods(int nodeIndex1, int nodeIndex2, int nodeIndex3, int nodeIndex4,
+			double[] proportions, double[] frequencies, int[] constantPattern, double proportionInvariant,
+			double[] outLogLikelihoods) {
+		final double[] product = product4;
+		final double f0 = frequencies[0], f1 = frequencies[1], f2 = frequencies[2], f3 = frequencies[3];
+
+		int c = 0;
+		for (int k = 0; k < nrOfPatterns; k++) {
+			double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+			for (int l = 0; l < nrOfMatrices; l++) {
+				final int w = l * matrixSize;
+				final int v = (l * nrOfPatterns + k) * 4;
+				product[0] = 1.0;
+				product[1] = 1.0;
+				product[2] = 1.0;
+				product[3] = 1.0;
+				multiplyChildPattern4(nodeIndex1, w, v, k, product);
+				multiplyChildPattern4(nodeIndex2, w, v, k, product);
+				multiplyChildPattern4(nodeIndex3, w, v, k, product);
+				final double proportion = proportions[l];
+				sum0 += product[0] * proportion;
+				sum1 += product[1] * proportion;
+				sum2 += product[2] * proportion;
+				sum3 += product[3] * proportion;
+			}
+
+			if (constantPattern != null) {
+				final int u = k * 4;
+				while (c < constantPattern.length && constantPattern[c] < u + 4) {
+					switch (constantPattern[c] - u) {
+					case 0: sum0 += proportionInvariant; break;
+					case 1: sum1 += proportionInvariant; break;
+					case 2: sum2 += proportionInvariant; break;
+					default: sum3 += proportionInvariant;
+					}
+					c++;
+				}
+			}
+
+			outLogLikelihoods[k] = Math.log(f0 * sum0 + f1 * sum1 + f2 * sum2 + f3 * sum3);
+		}
+	}
+
+	private void multiplyChildPattern4(int nodeIndex, int w, int v, int k, double[] product) {
+		final double[] matrices = this.matrices[currentMatrixIndex[nodeIndex]][nodeIndex];
+		if (states[nodeIndex] != null) {
+			final int state = states[nodeIndex][k];
+			if (state < 4) {
+				product[0] *= matrices[w + state];
+				product[1] *= matrices[w + 4 + state];
+				product[2] *= matrices[w + 8 + state];
+				product[3] *= matrices[w + 12 + state];
+			}
+			// else child has a gap or unknown state so don't use it
+		} else {
+			final double[] partials = this.partials[currentPartialsIndex[nodeIndex]][nodeIndex];
+			final double p0 = partials[v], p1 = partials[v + 1], p2 = partials[v + 2], p3 = partials[v + 3];
+			product[0] *= matrices[w] * p0 + matrices[w + 1] * p1 + matrices[w + 2] * p2 + matrices[w + 3] * p3;
+			product[1] *= matrices[w + 4] * p0 + matrices[w + 5] * p1 + matrices[w + 6] * p2 + matrices[w + 7] * p3;
+			product[2] *= matrices[w + 8] * p0 + matrices[w + 9] * p1 + matrices[w + 10] * p2 + matrices[w + 11] * p3;
+			product[3] *= matrices[w + 12] * p0 + matrices[w + 13] * p1 + matrices[w + 14] * p2 + matrices[w + 15] * p3;
+		}
+	}
+
 
 //
 //	@Override
@@ -37,8 +37,13 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
 
 import beastfx.app.beast.BeastMCMC;
@@ -47,6 +52,7 @@ import beastfx.app.beauti.BeautiTabPane;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.inference.CalculationNode;
 import beast.base.inference.State;
 import beast.base.core.Log;
 import beast.base.core.ProgramStatus;
@@ -62,7 +68,7 @@ import beast.base.evolution.substitutionmodel.SubstitutionModel;
 @Description("Calculates the likelihood of sequence data on a beast.tree given a site and substitution model using " +
 		"a variant of the 'peeling algorithm'. For details, see" +
 		"Felsenstein, Joseph (1981). Evolutionary trees from DNA sequences: a maximum likelihood approach. J Mol Evol 17 (6): 368-376.")
-public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements Targetable {
+public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements Targetable, TargetHeightGradient {
     final public Input<Boolean> useAmbiguitiesInput = new Input<>("useAmbiguities", "flag to indicate leafs that sites containing ambiguous states should be handled instead of ignored (the default)", false);
     
     final public Input<Integer> maxNrOfThreadsInput = new Input<>("threads","maximum number of threads to use, if less than 1 the number of threads in BeastMCMC is used (default -1)", -1);
@@ -74,6 +80,31 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
     		+ "two thirds. With 3 threads, it is interpreted as '1 2 1' = 25%, 50%, 25% and with 7 threads it is "
     		+ "'1 2 1 2 1 2 1' = 10% 20% 10% 20% 10% 20% 10%. If not specified, all threads get the same proportion of patterns.");
     
+    final public Input<Boolean> forkJoinInput = new Input<>("forkJoin", "split patterns into many more chunks than threads and "
+    		+ "evaluate these on a work stealing fork/join pool, grouping chunks by their measured time per pattern, so that "
+    		+ "threads on cores of different speed stay balanced. The proportions input is ignored if set to true (default false)", false);
+    final public Input<Integer> chunksPerThreadInput = new Input<>("chunksPerThread", "number of chunks of patterns per thread "
+    		+ "when forkJoin is used (default 8)", 8);
+
+    final public Input<Boolean> autoBalanceInput = new Input<>("autoBalance", "time every thread and periodically move boundaries "
+    		+ "between the ranges of sites of the threads during the first evaluations, so that threads finish at the same time "
+    		+ "without specifying proportions. Proportions, if specified, are only used for the initial ranges. "
+    		+ "Ignored when forkJoin is used (default false)", false);
+
+    final public Input<Boolean> shareMatricesInput = new Input<>("shareMatrices", "calculate transition probability matrices "
+    		+ "once per evaluation, split over the threads by branch, and share them between threads, instead of every thread "
+    		+ "calculating all matrices for its own patterns. Worthwhile when many branches change per evaluation or with many "
+    		+ "threads. Only used by the java likelihood core (default false)", false);
+
+    final public Input<Boolean> dedicatedThreadsInput = new Input<>("dedicatedThreads", "evaluate on dedicated threads that "
+    		+ "briefly spin and then park while waiting for the next evaluation, instead of on an executor service, which "
+    		+ "reduces the time to hand over evaluations for small to mid sized alignments at the cost of some spinning. "
+    		+ "Ignored when forkJoin is used (default false)", false);
+
+    final public Input<Boolean> sharedPoolInput = new Input<>("sharedPool", "evaluate chunks of patterns as with forkJoin, but on the "
+    		+ "process wide likelihood execution service shared by all likelihoods that use it, instead of on threads of "
+    		+ "this likelihood. Use with DuckCompoundDistribution to evaluate partitions concurrently (default false)", false);
+
     //enum Scaling {none, always, _default};
     final public Input<Scaling> scalingInput = new Input<>("scaling", "type of scaling to use, one of " + Arrays.toString(Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.", Scaling._default, Scaling.values());
     
@@ -83,20 +114,64 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
     @Override
     public List<Input<?>> listInputs() {
     	List<Input<?>> list =  super.listInputs();
-    	if (!ProgramStatus.name.equals("BEAUti") && System.getProperty("beast.is.junit.testing") == null) {
-    		// do not expose internal likelihoods to BEAUti or junit tests
+    	if (exposesLikelihoods()) {
     		list.add(likelihoodsInput);
     	}
     	return list;
     }
+
+    /**
+     * Internal likelihoods are not exposed to BEAUti or junit tests. When they are exposed, they are
+     * part of the model graph, so the framework checks, stores and restores them; otherwise this
+     * likelihood does so itself.
+     */
+    private boolean exposesLikelihoods() {
+    	return !ProgramStatus.name.equals("BEAUti") && System.getProperty("beast.is.junit.testing") == null;
+    }
     
     /** calculation engine **/
     private DuckTreeLikelihood [] treelikelihood;
 
     private ExecutorService pool = null;
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
+    private final List<TreeLikelihoodCaller> likelihoodCallers = new ArrayList<>();
+
+    /** auto balance mode: number of evaluations between checking the balance, and maximum number of times ranges are moved **/
+    private final static int BALANCE_INTERVAL = 100;
+    private final static int MAX_BALANCE_COUNT = 10;
+    /** relative difference in time between slowest and fastest thread that is tolerated **/
+    private final static double BALANCE_TOLERANCE = 0.1;
+    /** moving average of nano seconds per evaluation of every thread, 0 if not measured yet **/
+    private double [] threadTimes;
+    private long evaluationCount;
+    private int balanceCount;
+
+    /** dedicated threads, used instead of pool if not null, with tasks for the matrix stage and the likelihoods **/
+    private ThreadedEvaluator evaluator = null;
+    private Runnable [] matrixTasks;
+    private Runnable [] likelihoodTasks;
+
+    /** shared matrix stage: matrices calculated by all likelihoods, split by branch, before the likelihoods are evaluated **/
+    private SharedTransitionMatrices sharedMatrices = null;
+    private final List<MatrixCaller> matrixCallers = new ArrayList<>();
+
+    /** fork/join mode: every likelihood is a chunk of patterns, evaluated on forkJoinPool **/
+    private ForkJoinPool forkJoinPool = null;
+    /** approximate number of tasks per thread that chunks are grouped in for stealing **/
+    private final static int TASKS_PER_THREAD = 4;
+    /** weight of the latest measurement in the moving average of time per pattern **/
+    private final static double TIME_SMOOTHING = 0.2;
+    private int [] chunkPatternCounts;
+    /** moving average of nano seconds per pattern of every chunk, 0 if not measured yet **/
+    private double [] chunkTimePerPattern;
+    /** cumulative estimated time of chunks, chunkTimes[i] is the time of chunks 0..i-1 **/
+    private double [] chunkTimes;
+    /** estimated time above which a range of chunks is split in two tasks **/
+    private double splitTime;
 
     
+    /** true if requiresRecalculation() found nothing changed since the last evaluation **/
+    private boolean isClean = false;
+
     /** number of threads to use, changes when threading causes problems **/
     private int threadCount;
     private double [] logPByThread;
@@ -104,7 +179,15 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 	
 	// specified a set ranges of patterns assigned to each thread
 	// first patternPoints contains 0, then one point for each thread
-    private int [] patternPoints;
+    protected int [] patternPoints;
+
+    /**
+     * Ascertained alignments: sites other than the excluded ones are split over the threads, as indexed by
+     * patternPoints, and the excluded sites get a likelihood of their own, from which the ascertainment
+     * correction is calculated. siteIndices is null if the alignment is not ascertained.
+     */
+    private int [] siteIndices;
+    private DuckTreeLikelihood ascertainmentLikelihood;
 	
     @Override
     public void initAndValidate() {
@@ -118,19 +201,44 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
         	threadCount = Integer.parseInt(instanceCount);
         }
         
-        logPByThread = new double[threadCount];
+        // on re-initialisation, internal likelihoods are created anew
+        likelihoodsInput.get().clear();
+        likelihoodCallers.clear();
+        matrixCallers.clear();
+        sharedMatrices = null;
+        threadTimes = null;
+        // and so are the threads evaluating them; idle fork/join workers end by themselves
+        if (evaluator != null) {
+        	evaluator.shutdown();
+        	evaluator = null;
+        }
+        if (pool != null) {
+        	pool.shutdown();
+        	pool = null;
+        }
+        forkJoinPool = null;
+        siteIndices = null;
+        ascertainmentLikelihood = null;
+
+        Alignment data = dataInput.get();
+        int [] excludedSites = null;
+        if (data.isAscertained && threadCount > 1) {
+        	excludedSites = calcSiteIndices(true);
+        	siteIndices = calcSiteIndices(false);
+        }
+        final int siteCount = siteIndices == null ? data.getSiteCount() : siteIndices.length;
+        int likelihoodCount = threadCount;
+        if (threadCount > 1 && (forkJoinInput.get() || sharedPoolInput.get())) {
+        	likelihoodCount = Math.min(threadCount * Math.max(chunksPerThreadInput.get(), 1), siteCount);
+        }
+        logPByThread = new double[likelihoodCount];
 
     	// sanity check: alignment should have same #taxa as tree
     	if (dataInput.get().getTaxonCount() != treeInput.get().getLeafNodeCount()) {
     		throw new IllegalArgumentException("The number of nodes in the tree does not match the number of sequences");
     	}
     	
-    	treelikelihood = new DuckTreeLikelihood[threadCount];
-    	
-    	if (dataInput.get().isAscertained) {
-    		Log.warning.println("Note, can only use single thread per alignment because the alignment is ascertained");
-    		threadCount = 1;
-    	}
+    	treelikelihood = new DuckTreeLikelihood[likelihoodCount];
     	
     	if (threadCount <= 1) {    		
     		treelikelihood[0] = new DuckTreeLikelihood();
@@ -145,32 +253,22 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
     		treelikelihood[0].getOutputs().add(this);
     		likelihoodsInput.get().add(treelikelihood[0]);
     	} else {
-        	pool = Executors.newFixedThreadPool(threadCount);
+    		if (likelihoodCount > threadCount) {
+    			forkJoinPool = sharedPoolInput.get() ? LikelihoodExecutionService.getPool() : new ForkJoinPool(threadCount);
+    		} else if (dedicatedThreadsInput.get()) {
+    			evaluator = new ThreadedEvaluator(threadCount);
+    		} else {
+    			pool = Executors.newFixedThreadPool(threadCount);
+    		}
     		
-        	calcPatternPoints(dataInput.get().getSiteCount());
-        	for (int i = 0; i < threadCount; i++) {
-        		Alignment data = dataInput.get();
-        		String filterSpec = (patternPoints[i] +1) + "-" + (patternPoints[i + 1]);
-        		if (data.isAscertained) {
-        			filterSpec += data.excludefromInput.get() + "-" + data.excludetoInput.get() + "," + filterSpec;
-        		}
+        	calcPatternPoints(siteCount, likelihoodCount);
+        	for (int i = 0; i < likelihoodCount; i++) {
         		treelikelihood[i] = new DuckTreeLikelihood();
         		treelikelihood[i].setID(getID() + i);
         		treelikelihood[i].getOutputs().add(this);
         		likelihoodsInput.get().add(treelikelihood[i]);
 
-        		FilteredAlignment filter = new FilteredAlignment();
-        		if (i == 0 && dataInput.get() instanceof FilteredAlignment && ((FilteredAlignment)dataInput.get()).constantSiteWeightsInput.get() != null) {
-        			filter.initByName("data", dataInput.get()/*, "userDataType", m_data.get().getDataType()*/, 
-        							"filter", filterSpec, 
-        							"constantSiteWeights", ((FilteredAlignment)dataInput.get()).constantSiteWeightsInput.get()
-        							);
-        		} else {
-        			filter.initByName("data", dataInput.get()/*, "userDataType", m_data.get().getDataType()*/, 
-        							"filter", filterSpec
-        							);
-        		}
-        		treelikelihood[i].initByName("data", filter, 
+        		treelikelihood[i].initByName("data", createFilter(i), 
         				"tree", treeInput.get(), 
         				"siteModel", duplicate((BEASTInterface) siteModelInput.get(), i), 
         				"branchRateModel", duplicate(branchRateModelInput.get(), i), 
@@ -180,10 +278,110 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
         		
         		likelihoodCallers.add(new TreeLikelihoodCaller(treelikelihood[i], i));
         	}
+        	if (excludedSites != null) {
+        		ascertainmentLikelihood = new DuckTreeLikelihood();
+        		ascertainmentLikelihood.setID(getID() + "ascertainment");
+        		ascertainmentLikelihood.getOutputs().add(this);
+        		likelihoodsInput.get().add(ascertainmentLikelihood);
+        		FilteredAlignment filter = new FilteredAlignment();
+        		filter.initByName("data", data, "filter", rangeSpec(excludedSites, 0, excludedSites.length));
+        		ascertainmentLikelihood.initByName("data", filter, 
+        				"tree", treeInput.get(), 
+        				"siteModel", duplicate((BEASTInterface) siteModelInput.get(), likelihoodCount), 
+        				"branchRateModel", duplicate(branchRateModelInput.get(), likelihoodCount), 
+        				"useAmbiguities", useAmbiguitiesInput.get(),
+                                    	"scaling" , scalingInput.get() + ""
+        				);
+        	}
+        	if (shareMatricesInput.get()) {
+        		final int stateCount = dataInput.get().getDataType().getStateCount();
+        		sharedMatrices = new SharedTransitionMatrices(treeInput.get().getNodeCount(),
+        				((SiteModel.Base) siteModelInput.get()).getCategoryCount(), stateCount * stateCount);
+        		for (int i = 0; i < likelihoodCount; i++) {
+        			treelikelihood[i].setSharedMatrices(sharedMatrices);
+        			matrixCallers.add(new MatrixCaller(treelikelihood[i], i, likelihoodCount));
+        		}
+        		if (ascertainmentLikelihood != null) {
+        			ascertainmentLikelihood.setSharedMatrices(sharedMatrices);
+        		}
+        	}
+        	if (evaluator != null) {
+        		likelihoodTasks = likelihoodCallers.toArray(new Runnable[likelihoodCount]);
+        		if (sharedMatrices != null) {
+        			matrixTasks = matrixCallers.toArray(new Runnable[likelihoodCount]);
+        		}
+        	}
+        	if (autoBalanceInput.get() && forkJoinPool == null) {
+        		threadTimes = new double[threadCount];
+        	}
+        	if (forkJoinPool != null) {
+        		chunkPatternCounts = new int[likelihoodCount];
+        		chunkTimePerPattern = new double[likelihoodCount];
+        		chunkTimes = new double[likelihoodCount + 1];
+        		for (int i = 0; i < likelihoodCount; i++) {
+        			chunkPatternCounts[i] = treelikelihood[i].dataInput.get().getPatternCount();
+        		}
+        	}
     	}
     }
     
     
+    /** @return indices of sites excluded for ascertainment correction if excluded is true, and of all other sites otherwise **/
+    private int [] calcSiteIndices(boolean excluded) {
+    	Alignment data = dataInput.get();
+    	boolean [] isExcluded = new boolean[data.getSiteCount()];
+    	int excludedCount = 0;
+    	for (int i = data.excludefromInput.get(); i < data.excludetoInput.get() && i < isExcluded.length; i += data.excludeeveryInput.get()) {
+    		isExcluded[i] = true;
+    		excludedCount++;
+    	}
+    	int [] sites = new int[excluded ? excludedCount : isExcluded.length - excludedCount];
+    	int k = 0;
+    	for (int i = 0; i < isExcluded.length; i++) {
+    		if (isExcluded[i] == excluded) {
+    			sites[k++] = i;
+    		}
+    	}
+    	return sites;
+    }
+
+    /** filter specification for sites[from..to), with runs of consecutive sites joined into ranges **/
+    private static String rangeSpec(int [] sites, int from, int to) {
+    	StringBuilder filterSpec = new StringBuilder();
+    	int i = from;
+    	while (i < to) {
+    		int j = i;
+    		while (j + 1 < to && sites[j + 1] == sites[j] + 1) {
+    			j++;
+    		}
+    		if (filterSpec.length() > 0) {
+    			filterSpec.append(',');
+    		}
+    		filterSpec.append(sites[i] + 1).append('-').append(sites[j] + 1);
+    		i = j + 1;
+    	}
+    	return filterSpec.toString();
+    }
+
+    /** alignment of the range of sites of likelihood i as given by patternPoints **/
+    private FilteredAlignment createFilter(int i) {
+		String filterSpec = siteIndices == null ?
+				(patternPoints[i] +1) + "-" + (patternPoints[i + 1]) :
+				rangeSpec(siteIndices, patternPoints[i], patternPoints[i + 1]);
+		FilteredAlignment filter = new FilteredAlignment();
+		if (i == 0 && dataInput.get() instanceof FilteredAlignment && ((FilteredAlignment)dataInput.get()).constantSiteWeightsInput.get() != null) {
+			filter.initByName("data", dataInput.get()/*, "userDataType", m_data.get().getDataType()*/, 
+							"filter", filterSpec, 
+							"constantSiteWeights", ((FilteredAlignment)dataInput.get()).constantSiteWeightsInput.get()
+							);
+		} else {
+			filter.initByName("data", dataInput.get()/*, "userDataType", m_data.get().getDataType()*/, 
+							"filter", filterSpec
+							);
+		}
+		return filter;
+    }
+    
     /** create new instance of src object, connecting all inputs from src object
      * Note if input is a SubstModel, it is duplicated as well.
      * @param src object to be copied
@@ -227,14 +425,13 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 		return copy;
 	}
 
-	private void calcPatternPoints(int nPatterns) {
-		patternPoints = new int[threadCount + 1];
-		if (proportionsInput.get() == null) {
-			int range = nPatterns / threadCount;
-			for (int i = 0; i < threadCount - 1; i++) {
-				patternPoints[i+1] = range * (i+1);
+	private void calcPatternPoints(int nPatterns, int likelihoodCount) {
+		patternPoints = new int[likelihoodCount + 1];
+		if (proportionsInput.get() == null || likelihoodCount != threadCount) {
+			for (int i = 0; i < likelihoodCount - 1; i++) {
+				patternPoints[i+1] = (int)((long) nPatterns * (i+1) / likelihoodCount);
 			}
-			patternPoints[threadCount] = nPatterns;
+			patternPoints[likelihoodCount] = nPatterns;
 		} else {
 			String [] strs = proportionsInput.get().split("\\s+");
 			double [] proportions = new double[threadCount];
@@ -271,11 +468,15 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 
     @Override
     public double calculateLogP() {
+    	if (isClean) {
+    		// nothing this likelihood depends on changed since logP was calculated
+    		return logP;
+    	}
 		logP =  calculateLogPByBeagle();
 		return logP;
     }
 
-    class TreeLikelihoodCaller implements Callable<Double> {
+    class TreeLikelihoodCaller implements Callable<Double>, Runnable {
         private final TreeLikelihood likelihood;
         private final int threadNr;
 
@@ -285,24 +486,85 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
         }
 
         public Double call() throws Exception {
+        	run();
+            return logPByThread[threadNr];
+        }
+
+        /** evaluates without boxing the result **/
+        @Override
+        public void run() {
   		  	try {
+  		  		final long start = System.nanoTime();
 	            logPByThread[threadNr] = likelihood.calculateLogP();
+	            if (threadTimes != null) {
+	            	final double time = System.nanoTime() - start;
+	            	if (threadTimes[threadNr] > 0) {
+	            		threadTimes[threadNr] += TIME_SMOOTHING * (time - threadTimes[threadNr]);
+	            	} else {
+	            		threadTimes[threadNr] = time;
+	            	}
+	            }
   		  	} catch (Exception e) {
   		  		System.err.println("Something went wrong in thread " + threadNr);
 				e.printStackTrace();
 				System.exit(0);
 			}
-            return logPByThread[threadNr];
         }
 
     }
 
+
+    /** calculates the shared matrices of a part of the branches **/
+    class MatrixCaller implements Callable<Object>, Runnable {
+        private final DuckTreeLikelihood likelihood;
+        private final int part, partCount;
+
+        public MatrixCaller(DuckTreeLikelihood likelihood, int part, int partCount) {
+            this.likelihood = likelihood;
+            this.part = part;
+            this.partCount = partCount;
+        }
+
+        public Object call() throws Exception {
+        	run();
+            return null;
+        }
+
+        /** exceptions are passed on to the caller by ThreadedEvaluator, and through the futures by the executors **/
+        @Override
+        public void run() {
+        	likelihood.calculateSharedMatrices(part, partCount);
+        }
+    }
 	
 	
     private double calculateLogPByBeagle() {
 		try {
-			if (threadCount > 1) {
-                pool.invokeAll(likelihoodCallers);
+			if (sharedMatrices != null) {
+				sharedMatrices.nextEvaluation();
+				if (evaluator != null) {
+					evaluator.run(matrixTasks);
+				} else {
+					for (Future<Object> future : (forkJoinPool != null ? forkJoinPool : pool).invokeAll(matrixCallers)) {
+						try {
+							future.get();
+						} catch (ExecutionException e) {
+							throw new RuntimeException("Calculating shared transition matrices failed", e.getCause());
+						}
+					}
+				}
+			}
+			if (forkJoinPool != null) {
+				calculateLogPByForkJoin();
+			} else if (threadCount > 1) {
+				if (threadTimes != null && ++evaluationCount % BALANCE_INTERVAL == 0 && balanceCount < MAX_BALANCE_COUNT) {
+					balance();
+				}
+				if (evaluator != null) {
+					evaluator.run(likelihoodTasks);
+				} else {
+					pool.invokeAll(likelihoodCallers);
+				}
 
 		    	logP = 0;
 		    	for (double f : logPByThread) {
@@ -311,6 +573,9 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 			} else {
 				logP = treelikelihood[0].calculateLogP();
 			}
+			if (ascertainmentLikelihood != null) {
+				logP += calcAscertainmentCorrection();
+			}
 		} catch (RejectedExecutionException | InterruptedException e) {
 			e.printStackTrace();
 			System.exit(0);
@@ -318,14 +583,154 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 		return logP;
 	}
     
+    /**
+     * Every site that is not excluded is conditioned on not being one of the patterns of the excluded sites,
+     * as in Alignment.getAscertainmentCorrection(). The excluded sites are few, so their likelihood is
+     * calculated on the calling thread, after the threads are done.
+     */
+    private double calcAscertainmentCorrection() {
+    	ascertainmentLikelihood.calculateLogP();
+    	double excludedProb = 0;
+    	for (double patternLogP : ascertainmentLikelihood.getPatternLogLikelihoods()) {
+    		excludedProb += Math.exp(patternLogP);
+    	}
+    	return -siteIndices.length * Math.log(1 - excludedProb);
+    }
+
+    /**
+     * Moves the boundaries between ranges of sites such that every thread gets a share proportional
+     * to the number of sites it processed per nano second, if the threads are out of balance.
+     * Likelihoods with a new range are initialised with a new alignment, but keep their site model and
+     * other inputs, so they stay connected to the model graph, and recalculate everything until accepted.
+     */
+    private void balance() {
+    	double minTime = Double.POSITIVE_INFINITY, maxTime = 0;
+    	for (double time : threadTimes) {
+    		if (time <= 0) {
+    			// not measured yet
+    			return;
+    		}
+    		minTime = Math.min(minTime, time);
+    		maxTime = Math.max(maxTime, time);
+    	}
+    	if (maxTime <= minTime * (1 + BALANCE_TOLERANCE)) {
+    		return;
+    	}
+
+    	final int siteCount = patternPoints[threadCount];
+    	final double [] throughput = new double[threadCount];
+    	double sum = 0;
+    	for (int i = 0; i < threadCount; i++) {
+    		throughput[i] = (patternPoints[i + 1] - patternPoints[i]) / threadTimes[i];
+    		sum += throughput[i];
+    	}
+    	final int [] newPoints = new int[threadCount + 1];
+    	double cumulative = 0;
+    	for (int i = 0; i < threadCount - 1; i++) {
+    		cumulative += throughput[i] / sum;
+    		// every thread keeps at least one site
+    		newPoints[i + 1] = Math.max(newPoints[i] + 1, Math.min(siteCount - (threadCount - i - 1), (int) (cumulative * siteCount + 0.5)));
+    	}
+    	newPoints[threadCount] = siteCount;
+    	final int [] oldPoints = patternPoints;
+    	patternPoints = newPoints;
+    	for (int i = 0; i < threadCount; i++) {
+    		if (newPoints[i] != oldPoints[i] || newPoints[i + 1] != oldPoints[i + 1]) {
+    			treelikelihood[i].initByName("data", createFilter(i));
+    			treelikelihood[i].requireFullUpdate();
+    		}
+    		threadTimes[i] = 0;
+    	}
+    	balanceCount++;
+    	Log.info.println(getID() + " moved site ranges of threads to " + Arrays.toString(patternPoints));
+    }
+
+    /**
+     * Evaluates all chunks on the fork/join pool. Tasks are formed from ranges of chunks by splitting
+     * them in two at about half of their estimated time until they are cheap enough, so idle threads
+     * steal large ranges first and small ranges at the end.
+     */
+    private void calculateLogPByForkJoin() {
+    	final int chunkCount = treelikelihood.length;
+    	for (int i = 0; i < chunkCount; i++) {
+    		// until measured, assume all patterns take equally long
+    		final double timePerPattern = chunkTimePerPattern[i] > 0 ? chunkTimePerPattern[i] : 1.0;
+    		chunkTimes[i + 1] = chunkTimes[i] + timePerPattern * chunkPatternCounts[i];
+    	}
+    	splitTime = chunkTimes[chunkCount] / (forkJoinPool.getParallelism() * TASKS_PER_THREAD);
+    	final ChunkTask task = new ChunkTask(0, chunkCount);
+    	if (ForkJoinTask.getPool() == forkJoinPool) {
+    		// called from a task on the same pool, e.g. for another partition, so fork from there
+    		task.invoke();
+    	} else {
+    		forkJoinPool.invoke(task);
+    	}
+    	logP = 0;
+    	for (double f : logPByThread) {
+    		logP += f;
+    	}
+    }
+
+    class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		ChunkTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && chunkTimes[to] - chunkTimes[from] > splitTime) {
+				// split where the estimated time of the range is halved
+				final double half = (chunkTimes[from] + chunkTimes[to]) / 2;
+				int mid = Arrays.binarySearch(chunkTimes, from + 1, to, half);
+				if (mid < 0) {
+					mid = -mid - 1;
+				}
+				mid = Math.max(from + 1, Math.min(to - 1, mid));
+				invokeAll(new ChunkTask(from, mid), new ChunkTask(mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				final long start = System.nanoTime();
+				// exceptions are rethrown to the caller of invoke(), also when the pool is shared with other partitions
+				logPByThread[i] = treelikelihood[i].calculateLogP();
+				final double timePerPattern = (double) (System.nanoTime() - start) / chunkPatternCounts[i];
+				if (chunkTimePerPattern[i] > 0) {
+					chunkTimePerPattern[i] += TIME_SMOOTHING * (timePerPattern - chunkTimePerPattern[i]);
+				} else {
+					chunkTimePerPattern[i] = timePerPattern;
+				}
+			}
+		}
+    }
+
     /* return copy of pattern log likelihoods for each of the patterns in the alignment */
 	public double [] getPatternLogLikelihoods() {
-		double [] patternLogLikelihoods = new double[dataInput.get().getPatternCount()];
-		int i = 0;
-		for (TreeLikelihood b : treelikelihood) {
-			double [] d = b.getPatternLogLikelihoods();
-			System.arraycopy(d, 0, patternLogLikelihoods, i, d.length);
-			i += d.length;
+		if (threadCount <= 1) {
+			return treelikelihood[0].getPatternLogLikelihoods().clone();
+		}
+		// a pattern of the alignment can occur in several ranges of sites, so patterns of every range
+		// are mapped back to patterns of the alignment through the sites they occur at
+		final Alignment data = dataInput.get();
+		double [] patternLogLikelihoods = new double[data.getPatternCount()];
+		for (int i = 0; i < treelikelihood.length; i++) {
+			final Alignment filter = treelikelihood[i].dataInput.get();
+			final double [] d = treelikelihood[i].getPatternLogLikelihoods();
+			for (int j = 0; j < patternPoints[i + 1] - patternPoints[i]; j++) {
+				final int site = siteIndices == null ? patternPoints[i] + j : siteIndices[patternPoints[i] + j];
+				patternLogLikelihoods[data.getPatternIndex(site)] = d[filter.getPatternIndex(j)];
+			}
+		}
+		if (ascertainmentLikelihood != null) {
+			final Alignment filter = ascertainmentLikelihood.dataInput.get();
+			final double [] d = ascertainmentLikelihood.getPatternLogLikelihoods();
+			final int [] excludedSites = calcSiteIndices(true);
+			for (int j = 0; j < excludedSites.length; j++) {
+				patternLogLikelihoods[data.getPatternIndex(excludedSites[j])] = d[filter.getPatternIndex(j)];
+			}
 		}
 		return patternLogLikelihoods;
 	} // getPatternLogLikelihoods
@@ -338,27 +743,53 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
     @Override
     protected boolean requiresRecalculation() {
 		boolean requiresRecalculation = false;
-//		for (TreeLikelihood b : treelikelihood) {
-//			requiresRecalculation |= b.requiresRecalculation();
-//		}
-		requiresRecalculation = true;
+		if (exposesLikelihoods()) {
+			// the framework already checked the internal likelihoods
+			for (DuckTreeLikelihood b : likelihoodsInput.get()) {
+				requiresRecalculation |= b.isDirtyCalculation();
+			}
+		} else {
+			for (DuckTreeLikelihood b : likelihoodsInput.get()) {
+				requiresRecalculation |= b.requiresRecalculation();
+			}
+		}
+		// internal likelihoods have duplicated site and branch rate models, but depend on the same parameters
+		requiresRecalculation |= dataInput.get().isDirtyCalculation() || treeInput.get().somethingIsDirty() ||
+				((CalculationNode) siteModelInput.get()).isDirtyCalculation() ||
+				(branchRateModelInput.get() != null && branchRateModelInput.get().isDirtyCalculation());
+		isClean = !requiresRecalculation;
 		return requiresRecalculation;
     }
 
     @Override
     public void store() {
-//		for (TreeLikelihood b : treelikelihood) {
-//			b.store();
-//		}
+    	if (!exposesLikelihoods()) {
+    		for (TreeLikelihood b : likelihoodsInput.get()) {
+    			b.store();
+    		}
+    	}
     	super.store();
     }
 
     @Override
     public void restore() {
-//		for (TreeLikelihood b : treelikelihood) {
-//			b.restore();
-//		}
+    	if (!exposesLikelihoods()) {
+    		for (TreeLikelihood b : likelihoodsInput.get()) {
+    			b.restore();
+    		}
+    	}
     	super.restore();
+    	isClean = false;
+    }
+
+    @Override
+    protected void accept() {
+    	if (!exposesLikelihoods()) {
+    		for (DuckTreeLikelihood b : likelihoodsInput.get()) {
+    			b.accept();
+    		}
+    	}
+    	super.accept();
     }
         
     /**
@@ -380,9 +811,33 @@ public class DuckThreadedTreeLikelihood extends GenericTreeLikelihood implements
 
 	@Override
 	public void setTarget(int target) {
-		for (DuckTreeLikelihood t : treelikelihood) {
+		for (DuckTreeLikelihood t : likelihoodsInput.get()) {
 			t.setTarget(target);
 		}		
 	}
+
+	@Override
+	public boolean hasTargetHeightGradient() {
+		if (ascertainmentLikelihood != null) {
+			// the gradient of the ascertainment correction is not available
+			return false;
+		}
+		for (DuckTreeLikelihood t : treelikelihood) {
+			if (!t.hasTargetHeightGradient()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** patterns are split over the threads, so the gradient is the sum of those of the threads **/
+	@Override
+	public double getTargetHeightGradient() {
+		double gradient = 0;
+		for (DuckTreeLikelihood t : treelikelihood) {
+			gradient += t.getTargetHeightGradient();
+		}
+		return gradient;
+	}
     
 } // class DuckThreadedTreeLikelihood
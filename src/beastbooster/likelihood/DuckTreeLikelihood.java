@@ -1,11 +1,16 @@
 package beastbooster.likelihood;
 
+import java.util.Arrays;
+import java.util.List;
+
 import beast.base.core.Description;
+import beast.base.core.Input;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.likelihood.BeerLikelihoodCore;
 import beast.base.evolution.likelihood.BeerLikelihoodCore4;
 import beast.base.evolution.likelihood.LikelihoodCore;
 import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
@@ -13,9 +18,82 @@ import beast.base.evolution.tree.TreeInterface;
 @Description("TreeLikelihood that can target an internal node as end-point instead of the root."
 		+ "This can be more efficient than its parent class if many updates can be expected "
 		+ "in the same area of the tree.")
-public class DuckTreeLikelihood extends TreeLikelihood  implements Targetable {
+public class DuckTreeLikelihood extends TreeLikelihood  implements Targetable, TargetHeightGradient {
+
+	/** set to true to use the plain unrolled nucleotide core instead of the register blocked one **/
+	private static final String UNBLOCKED_CORE_PROPERTY = "duck.unblocked";
+
+	final public Input<Boolean> floatPartialsInput = new Input<>("floatPartials", "store partials in single precision in the java likelihood core, "
+			+ "which halves memory use of partials at the cost of some precision. BEAGLE is not used if set to true (default false)", false);
+	final public Input<Boolean> offHeapPartialsInput = new Input<>("offHeapPartials", "keep partials and transition matrices of the java likelihood core "
+			+ "in direct buffers outside the Java heap, which reduces garbage collection pauses for large alignments. "
+			+ "Ignored when BEAGLE is used (default false)", false);
+	final public Input<Boolean> preOrderPartialsInput = new Input<>("preOrderPartials", "keep pre-order (outside) partials as well as partials "
+			+ "for every node, so that any node can become the target by combining its partials with its pre-order partials, "
+			+ "instead of recalculating partials on the path from the previous target. Doubles memory use of partials, "
+			+ "and is not used while scaling is on. BEAGLE is not used if set to true (default false)", false);
+	final public Input<Integer> matrixCacheSizeInput = new Input<>("matrixCacheSize", "number of transition probability matrices "
+			+ "to keep in a least recently used cache, so matrices for a branch length that was seen before since the "
+			+ "substitution model last changed are not recalculated. Only valid for substitution models where matrices depend "
+			+ "on branch length and rate only, not on node or time (as in epoch models). Ignored when BEAGLE is used. "
+			+ "If less than 1, no cache is used (default 0)", 0);
+	final public Input<Boolean> beagleBatchInput = new Input<>("beagleBatch", "when BEAGLE is used, make the BEAGLE calls of all "
+			+ "likelihoods on the same tree that have beagleBatch=true together, phase by phase, when the first of them is evaluated. "
+			+ "Without native BEAGLE, the Java implementation of BEAGLE is used for these likelihoods, unless the duck.java.beagle "
+			+ "property is false. Should not be used for likelihoods that are evaluated on different threads (default false)", false);
+	final public Input<Integer> beaglePartialsCacheInput = new Input<>("beaglePartialsCache", "when BEAGLE is used, number of "
+			+ "partials of internal nodes kept for other orientations than the current target, so they can be reused when the "
+			+ "target moves back. Not used when partials are scaled (default 0, no partials are kept)", 0);
 
 	int target = -1;
+
+	/** operations for traversing the tree rerooted at the target **/
+	private TargetTraversal traversal;
+	/** update status of every node in the last traversal **/
+	private int[] nodeUpdates;
+
+	private List<Integer> constantPatternList;
+	private int[] constantPatternIndices;
+
+	/** whether the last evaluation used pre-order partials, in which case matrices are those of the rooted tree **/
+	private boolean usedPreOrder, storedUsedPreOrder;
+	/**
+	 * Pre-order mode: every calculation of a matrix, partials or pre-order partials gets a new stamp
+	 * from stampCount, so that pre-order partials are out of date when any of their inputs has a higher
+	 * stamp. A post-order stamp of zero means the partials are out of date, and then so are those of
+	 * all ancestors. Leaves have post-order stamp 1.
+	 */
+	private long stampCount = 1;
+	private long[] matrixStamps, storedMatrixStamps;
+	private long[] postOrderStamps, storedPostOrderStamps;
+	private long[] preOrderStamps, storedPreOrderStamps;
+	/** stamp of the state frequencies, which are the pre-order partials of the root **/
+	private long frequenciesStamp, storedFrequenciesStamp;
+	private Node[] nodeStack, nodePath;
+
+	/** step size for finite differences of transition probability matrices without real eigen decomposition **/
+	private static final double DERIVATIVE_STEP = 1e-6;
+	/** target of the last traversal, so partials next to it are up to date **/
+	private int evaluatedTarget = -2, storedEvaluatedTarget = -2;
+	/** derivatives of matrices of the branches next to the target with respect to its height **/
+	private double[][] matrixDerivatives;
+	private double[] derivativeWork;
+	private double[] patternDerivatives;
+
+	/** cache of transition probability matrices, null if not used **/
+	private TransitionMatrixCache matrixCache;
+	/** version of the substitution and site model, increased every time they become dirty **/
+	private long modelVersion, storedModelVersion;
+	private long modelVersionCount;
+
+	/**
+	 * set when partials may not match the state, e.g. after the alignment was replaced, and only cleared
+	 * when an evaluation is accepted, since restoring after a rejection brings back stale partials
+	 **/
+	private boolean fullUpdate;
+
+	/** matrices calculated once per evaluation for all likelihoods on slices of the same alignment, null if not shared **/
+	private SharedTransitionMatrices sharedMatrices;
 	
 	public void setTarget(int target) {
 		if (target < treeInput.get().getLeafNodeCount() || 
@@ -28,6 +106,11 @@ public class DuckTreeLikelihood extends TreeLikelihood  implements Targetable {
 			((DuckBeagleTreeLikelihood) beagle).setTarget(target);
 			return;
 		}
+		if (usedPreOrder) {
+			// pre-order partials do not depend on the target
+			this.target = target;
+			return;
+		}
 		if (this.target >= 0) {
 			m_branchLengths[this.target] = -1;
 		}
@@ -42,20 +125,33 @@ public class DuckTreeLikelihood extends TreeLikelihood  implements Targetable {
         if (dataInput.get().getTaxonCount() != treeInput.get().getLeafNodeCount()) {
             throw new IllegalArgumentException("The number of nodes in the tree does not match the number of sequences");
         }
+        if (floatPartialsInput.get() && offHeapPartialsInput.get()) {
+        	throw new IllegalArgumentException("floatPartials and offHeapPartials cannot be combined");
+        }
+        if (preOrderPartialsInput.get() && (floatPartialsInput.get() || offHeapPartialsInput.get())) {
+        	throw new IllegalArgumentException("preOrderPartials cannot be combined with floatPartials or offHeapPartials");
+        }
+        if (beagle != null) {
+        	// a BEAGLE likelihood of an earlier initialisation is replaced, so should not stay in its batch
+        	((DuckBeagleTreeLikelihood) beagle).leaveBatch();
+        }
         beagle = null;
-        beagle = new DuckBeagleTreeLikelihood();
-        try {
-	        beagle.initByName(
-                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
-                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", m_useAmbiguities.get(), 
-                    "useTipLikelihoods", m_useTipLikelihoods.get(),"scaling", scaling.get().toString());
-	        if (beagle.getBeagle() != null) {
-	            //a Beagle instance was found, so we use it
-	            return;
-	        }
-        } catch (Exception e) {
-			// ignore
-		}
+        if (!floatPartialsInput.get() && !preOrderPartialsInput.get()) {
+	        beagle = new DuckBeagleTreeLikelihood();
+	        try {
+		        beagle.initByName(
+	                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+	                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", m_useAmbiguities.get(), 
+	                    "useTipLikelihoods", m_useTipLikelihoods.get(),"scaling", scaling.get().toString(),
+	                    "batch", beagleBatchInput.get(), "partialsCache", beaglePartialsCacheInput.get());
+		        if (beagle.getBeagle() != null) {
+		            //a Beagle instance was found, so we use it
+		            return;
+		        }
+	        } catch (Exception e) {
+				// ignore
+			}
+        }
         // No Beagle instance was found, so we use the good old java likelihood core
         beagle = null;
         String javaProperty = System.getProperty("java.only");
@@ -66,230 +162,647 @@ public class DuckTreeLikelihood extends TreeLikelihood  implements Targetable {
     	}else {
     		System.clearProperty("java.only");
     	}
+    	if (matrixCacheSizeInput.get() > 0) {
+    		final int stateCount = substitutionModel.getStateCount();
+    		matrixCache = new TransitionMatrixCache(matrixCacheSizeInput.get(), stateCount * stateCount);
+    	}
     }
     
     
 	@Override
     protected LikelihoodCore createLikelihoodCore(int stateCount) {
+		if (floatPartialsInput.get()) {
+			return new DuckFloatLikelihoodCore(stateCount);
+		}
+		if (offHeapPartialsInput.get()) {
+			return new DuckDirectLikelihoodCore(stateCount);
+		}
 		if (stateCount == 4) {
-			return new DuckLikelihoodCore4(stateCount);
+			if (Boolean.valueOf(System.getProperty(UNBLOCKED_CORE_PROPERTY))) {
+				return new DuckLikelihoodCore4(stateCount);
+			}
+			return new DuckBlockedLikelihoodCore4(stateCount);
+		} else if (stateCount == 20) {
+			return new DuckLikelihoodCore20(stateCount);
+		} else if (stateCount >= 60) {
+			// codon models
+			return new DuckCodonLikelihoodCore(stateCount);
 		} else {
 			return new DuckLikelihoodCore(stateCount);
 		}
     }
 
+	@Override
+	protected boolean requiresRecalculation() {
+		final boolean requiresRecalculation = super.requiresRecalculation();
+		if (hasDirt != Tree.IS_CLEAN) {
+			// matrices in the cache are for an earlier version of the model.
+			// Versions are never reused, since restore() may go back to an earlier version.
+			modelVersion = ++modelVersionCount;
+		}
+		return requiresRecalculation;
+	}
+
+	/** makes evaluations recalculate everything, until one of them is accepted **/
+	void requireFullUpdate() {
+		fullUpdate = true;
+	}
+
+	/** uses matrices calculated by calculateSharedMatrices() of any likelihood sharing them, if found **/
+	void setSharedMatrices(SharedTransitionMatrices sharedMatrices) {
+		this.sharedMatrices = sharedMatrices;
+	}
+
+	/**
+	 * Calculates the transition probability matrices of every partCount-th branch, starting at part, that
+	 * will be updated in the coming evaluation, and puts them in the shared matrices. Likelihoods sharing
+	 * these matrices have the same tree, target and model parameters, so this predicts what they need; any
+	 * matrix that is not found there is calculated by the likelihood itself.
+	 * Must be called after requiresRecalculation() and before calculateLogP() of all likelihoods sharing the matrices.
+	 */
+	void calculateSharedMatrices(int part, int partCount) {
+		if (sharedMatrices == null || beagle != null) {
+			return;
+		}
+		final TreeInterface tree = treeInput.get();
+		if (usePreOrderPartials()) {
+			if (!usedPreOrder) {
+				// all matrices change
+				return;
+			}
+			final Node [] nodes = tree.getNodesAsArray();
+			for (int i = part; i < nodes.length; i += partCount) {
+				if (!nodes[i].isRoot()) {
+					calculateSharedMatrix(nodes[i], nodes[i].getParent(), TargetTraversal.DOWN);
+				}
+			}
+		} else if (target >= 0 && !tree.getNode(target).isRoot() && !usedPreOrder) {
+			if (traversal == null) {
+				traversal = new TargetTraversal(tree.getNodeCount());
+				nodeUpdates = new int[tree.getNodeCount()];
+			}
+			traversal.update(tree, target);
+			final int [] operations = traversal.getOperations();
+			for (int i = part; i < traversal.getOperationCount(); i += partCount) {
+				final int x = i * TargetTraversal.OPERATION_SIZE;
+				final int orientation = operations[x + TargetTraversal.ORIENTATION];
+				if (orientation != TargetTraversal.AT_TARGET) {
+					calculateSharedMatrix(tree.getNode(operations[x + TargetTraversal.NODE]),
+							tree.getNode(operations[x + TargetTraversal.ORIGIN]), orientation);
+				}
+			}
+		}
+	}
+
+	/** calculates shared matrices for the branch between node and origin if updateNode() is going to need them **/
+	private void calculateSharedMatrix(Node node, Node origin, int orientation) {
+		final int nodeIndex = node.getNr();
+		final double branchTime = getBranchTime(node, origin, orientation);
+		if ((node.isDirty() | hasDirt) == Tree.IS_CLEAN && !fullUpdate &&
+				Math.abs(branchTime - m_branchLengths[nodeIndex]) <= 1e-13) {
+			return;
+		}
+		final double branchRate = getBranchRate(node, origin, orientation, branchTime);
+		for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+			sharedMatrices.setMatrix(nodeIndex, orientation, branchTime, i,
+					getTransitionMatrix(node, origin, orientation, branchTime, branchRate, i));
+		}
+	}
+
+	@Override
+	public double calculateLogP() {
+		if (fullUpdate) {
+			if (beagle != null) {
+				((DuckBeagleTreeLikelihood) beagle).requireFullUpdate();
+			} else {
+				hasDirt = Tree.IS_FILTHY;
+			}
+		}
+		return super.calculateLogP();
+	}
+
+	@Override
+	protected void accept() {
+		super.accept();
+		fullUpdate = false;
+	}
+
 	@Override
 	protected int traverse(Node node) {
 		TreeInterface tree = treeInput.get();
+		evaluatedTarget = target;
+		final boolean preOrder = usePreOrderPartials();
+		if (preOrder != usedPreOrder) {
+			// matrices of the rooted tree differ from those when traversing to a target
+			Arrays.fill(m_branchLengths, -1);
+			usedPreOrder = preOrder;
+			// forces all partials to be recalculated
+			frequenciesStamp = 0;
+		}
+		if (preOrder) {
+			return traversePreOrder(tree);
+		}
 		if (target == -1 || tree.getNode(target).isRoot()) {
 			return super.traverse(node);
 		}
-		return traverseToTarget(tree.getNode(target), null);
+		if (traversal == null) {
+			traversal = new TargetTraversal(tree.getNodeCount());
+			nodeUpdates = new int[tree.getNodeCount()];
+		}
+		traversal.update(tree, target);
+		return traverseToTarget(tree);
 	}
 
 
-	private int traverseToTarget(Node node, Node origin) {
-        int update = (node.isDirty() | hasDirt);
-
-        final int nodeIndex = node.getNr();
-
-        boolean updateTarget = m_branchLengths[nodeIndex] < 0;
-
-        if (origin != null) {
-        	double branchRate, branchTime;
-        	if (node.getParent().isRoot() && origin.getParent().isRoot()) {
-            	final double branchRate1 = branchRateModel.getRateForBranch(node);
-            	final double branchRate2 = branchRateModel.getRateForBranch(origin);
-            	Node root = node.getParent();
-            	final double branchTime1 = root.getHeight() - node.getHeight();
-            	final double branchTime2 = root.getHeight() - origin.getHeight();
-            	branchTime = branchTime1 * branchRate1 + branchTime2 * branchRate2;
-            	branchRate = branchTime / (branchTime1 + branchTime2);
-        	} else {
-            	branchRate = node.getParent() == origin ? branchRateModel.getRateForBranch(node) : branchRateModel.getRateForBranch(origin);
-            	branchTime = Math.abs(node.getHeight() - origin.getHeight()) * branchRate;
-        	}
-
-	        // First update the transition probability matrix(ices) for this branch
-	        //if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_StoredBranchLengths[nodeIndex])) {
-	        if (update != Tree.IS_CLEAN || Math.abs(branchTime - m_branchLengths[nodeIndex]) > 1e-13) {
-	            m_branchLengths[nodeIndex] = branchTime;
-	            final Node parentX = node.getParent();
-	            likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
-	            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-	                if (node.getParent() == origin) {
-		                final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-	                	substitutionModel.getTransitionProbabilities(node, origin.getHeight(), node.getHeight(), jointBranchRate, probabilities);
-	                } else if (origin.getParent() == node) {
-		                final double jointBranchRate = m_siteModel.getRateForCategory(i, origin) * branchRate;
-	                	substitutionModel.getTransitionProbabilities(node, node.getHeight(), origin.getHeight(), jointBranchRate, probabilities);
-	                } else if (node.getParent().isRoot()) {
-		                final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-	                	substitutionModel.getTransitionProbabilities(node, node.getHeight() + branchTime/branchRate, node.getHeight(), jointBranchRate, probabilities);	                	
-	            	} else {
-	            		throw new RuntimeException("Programmer error: should not get here at " + this.getClass().getSimpleName() + ".traverse()");
-	                }
-	                //System.out.println(node.getNr() + " " + Arrays.toString(m_fProbabilities));
-	                likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
-	            }
-	            update |= Tree.IS_DIRTY;
-	        }
-        } else {
-            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-            	substitutionModel.getTransitionProbabilities(node, node.getHeight(), node.getHeight(), 0.0, probabilities);
-                likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
-            }
-            m_branchLengths[nodeIndex] = 0.0;
-        }
+	/**
+	 * Updates transition probability matrices and partials in post-order of the tree rerooted
+	 * at the target, then calculates pattern log likelihoods at the target.
+	 * @return update status of the target
+	 */
+	private int traverseToTarget(TreeInterface tree) {
+		final int [] operations = traversal.getOperations();
+		final int operationCount = traversal.getOperationCount();
+		int update = Tree.IS_CLEAN;
+		for (int i = 0; i < operationCount; i++) {
+			final int x = i * TargetTraversal.OPERATION_SIZE;
+			final int nodeIndex = operations[x + TargetTraversal.NODE];
+			final Node node = tree.getNode(nodeIndex);
+			final int orientation = operations[x + TargetTraversal.ORIENTATION];
+			if (orientation == TargetTraversal.AT_TARGET) {
+				update = updateTarget(node, operations[x + TargetTraversal.NEIGHBOUR1], operations[x + TargetTraversal.NEIGHBOUR2],
+						traversal.getTargetNeighbour3());
+			} else {
+				update = updateNode(node, tree.getNode(operations[x + TargetTraversal.ORIGIN]), orientation,
+						operations[x + TargetTraversal.NEIGHBOUR1], operations[x + TargetTraversal.NEIGHBOUR2]);
+			}
+			nodeUpdates[nodeIndex] = update;
+		}
+		return update;
+	}
 
-        // If the node is internal, update the partial likelihoods.
-        if (!node.isLeaf()) {
-
-            // Traverse down the two child nodes
-        	Node neighbour1, neighbour2, neighbour3 = null;
-        	int update1 = Tree.IS_CLEAN;
-        	int update2 = Tree.IS_CLEAN;
-        	//int update3 = Tree.IS_CLEAN;
-        	if (node.getParent() == origin || (node.getParent().isRoot() && origin != null && origin.getParent().isRoot())) {
-        		// going down
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 |= traverseToTarget(neighbour1, node);
-
-        		neighbour2 = node.getRight();
-        		update2 |= traverseToTarget(neighbour2, node);
-        	} else if (node.getLeft() == origin) {
-        		// coming from the left
-        		neighbour1 = node.getParent();
-        		if (neighbour1.isRoot()) {
-        			neighbour1 = neighbour1.getLeft() == node ? neighbour1.getRight() : neighbour1.getLeft();
-        		}
-        		update1 |= traverseToTarget(neighbour1, node);
-        		
-        		neighbour2 = node.getRight();
-        		update2 |= traverseToTarget(neighbour2, node);
-        		
-        	} else if (node.getRight() == origin) {
-        		// coming from the right
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 |= traverseToTarget(neighbour1, node);
-        		
-        		neighbour2 = node.getParent();
-        		if (neighbour2.isRoot()) {
-        			neighbour2 = neighbour2.getLeft() == node ? neighbour2.getRight() : neighbour2.getLeft();
-        		}
-        		update2 |= traverseToTarget(neighbour2, node);
-        	} else if (origin == null) {
-        		// going down
-        		neighbour1 = node.getLeft(); //Two children
-        		update1 |= traverseToTarget(neighbour1, node);
-
-        		neighbour2 = node.getRight();
-        		update2 |= traverseToTarget(neighbour2, node);
-
-        		// going up
-        		neighbour3 = node.getParent();
-        		if (neighbour3.isRoot()) {
-        			neighbour3 = neighbour3.getLeft() == node ? neighbour3.getRight() : neighbour3.getLeft();
-        		}
-        		/*update3 =*/ traverseToTarget(neighbour3, node);
-        	} else {
-        		throw new RuntimeException("Programmer error: should not get at " + this.getClass().getSimpleName() + ".traverse()");
-        	}
-
-        	if (false) {
-            // If either child node was updated then update this node too
-        	if (origin == null) { // && (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || updateTarget)) {
-            	int rootIndex = treeInput.get().getRoot().getNr();
-                likelihoodCore.setNodePartialsForUpdate(rootIndex);
-                if (update >= Tree.IS_FILTHY) {
-                    likelihoodCore.setNodeStatesForUpdate(rootIndex);
-                }
-
-                if (m_siteModel.integrateAcrossCategories()) {
-                    ((DuckLikelihoodCore) likelihoodCore).calculatePartials(neighbour1.getNr(), neighbour2.getNr(), neighbour3.getNr(), rootIndex);
-                } else {
-                    throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
-                    //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
-                }
-                update |= Tree.IS_DIRTY;
-        		
-        	} else 
-            if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || updateTarget) {
-
-                likelihoodCore.setNodePartialsForUpdate(nodeIndex);
-                if (update >= Tree.IS_FILTHY) {
-                    likelihoodCore.setNodeStatesForUpdate(nodeIndex);
-                }
-
-                if (m_siteModel.integrateAcrossCategories()) {
-                    likelihoodCore.calculatePartials(neighbour1.getNr(), neighbour2.getNr(), nodeIndex);
-                } else {
-                    throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
-                    //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
-                }
-                update |= Tree.IS_DIRTY;
-            }
-        	} else {
-                if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || updateTarget) {
-
-                    likelihoodCore.setNodePartialsForUpdate(nodeIndex);
-                    if (update >= Tree.IS_FILTHY) {
-                        likelihoodCore.setNodeStatesForUpdate(nodeIndex);
-                    }
-
-                    if (m_siteModel.integrateAcrossCategories()) {
-                        likelihoodCore.calculatePartials(neighbour1.getNr(), neighbour2.getNr(), nodeIndex);
-                    } else {
-                        throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
-                        //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
-                    }
-                    update |= Tree.IS_DIRTY;
-                }            	
-
-	            if (origin == null) { // update3 != Tree.IS_CLEAN) {
-	            	int rootIndex = treeInput.get().getRoot().getNr();
-	                likelihoodCore.setNodePartialsForUpdate(rootIndex);
-	                if (update >= Tree.IS_FILTHY) {
-	                    likelihoodCore.setNodeStatesForUpdate(rootIndex);
-	                }
-	
-	                if (m_siteModel.integrateAcrossCategories()) {
-	                    likelihoodCore.calculatePartials(nodeIndex, neighbour3.getNr(), rootIndex);
-	                } else {
-	                    throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
-	                    //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
-	                }
-	                update |= Tree.IS_DIRTY;
-	            }
-            }
-            
-            if (origin == null) {
-            	int rootIndex = treeInput.get().getRoot().getNr();
-
-                // No parent this is the root of the beast.tree -
-                // calculate the pattern likelihoods
-                final double[] frequencies = //m_pFreqs.get().
-                        substitutionModel.getFrequencies();
-
-                final double[] proportions = m_siteModel.getCategoryProportions(node);
-                likelihoodCore.integratePartials(rootIndex, proportions, m_fRootPartials);
-
-                if (getConstantPattern() != null) { // && !SiteModel.g_bUseOriginal) {
-                    setProportionInvariant(m_siteModel.getProportionInvariant());
-                    // some portion of sites is invariant, so adjust root partials for this
-                    for (final int i : getConstantPattern()) {
-                        m_fRootPartials[i] += getProportionInvariant();
-                    }
-                }
-
-                likelihoodCore.calculateLogLikelihoods(m_fRootPartials, frequencies, patternLogLikelihoods);
-            }
+	/**
+	 * Updates the matrices of the branch between node and origin, and the partials of the node
+	 * if it is internal. Neighbours are guaranteed to be updated already.
+	 */
+	private int updateNode(Node node, Node origin, int orientation, int neighbour1, int neighbour2) {
+		int update = (node.isDirty() | hasDirt);
+		final int nodeIndex = node.getNr();
+		final boolean updateTarget = m_branchLengths[nodeIndex] < 0;
 
-        }
-        return update;		
+		final double branchTime = getBranchTime(node, origin, orientation);
+
+		// First update the transition probability matrix(ices) for this branch
+		if (update != Tree.IS_CLEAN || Math.abs(branchTime - m_branchLengths[nodeIndex]) > 1e-13) {
+			m_branchLengths[nodeIndex] = branchTime;
+			likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
+			final double branchRate = getBranchRate(node, origin, orientation, branchTime);
+			for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+				double [] matrix = sharedMatrices == null ? null : sharedMatrices.getMatrix(nodeIndex, orientation, branchTime, i);
+				if (matrix == null) {
+					matrix = getTransitionMatrix(node, origin, orientation, branchTime, branchRate, i);
+				}
+				likelihoodCore.setNodeMatrix(nodeIndex, i, matrix);
+			}
+			update |= Tree.IS_DIRTY;
+		}
+
+		// If the node is internal, update the partial likelihoods.
+		if (neighbour1 >= 0 &&
+				(nodeUpdates[neighbour1] != Tree.IS_CLEAN || nodeUpdates[neighbour2] != Tree.IS_CLEAN || updateTarget)) {
+			likelihoodCore.setNodePartialsForUpdate(nodeIndex);
+			if (update >= Tree.IS_FILTHY) {
+				likelihoodCore.setNodeStatesForUpdate(nodeIndex);
+			}
+
+			if (m_siteModel.integrateAcrossCategories()) {
+				likelihoodCore.calculatePartials(neighbour1, neighbour2, nodeIndex);
+			} else {
+				throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
+			}
+			update |= Tree.IS_DIRTY;
+		}
+		return update;
 	}
 
-	
+	/** length of the branch between node and origin in time times branch rate **/
+	private double getBranchTime(Node node, Node origin, int orientation) {
+		if (orientation == TargetTraversal.THROUGH_ROOT) {
+			final double branchRate1 = branchRateModel.getRateForBranch(node);
+			final double branchRate2 = branchRateModel.getRateForBranch(origin);
+			Node root = node.getParent();
+			final double branchTime1 = root.getHeight() - node.getHeight();
+			final double branchTime2 = root.getHeight() - origin.getHeight();
+			return branchTime1 * branchRate1 + branchTime2 * branchRate2;
+		}
+		final double branchRate = orientation == TargetTraversal.DOWN ? branchRateModel.getRateForBranch(node) : branchRateModel.getRateForBranch(origin);
+		return Math.abs(node.getHeight() - origin.getHeight()) * branchRate;
+	}
+
+	/** rate of the branch between node and origin, averaged over both branches if it runs through the root **/
+	private double getBranchRate(Node node, Node origin, int orientation, double branchTime) {
+		if (orientation == TargetTraversal.THROUGH_ROOT) {
+			Node root = node.getParent();
+			return branchTime / ((root.getHeight() - node.getHeight()) + (root.getHeight() - origin.getHeight()));
+		}
+		return orientation == TargetTraversal.DOWN ? branchRateModel.getRateForBranch(node) : branchRateModel.getRateForBranch(origin);
+	}
+
+	/**
+	 * @return transition probability matrix of a category for the branch between node and origin, either
+	 * from the matrix cache or calculated in the probabilities work array
+	 */
+	private double [] getTransitionMatrix(Node node, Node origin, int orientation, double branchTime, double branchRate, int category) {
+		final double categoryRate = m_siteModel.getRateForCategory(category, orientation == TargetTraversal.UP ? origin : node);
+		double [] matrix = matrixCache == null ? null : matrixCache.get(modelVersion, categoryRate, branchTime);
+		if (matrix == null) {
+			final double jointBranchRate = categoryRate * branchRate;
+			if (orientation == TargetTraversal.DOWN) {
+				substitutionModel.getTransitionProbabilities(node, origin.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+			} else if (orientation == TargetTraversal.UP) {
+				substitutionModel.getTransitionProbabilities(node, node.getHeight(), origin.getHeight(), jointBranchRate, probabilities);
+			} else {
+				substitutionModel.getTransitionProbabilities(node, node.getHeight() + branchTime/branchRate, node.getHeight(), jointBranchRate, probabilities);
+			}
+			if (matrixCache != null) {
+				matrixCache.put(modelVersion, categoryRate, branchTime, probabilities);
+			}
+			matrix = probabilities;
+		}
+		return matrix;
+	}
+
+	/**
+	 * Sets the matrices of the target to identity, and calculates the pattern log likelihoods at the target
+	 * from its three neighbours, using the partials of the root for the pseudo-root.
+	 */
+	private int updateTarget(Node node, int neighbour1, int neighbour2, int neighbour3) {
+		int update = (node.isDirty() | hasDirt);
+		final int nodeIndex = node.getNr();
+		final boolean updateTarget = m_branchLengths[nodeIndex] < 0;
+
+		for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+			substitutionModel.getTransitionProbabilities(node, node.getHeight(), node.getHeight(), 0.0, probabilities);
+			likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
+		}
+		m_branchLengths[nodeIndex] = 0.0;
+
+		if (!m_siteModel.integrateAcrossCategories()) {
+			throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
+		}
+
+		final int rootIndex = treeInput.get().getRoot().getNr();
+		final double[] frequencies = substitutionModel.getFrequencies();
+		final double[] proportions = m_siteModel.getCategoryProportions(node);
+		if (!likelihoodCore.getUseScaling() && likelihoodCore instanceof DuckLikelihoodCore) {
+			// prune all three neighbours of the target, integrate across categories and calculate
+			// pattern log likelihoods in one pass. Partials of the target are not needed for this,
+			// so they are left out of date. A negative branch length makes sure they are recalculated
+			// once the target moves, also when a restore brings back this branch length after setTarget.
+			m_branchLengths[nodeIndex] = -1;
+			likelihoodCore.setNodePartialsForUpdate(rootIndex);
+			if (update >= Tree.IS_FILTHY) {
+				likelihoodCore.setNodeStatesForUpdate(rootIndex);
+			}
+			if (getConstantPattern() != null) {
+				setProportionInvariant(m_siteModel.getProportionInvariant());
+			}
+			((DuckLikelihoodCore) likelihoodCore).calculateLogLikelihoods(neighbour1, neighbour2, neighbour3, rootIndex,
+					proportions, frequencies, getConstantPatternIndices(), getProportionInvariant(), patternLogLikelihoods);
+			return update | Tree.IS_DIRTY;
+		}
+
+		if (nodeUpdates[neighbour1] != Tree.IS_CLEAN || nodeUpdates[neighbour2] != Tree.IS_CLEAN || updateTarget) {
+			likelihoodCore.setNodePartialsForUpdate(nodeIndex);
+			if (update >= Tree.IS_FILTHY) {
+				likelihoodCore.setNodeStatesForUpdate(nodeIndex);
+			}
+			likelihoodCore.calculatePartials(neighbour1, neighbour2, nodeIndex);
+			update |= Tree.IS_DIRTY;
+		}
+
+		likelihoodCore.setNodePartialsForUpdate(rootIndex);
+		if (update >= Tree.IS_FILTHY) {
+			likelihoodCore.setNodeStatesForUpdate(rootIndex);
+		}
+		likelihoodCore.calculatePartials(nodeIndex, neighbour3, rootIndex);
+		update |= Tree.IS_DIRTY;
+
+		likelihoodCore.integratePartials(rootIndex, proportions, m_fRootPartials);
+
+		if (getConstantPattern() != null) { // && !SiteModel.g_bUseOriginal) {
+			setProportionInvariant(m_siteModel.getProportionInvariant());
+			// some portion of sites is invariant, so adjust root partials for this
+			for (final int i : getConstantPattern()) {
+				m_fRootPartials[i] += getProportionInvariant();
+			}
+		}
+
+		likelihoodCore.calculateLogLikelihoods(m_fRootPartials, frequencies, patternLogLikelihoods);
+		return update;
+	}
+
+	private boolean usePreOrderPartials() {
+		return preOrderPartialsInput.get() && !likelihoodCore.getUseScaling() &&
+				likelihoodCore instanceof DuckLikelihoodCore &&
+				((DuckLikelihoodCore) likelihoodCore).canCalculatePreOrderPartials();
+	}
+
+	/**
+	 * Calculates pattern log likelihoods at the target, or the root if there is no target, from
+	 * partials and pre-order partials. Matrices are updated for all branches of the rooted tree,
+	 * but partials and pre-order partials are only recalculated where they are out of date and
+	 * needed at the target. After a rejected proposal, moving the target to a neighbour only
+	 * takes its partials and pre-order partials.
+	 */
+	private int traversePreOrder(TreeInterface tree) {
+		final DuckLikelihoodCore core = (DuckLikelihoodCore) likelihoodCore;
+		final Node[] nodes = tree.getNodesAsArray();
+		if (matrixStamps == null) {
+			matrixStamps = new long[nodes.length];
+			storedMatrixStamps = new long[nodes.length];
+			postOrderStamps = new long[nodes.length];
+			storedPostOrderStamps = new long[nodes.length];
+			preOrderStamps = new long[nodes.length];
+			storedPreOrderStamps = new long[nodes.length];
+			nodeStack = new Node[nodes.length];
+			nodePath = new Node[nodes.length];
+		}
+		if (hasDirt != Tree.IS_CLEAN || frequenciesStamp == 0) {
+			for (final Node node : nodes) {
+				postOrderStamps[node.getNr()] = node.isLeaf() ? 1 : 0;
+			}
+			frequenciesStamp = ++stampCount;
+		}
+
+		// matrices of the branch above every node
+		for (final Node node : nodes) {
+			if (!node.isRoot() &&
+					updateNode(node, node.getParent(), TargetTraversal.DOWN, -1, -1) != Tree.IS_CLEAN) {
+				matrixStamps[node.getNr()] = ++stampCount;
+				invalidatePostOrder(node.getParent());
+			}
+		}
+
+		final Node node = target < 0 ? tree.getRoot() : tree.getNode(target);
+		final int nodeIndex = node.getNr();
+		final double[] frequencies = substitutionModel.getFrequencies();
+		final double[] proportions = m_siteModel.getCategoryProportions(node);
+		if (getConstantPattern() != null) {
+			setProportionInvariant(m_siteModel.getProportionInvariant());
+		}
+		updatePostOrder(node);
+		if (node.isRoot()) {
+			likelihoodCore.integratePartials(nodeIndex, proportions, m_fRootPartials);
+			if (getConstantPattern() != null) {
+				for (final int i : getConstantPattern()) {
+					m_fRootPartials[i] += getProportionInvariant();
+				}
+			}
+			likelihoodCore.calculateLogLikelihoods(m_fRootPartials, frequencies, patternLogLikelihoods);
+		} else {
+			updatePreOrder(core, node, frequencies);
+			core.calculatePreOrderLogLikelihoods(nodeIndex, proportions, frequencies,
+					getConstantPatternIndices(), getProportionInvariant(), patternLogLikelihoods);
+		}
+		return Tree.IS_DIRTY;
+	}
+
+	/** marks partials of a node and its ancestors out of date **/
+	private void invalidatePostOrder(Node node) {
+		// the node may have moved under an ancestor with partials up to date, so always mark it
+		postOrderStamps[node.getNr()] = 0;
+		node = node.getParent();
+		while (node != null && postOrderStamps[node.getNr()] != 0) {
+			postOrderStamps[node.getNr()] = 0;
+			node = node.getParent();
+		}
+	}
+
+	/** recalculates out of date partials in the subtree below a node, without recursion **/
+	private void updatePostOrder(Node node) {
+		int top = 0;
+		nodeStack[top++] = node;
+		while (top > 0) {
+			final Node n = nodeStack[top - 1];
+			if (postOrderStamps[n.getNr()] != 0) {
+				top--;
+				continue;
+			}
+			final int left = n.getLeft().getNr();
+			final int right = n.getRight().getNr();
+			if (postOrderStamps[left] == 0) {
+				nodeStack[top++] = n.getLeft();
+			} else if (postOrderStamps[right] == 0) {
+				nodeStack[top++] = n.getRight();
+			} else {
+				likelihoodCore.setNodePartialsForUpdate(n.getNr());
+				likelihoodCore.calculatePartials(left, right, n.getNr());
+				postOrderStamps[n.getNr()] = ++stampCount;
+				top--;
+			}
+		}
+	}
+
+	/** recalculates out of date pre-order partials on the path from the root to a node **/
+	private void updatePreOrder(DuckLikelihoodCore core, Node node, double[] frequencies) {
+		final Node[] path = nodePath;
+		int top = 0;
+		for (Node n = node; !n.isRoot(); n = n.getParent()) {
+			path[top++] = n;
+		}
+		while (top > 0) {
+			final Node n = path[--top];
+			final Node parent = n.getParent();
+			final Node sibling = parent.getLeft() == n ? parent.getRight() : parent.getLeft();
+			updatePostOrder(sibling);
+
+			final int nodeIndex = n.getNr();
+			final int siblingIndex = sibling.getNr();
+			final long stamp = preOrderStamps[nodeIndex];
+			final long parentStamp = parent.isRoot() ? frequenciesStamp : preOrderStamps[parent.getNr()];
+			if (stamp == 0 || parentStamp > stamp || matrixStamps[nodeIndex] > stamp ||
+					matrixStamps[siblingIndex] > stamp || postOrderStamps[siblingIndex] > stamp) {
+				core.setNodePreOrderPartialsForUpdate(nodeIndex);
+				if (parent.isRoot()) {
+					core.calculateRootChildPreOrderPartials(frequencies, siblingIndex, nodeIndex);
+				} else {
+					core.calculatePreOrderPartials(parent.getNr(), siblingIndex, nodeIndex);
+				}
+				preOrderStamps[nodeIndex] = ++stampCount;
+			}
+		}
+	}
+
+	@Override
+	public void store() {
+		super.store();
+		storedModelVersion = modelVersion;
+		storedUsedPreOrder = usedPreOrder;
+		storedEvaluatedTarget = evaluatedTarget;
+		if (matrixStamps != null) {
+			System.arraycopy(matrixStamps, 0, storedMatrixStamps, 0, matrixStamps.length);
+			System.arraycopy(postOrderStamps, 0, storedPostOrderStamps, 0, postOrderStamps.length);
+			System.arraycopy(preOrderStamps, 0, storedPreOrderStamps, 0, preOrderStamps.length);
+			storedFrequenciesStamp = frequenciesStamp;
+		}
+	}
+
+	@Override
+	public void restore() {
+		super.restore();
+		modelVersion = storedModelVersion;
+		usedPreOrder = storedUsedPreOrder;
+		evaluatedTarget = storedEvaluatedTarget;
+		if (matrixStamps != null) {
+			long[] tmp = matrixStamps;
+			matrixStamps = storedMatrixStamps;
+			storedMatrixStamps = tmp;
+			tmp = postOrderStamps;
+			postOrderStamps = storedPostOrderStamps;
+			storedPostOrderStamps = tmp;
+			tmp = preOrderStamps;
+			preOrderStamps = storedPreOrderStamps;
+			storedPreOrderStamps = tmp;
+			frequenciesStamp = storedFrequenciesStamp;
+		}
+	}
+
+	@Override
+	public boolean hasTargetHeightGradient() {
+		return beagle == null && likelihoodCore instanceof DuckLikelihoodCore &&
+				((DuckLikelihoodCore) likelihoodCore).canCalculatePreOrderPartials() &&
+				!dataInput.get().isAscertained;
+	}
+
+	/**
+	 * The height of the target affects the branches to its children and the branch to its parent,
+	 * so the derivative follows from the partials of the children, the partials on the other side of
+	 * the branch to the parent (or pre-order partials of the parent) and the derivatives of the
+	 * transition probability matrices of these three branches.
+	 */
+	@Override
+	public double getTargetHeightGradient() {
+		if (!hasTargetHeightGradient()) {
+			throw new RuntimeException("Target height gradient of " + getID() + " cannot be calculated with BEAGLE, "
+					+ "float or off-heap partials, or for ascertained alignments");
+		}
+		if (evaluatedTarget != target) {
+			// partials next to the target are not up to date
+			calculateLogP();
+		}
+		final TreeInterface tree = treeInput.get();
+		final Node node = target < 0 ? tree.getRoot() : tree.getNode(target);
+		final DuckLikelihoodCore core = (DuckLikelihoodCore) likelihoodCore;
+		final int stateCount = substitutionModel.getStateCount();
+		if (matrixDerivatives == null) {
+			matrixDerivatives = new double[3][stateCount * stateCount * m_siteModel.getCategoryCount()];
+			derivativeWork = new double[stateCount * stateCount];
+			patternDerivatives = new double[patternLogLikelihoods.length];
+		}
+		final double[] frequencies = substitutionModel.getFrequencies();
+		final double[] proportions = m_siteModel.getCategoryProportions(node);
+		if (getConstantPattern() != null) {
+			setProportionInvariant(m_siteModel.getProportionInvariant());
+		}
+
+		// branches to the children get longer when the node moves up
+		final Node left = node.getLeft();
+		final Node right = node.getRight();
+		setMatrixDerivatives(left, m_branchLengths[left.getNr()], branchRateModel.getRateForBranch(left), matrixDerivatives[0]);
+		setMatrixDerivatives(right, m_branchLengths[right.getNr()], branchRateModel.getRateForBranch(right), matrixDerivatives[1]);
+		if (node.isRoot()) {
+			core.calculateLogLikelihoodDerivatives(left.getNr(), right.getNr(), -1, matrixDerivatives[0], matrixDerivatives[1], null,
+					proportions, frequencies, getConstantPatternIndices(), getProportionInvariant(), patternDerivatives);
+		} else {
+			// the branch to the parent gets shorter
+			final double branchRate = branchRateModel.getRateForBranch(node);
+			final Node parent = node.getParent();
+			if (usedPreOrder) {
+				final Node sibling = parent.getLeft() == node ? parent.getRight() : parent.getLeft();
+				setMatrixDerivatives(node, m_branchLengths[node.getNr()], -branchRate, matrixDerivatives[2]);
+				core.calculatePreOrderLogLikelihoodDerivatives(parent.isRoot() ? -1 : parent.getNr(), sibling.getNr(), node.getNr(),
+						left.getNr(), right.getNr(), matrixDerivatives[2], matrixDerivatives[0], matrixDerivatives[1],
+						proportions, frequencies, getConstantPatternIndices(), getProportionInvariant(), patternDerivatives);
+			} else {
+				// neighbour3 is the parent, or the sibling if the parent is the root
+				final int neighbour3 = traversal.getTargetNeighbour3();
+				setMatrixDerivatives(tree.getNode(neighbour3), m_branchLengths[neighbour3], -branchRate, matrixDerivatives[2]);
+				core.calculateLogLikelihoodDerivatives(left.getNr(), right.getNr(), neighbour3,
+						matrixDerivatives[0], matrixDerivatives[1], matrixDerivatives[2],
+						proportions, frequencies, getConstantPatternIndices(), getProportionInvariant(), patternDerivatives);
+			}
+		}
+
+		double gradient = 0;
+		for (int i = 0; i < patternDerivatives.length; i++) {
+			gradient += patternDerivatives[i] * dataInput.get().getPatternWeight(i);
+		}
+		return gradient;
+	}
+
+	/**
+	 * Sets derivatives of the transition probability matrices of all categories of a branch with respect to
+	 * the height of the target, where branchLength is the length of the branch in time times branch rate and
+	 * lengthDerivative the derivative of the branch length with respect to the height of the target.
+	 * The eigen decomposition of the substitution model is used when it is real, and finite differences otherwise.
+	 */
+	private void setMatrixDerivatives(Node node, double branchLength, double lengthDerivative, double[] derivatives) {
+		final int stateCount = substitutionModel.getStateCount();
+		final EigenDecomposition eigen = substitutionModel.canReturnComplexDiagonalization() ? null : substitutionModel.getEigenDecomposition(node);
+		for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
+			final double rate = m_siteModel.getRateForCategory(i, node);
+			final double distance = branchLength * rate;
+			final double factor = lengthDerivative * rate;
+			final int offset = i * stateCount * stateCount;
+			if (eigen != null) {
+				// d/dt Evec exp(Eval t) Ievc = Evec Eval exp(Eval t) Ievc
+				final double[] evec = eigen.getEigenVectors();
+				final double[] ievc = eigen.getInverseEigenVectors();
+				final double[] eval = eigen.getEigenValues();
+				for (int k = 0; k < stateCount; k++) {
+					derivativeWork[k] = eval[k] * Math.exp(eval[k] * distance) * factor;
+				}
+				for (int a = 0; a < stateCount; a++) {
+					for (int b = 0; b < stateCount; b++) {
+						double sum = 0;
+						for (int k = 0; k < stateCount; k++) {
+							sum += evec[a * stateCount + k] * derivativeWork[k] * ievc[k * stateCount + b];
+						}
+						derivatives[offset + a * stateCount + b] = sum;
+					}
+				}
+			} else {
+				final double lower = Math.max(distance - DERIVATIVE_STEP, 0.0);
+				final double upper = distance + DERIVATIVE_STEP;
+				substitutionModel.getTransitionProbabilities(node, lower, 0.0, 1.0, derivativeWork);
+				substitutionModel.getTransitionProbabilities(node, upper, 0.0, 1.0, probabilities);
+				for (int j = 0; j < stateCount * stateCount; j++) {
+					derivatives[offset + j] = (probabilities[j] - derivativeWork[j]) / (upper - lower) * factor;
+				}
+			}
+		}
+	}
+
+	/** constant pattern indices as array, for the fused pseudo-root likelihood calculation **/
+	private int[] getConstantPatternIndices() {
+		final List<Integer> constantPattern = getConstantPattern();
+		if (constantPattern == null) {
+			return null;
+		}
+		if (constantPatternIndices == null || constantPatternList != constantPattern) {
+			constantPatternIndices = new int[constantPattern.size()];
+			for (int i = 0; i < constantPatternIndices.length; i++) {
+				constantPatternIndices[i] = constantPattern.get(i);
+			}
+			constantPatternList = constantPattern;
+		}
+		return constantPatternIndices;
+	}
+
+	/**
+	 * Note that when a target other than the root is used without scaling, partials of the root are
+	 * not calculated, since pattern log likelihoods are calculated directly from the neighbours of the target.
+	 */
 	public double [] getRootPartials() {
 		DataType dataType = dataInput.get().getDataType();			
 		double [] partials = new double[patternLogLikelihoods.length * dataType.getStateCount() * m_siteModel.getCategoryCount()];
@@ -0,0 +1,400 @@
+package beastbooster.likelihood;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import beagle.Beagle;
+import beagle.BeagleFlag;
+
+/**
+ * In-process Java implementation of the BEAGLE operations used by DuckBeagleTreeLikelihood, so that
+ * without a native BEAGLE library the likelihood still gets the batched operation lists and
+ * double buffered partials of the BEAGLE code path. Partials are calculated by the Duck likelihood
+ * cores for the number of states, which only supply the pruning kernels: buffers, transition
+ * matrices, scale factors and root likelihoods are managed here, laid out as in BEAGLE
+ * (partials as [category][pattern][state], matrices as [category][from][to]).
+ *
+ * The beagle.Beagle interface differs between BEAGLE versions, so instances are exposed through a
+ * dynamic proxy that forwards every call to the public method of this class with the same
+ * signature. Methods that are not implemented here, such as derivatives and multi-partition
+ * operations, throw an UnsupportedOperationException.
+ *
+ * Scale factors of nodes are stored as they are in BEAGLE by default, that is, not as logs, while
+ * cumulative scale buffers hold the sum of the logs.
+ */
+public class JavaBeagle implements InvocationHandler {
+	private final int tipCount;
+	private final int stateCount;
+	private final int patternCount;
+	private final int categoryCount;
+	private final int matrixSize;
+	private final int partialsSize;
+
+	private final DuckLikelihoodCore core;
+
+	private final int [][] tipStates;
+	/** partials per buffer, allocated when first written **/
+	private final double [][] partials;
+	private final double [][] matrices;
+	private final double [][] scaleFactors;
+	private final double [][] eigenVectors;
+	private final double [][] inverseEigenVectors;
+	private final double [][] eigenValues;
+	private final double [][] stateFrequencies;
+	private final double [][] categoryWeights;
+	private final double [] categoryRates;
+	private final double [] patternWeights;
+	private final double [] siteLogLikelihoods;
+
+	/** work space for the inverse eigen vectors multiplied by the exponentiated eigen values **/
+	private final double [] scaledInverse;
+
+	/** methods of this class by proxied method **/
+	private final Map<Method, Method> methods = new HashMap<>();
+
+	/**
+	 * @return a Beagle instance for the given buffer counts, as BeagleFactory.loadBeagleInstance() does,
+	 * or null if the requirements cannot be met, which is the case for complex eigen decompositions
+	 */
+	public static Beagle loadBeagleInstance(int tipCount, int partialsBufferCount, int compactBufferCount,
+			int stateCount, int patternCount, int eigenBufferCount, int matrixBufferCount,
+			int categoryCount, int scaleBufferCount, long requirementFlags) {
+		if ((requirementFlags & BeagleFlag.EIGEN_COMPLEX.getMask()) != 0) {
+			return null;
+		}
+		JavaBeagle engine = new JavaBeagle(tipCount, partialsBufferCount, stateCount, patternCount,
+				eigenBufferCount, matrixBufferCount, categoryCount, scaleBufferCount);
+		return (Beagle) Proxy.newProxyInstance(Beagle.class.getClassLoader(), new Class<?>[] {Beagle.class}, engine);
+	}
+
+	JavaBeagle(int tipCount, int partialsBufferCount, int stateCount, int patternCount,
+			int eigenBufferCount, int matrixBufferCount, int categoryCount, int scaleBufferCount) {
+		this.tipCount = tipCount;
+		this.stateCount = stateCount;
+		this.patternCount = patternCount;
+		this.categoryCount = categoryCount;
+		matrixSize = stateCount * stateCount;
+		partialsSize = categoryCount * patternCount * stateCount;
+
+		if (stateCount == 4) {
+			core = new DuckBlockedLikelihoodCore4(stateCount);
+		} else if (stateCount == 20) {
+			core = new DuckLikelihoodCore20(stateCount);
+		} else {
+			core = new DuckLikelihoodCore(stateCount);
+		}
+		core.initialize(0, patternCount, categoryCount, true, false);
+
+		tipStates = new int[tipCount][];
+		partials = new double[partialsBufferCount][];
+		matrices = new double[matrixBufferCount][categoryCount * matrixSize];
+		scaleFactors = new double[scaleBufferCount][patternCount];
+		eigenVectors = new double[eigenBufferCount][];
+		inverseEigenVectors = new double[eigenBufferCount][];
+		eigenValues = new double[eigenBufferCount][];
+		stateFrequencies = new double[Math.max(eigenBufferCount, 1)][stateCount];
+		categoryWeights = new double[Math.max(eigenBufferCount, 1)][categoryCount];
+		categoryRates = new double[categoryCount];
+		Arrays.fill(categoryRates, 1.0);
+		patternWeights = new double[patternCount];
+		Arrays.fill(patternWeights, 1.0);
+		siteLogLikelihoods = new double[patternCount];
+		scaledInverse = new double[matrixSize];
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			default:
+				return method.invoke(this, args);
+			}
+		}
+		if (method.getName().equals("finalize")) {
+			// nothing to release, since all buffers are on the Java heap
+			return null;
+		}
+		Method target = methods.get(method);
+		if (target == null) {
+			try {
+				target = JavaBeagle.class.getMethod(method.getName(), method.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				throw new UnsupportedOperationException("Java implementation of BEAGLE does not support " + method.getName());
+			}
+			methods.put(method, target);
+		}
+		try {
+			return target.invoke(this, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	public void setCPUThreadCount(int threadCount) {
+		// partials are calculated on the calling thread
+	}
+
+	public beagle.InstanceDetails getDetails() {
+		return null;
+	}
+
+	public void setPatternWeights(final double[] patternWeights) {
+		System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternCount);
+	}
+
+	public void setTipStates(int tipIndex, final int[] inStates) {
+		tipStates[tipIndex] = Arrays.copyOf(inStates, patternCount);
+	}
+
+	public void getTipStates(int tipIndex, final int[] outStates) {
+		System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+	}
+
+	/** partials of a tip are given for a single category, and are the same for all categories **/
+	public void setTipPartials(int tipIndex, final double[] inPartials) {
+		final double [] p = getPartialsBuffer(tipIndex);
+		final int n = patternCount * stateCount;
+		for (int l = 0; l < categoryCount; l++) {
+			System.arraycopy(inPartials, 0, p, l * n, n);
+		}
+		tipStates[tipIndex] = null;
+	}
+
+	public void setPartials(int bufferIndex, final double[] inPartials) {
+		System.arraycopy(inPartials, 0, getPartialsBuffer(bufferIndex), 0, partialsSize);
+		if (bufferIndex < tipCount) {
+			tipStates[bufferIndex] = null;
+		}
+	}
+
+	public void getPartials(int bufferIndex, int scaleIndex, final double[] outPartials) {
+		System.arraycopy(partials[bufferIndex], 0, outPartials, 0, partialsSize);
+	}
+
+	public void setEigenDecomposition(int eigenIndex, final double[] inEigenVectors,
+			final double[] inInverseEigenVectors, final double[] inEigenValues) {
+		eigenVectors[eigenIndex] = copy(inEigenVectors, eigenVectors[eigenIndex]);
+		inverseEigenVectors[eigenIndex] = copy(inInverseEigenVectors, inverseEigenVectors[eigenIndex]);
+		eigenValues[eigenIndex] = copy(inEigenValues, eigenValues[eigenIndex]);
+	}
+
+	public void setStateFrequencies(int stateFrequenciesIndex, final double[] stateFrequencies) {
+		System.arraycopy(stateFrequencies, 0, this.stateFrequencies[stateFrequenciesIndex], 0, stateCount);
+	}
+
+	public void setCategoryWeights(int categoryWeightsIndex, final double[] categoryWeights) {
+		System.arraycopy(categoryWeights, 0, this.categoryWeights[categoryWeightsIndex], 0, categoryCount);
+	}
+
+	public void setCategoryRates(final double[] inCategoryRates) {
+		System.arraycopy(inCategoryRates, 0, categoryRates, 0, categoryCount);
+	}
+
+	/**
+	 * Calculates P(t) = V exp(D t) V^-1 for every branch length and category rate.
+	 * Derivative matrices are not supported, so their indices should be null.
+	 */
+	public void updateTransitionMatrices(int eigenIndex, final int[] probabilityIndices,
+			final int[] firstDerivativeIndices, final int[] secondDervativeIndices,
+			final double[] edgeLengths, int count) {
+		if (firstDerivativeIndices != null || secondDervativeIndices != null) {
+			throw new UnsupportedOperationException("Java implementation of BEAGLE does not support derivative matrices");
+		}
+		final double [] vectors = eigenVectors[eigenIndex];
+		final double [] inverse = inverseEigenVectors[eigenIndex];
+		final double [] values = eigenValues[eigenIndex];
+		final int S = stateCount;
+		for (int u = 0; u < count; u++) {
+			final double [] matrix = matrices[probabilityIndices[u]];
+			for (int l = 0; l < categoryCount; l++) {
+				final double t = edgeLengths[u] * categoryRates[l];
+				for (int k = 0; k < S; k++) {
+					final double expt = Math.exp(values[k] * t);
+					for (int j = 0; j < S; j++) {
+						scaledInverse[k * S + j] = inverse[k * S + j] * expt;
+					}
+				}
+				int w = l * matrixSize;
+				for (int i = 0; i < S; i++) {
+					for (int j = 0; j < S; j++) {
+						double sum = 0;
+						for (int k = 0; k < S; k++) {
+							sum += vectors[i * S + k] * scaledInverse[k * S + j];
+						}
+						matrix[w++] = sum;
+					}
+				}
+			}
+		}
+	}
+
+	public void setTransitionMatrix(int matrixIndex, final double[] inMatrix, double paddedValue) {
+		System.arraycopy(inMatrix, 0, matrices[matrixIndex], 0, categoryCount * matrixSize);
+	}
+
+	public void getTransitionMatrix(int matrixIndex, final double[] outMatrix) {
+		System.arraycopy(matrices[matrixIndex], 0, outMatrix, 0, categoryCount * matrixSize);
+	}
+
+	/**
+	 * Operations are tuples of destination partials, scale buffer to write (or NONE), scale buffer to
+	 * read (or NONE), and partials and transition matrix of both children, as in BEAGLE. Partials are
+	 * rescaled and the scale factors stored when a scale buffer is written, or divided by stored scale
+	 * factors when one is read. Logs of scale factors that are written are added to the cumulative scale
+	 * buffer, unless that is NONE.
+	 */
+	public void updatePartials(final int[] operations, int operationCount, int cumulativeScaleIndex) {
+		for (int x = 0; x < operationCount * Beagle.OPERATION_TUPLE_SIZE; x += Beagle.OPERATION_TUPLE_SIZE) {
+			final int child1 = operations[x + 3];
+			final int child2 = operations[x + 5];
+			final double [] destination = getPartialsBuffer(operations[x]);
+			core.calculateBufferPartials(
+					child1 < tipCount ? tipStates[child1] : null, partials[child1], matrices[operations[x + 4]],
+					child2 < tipCount ? tipStates[child2] : null, partials[child2], matrices[operations[x + 6]],
+					destination);
+			if (operations[x + 1] != Beagle.NONE) {
+				rescalePartials(destination, scaleFactors[operations[x + 1]],
+						cumulativeScaleIndex != Beagle.NONE ? scaleFactors[cumulativeScaleIndex] : null);
+			} else if (operations[x + 2] != Beagle.NONE) {
+				applyScaleFactors(destination, scaleFactors[operations[x + 2]]);
+			}
+		}
+	}
+
+	/** divides partials of every pattern by their maximum, which becomes the scale factor **/
+	private void rescalePartials(double [] destination, double [] factors, double [] cumulative) {
+		final int n = patternCount * stateCount;
+		for (int k = 0; k < patternCount; k++) {
+			double max = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				final int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					max = Math.max(max, destination[v + i]);
+				}
+			}
+			if (max == 0) {
+				max = 1;
+			}
+			for (int l = 0; l < categoryCount; l++) {
+				final int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					destination[v + i] /= max;
+				}
+			}
+			factors[k] = max;
+			if (cumulative != null) {
+				cumulative[k] += Math.log(max);
+			}
+		}
+	}
+
+	private void applyScaleFactors(double [] destination, double [] factors) {
+		final int n = patternCount * stateCount;
+		for (int k = 0; k < patternCount; k++) {
+			final double factor = factors[k];
+			for (int l = 0; l < categoryCount; l++) {
+				final int v = l * n + k * stateCount;
+				for (int i = 0; i < stateCount; i++) {
+					destination[v + i] /= factor;
+				}
+			}
+		}
+	}
+
+	/** with NONE as cumulative buffer, as used for auto scaling, nothing needs to be done **/
+	public void accumulateScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+		if (cumulativeScaleIndex == Beagle.NONE) {
+			return;
+		}
+		final double [] cumulative = scaleFactors[cumulativeScaleIndex];
+		for (int i = 0; i < count; i++) {
+			final double [] factors = scaleFactors[scaleIndices[i]];
+			for (int k = 0; k < patternCount; k++) {
+				cumulative[k] += Math.log(factors[k]);
+			}
+		}
+	}
+
+	public void removeScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+		final double [] cumulative = scaleFactors[cumulativeScaleIndex];
+		for (int i = 0; i < count; i++) {
+			final double [] factors = scaleFactors[scaleIndices[i]];
+			for (int k = 0; k < patternCount; k++) {
+				cumulative[k] -= Math.log(factors[k]);
+			}
+		}
+	}
+
+	public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+		System.arraycopy(scaleFactors[srcScalingIndex], 0, scaleFactors[destScalingIndex], 0, patternCount);
+	}
+
+	public void resetScaleFactors(int cumulativeScaleIndex) {
+		Arrays.fill(scaleFactors[cumulativeScaleIndex], 0.0);
+	}
+
+	/**
+	 * Integrates root partials over categories and states, adds the cumulative scale factors, and
+	 * returns the sum of the site log likelihoods weighted by the pattern weights.
+	 * Only a single root buffer (count = 1) is supported.
+	 */
+	public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices,
+			int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int count, double[] outSumLogLikelihood) {
+		if (count != 1) {
+			throw new UnsupportedOperationException("Java implementation of BEAGLE supports a single root buffer only, not " + count);
+		}
+		final double [] rootPartials = partials[bufferIndices[0]];
+		final double [] weights = categoryWeights[categoryWeightsIndices[0]];
+		final double [] frequencies = stateFrequencies[stateFrequenciesIndices[0]];
+		final double [] cumulative = cumulativeScaleIndices[0] != Beagle.NONE ? scaleFactors[cumulativeScaleIndices[0]] : null;
+		final int n = patternCount * stateCount;
+		double logL = 0;
+		for (int k = 0; k < patternCount; k++) {
+			double sum = 0;
+			for (int l = 0; l < categoryCount; l++) {
+				final int v = l * n + k * stateCount;
+				double categorySum = 0;
+				for (int i = 0; i < stateCount; i++) {
+					categorySum += frequencies[i] * rootPartials[v + i];
+				}
+				sum += weights[l] * categorySum;
+			}
+			siteLogLikelihoods[k] = Math.log(sum) + (cumulative != null ? cumulative[k] : 0);
+			logL += siteLogLikelihoods[k] * patternWeights[k];
+		}
+		outSumLogLikelihood[0] = logL;
+	}
+
+	public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+		System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+	}
+
+	private double [] getPartialsBuffer(int bufferIndex) {
+		if (partials[bufferIndex] == null) {
+			partials[bufferIndex] = new double[partialsSize];
+		}
+		return partials[bufferIndex];
+	}
+
+	private static double [] copy(double [] source, double [] destination) {
+		if (destination == null || destination.length != source.length) {
+			return source.clone();
+		}
+		System.arraycopy(source, 0, destination, 0, source.length);
+		return destination;
+	}
+
+	@Override
+	public String toString() {
+		return "Java implementation of BEAGLE (" + stateCount + " states, " + patternCount + " patterns, " + categoryCount + " categories)";
+	}
+}
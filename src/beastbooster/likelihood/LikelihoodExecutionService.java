@@ -0,0 +1,49 @@
+package beastbooster.likelihood;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+
+/**
+ * Process wide pool of threads for evaluating likelihoods, shared by all Duck likelihoods that
+ * use it, so that many partitions do not each start their own threads and oversubscribe the CPU.
+ *
+ * This is a work stealing ForkJoinPool, so tasks for partitions can fork tasks for chunks of
+ * patterns and wait for them without blocking a thread: while waiting, threads run other tasks
+ * of any partition. The pool has as many threads as BEAST is told to use, unless overridden by
+ * the duck.threads system property.
+ */
+public class LikelihoodExecutionService {
+	/** system property for the number of threads of the pool **/
+	public final static String THREADS_PROPERTY = "duck.threads";
+
+	private static ForkJoinPool pool;
+
+	private LikelihoodExecutionService() {
+	}
+
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			int threadCount = Math.max(1, ProgramStatus.m_nThreads);
+			final String threads = System.getProperty(THREADS_PROPERTY);
+			if (threads != null && threads.length() > 0) {
+				threadCount = Integer.parseInt(threads);
+			}
+			pool = new ForkJoinPool(threadCount);
+			Log.info.println("Likelihood execution service uses " + threadCount + " threads");
+		}
+		return pool;
+	}
+
+	/** runs a task on the pool, or directly when already running on a thread of the pool **/
+	public static void invoke(ForkJoinTask<?> task) {
+		final ForkJoinPool pool = getPool();
+		if (ForkJoinTask.getPool() == pool) {
+			task.invoke();
+		} else {
+			pool.invoke(task);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package beastbooster.likelihood;
+
+import java.util.Arrays;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeInterface;
+
+/**
+ * Pool of BEAGLE partials buffers for the internal nodes of a tree, keyed by node and orientation.
+ *
+ * The partials of an internal node depend on the neighbour the tree is rerooted towards: with the
+ * parent as origin (DOWN) they are those of the subtree below the node, with a child as origin
+ * (UP_LEFT, UP_RIGHT) they are those of the rest of the tree. The root holds either its own
+ * partials (DOWN) or those of the pseudo-root at a target (PSEUDO_ROOT).
+ *
+ * Every node has a current buffer, for the orientation of the last traversal. When a node changes
+ * orientation, its current buffer is kept in a cache under its old orientation, so it can be
+ * reused when the target moves back, as long as nothing in the part of the tree it covers changed
+ * in the meantime. The cache is bounded, and emptied when the model or the topology changes.
+ *
+ * Buffers are not tied to nodes, but taken from a free list when written: buffers of the stored
+ * state are never overwritten, so store and restore only copy the mapping of nodes to buffers.
+ * Free buffers with the lowest index are used first, so buffers that are allocated lazily (as in
+ * the Java implementation of BEAGLE) only use memory for the buffers that are live at the same time.
+ * Tips are not in the pool: their buffer is their node number.
+ */
+public class PartialsBufferPool {
+	public final static int DOWN = 0;
+	public final static int UP_LEFT = 1;
+	public final static int UP_RIGHT = 2;
+	public final static int PSEUDO_ROOT = 3;
+	private final static int CACHED_ORIENTATIONS = 3;
+
+	/** more dirty nodes than this empty the cache, instead of checking the cache entries against them **/
+	private final static int MAX_DIRTY_NODES = 32;
+
+	private final int tipCount;
+	private final int nodeCount;
+	private final int capacity;
+	private final int bufferCount;
+
+	/** current buffer and orientation of every internal node, and those at the last store **/
+	private int [] buffers, storedBuffers;
+	private int [] orientations, storedOrientations;
+	/** cached buffer per internal node and orientation, -1 if none, and the number of cached buffers **/
+	private int [] cache, storedCache;
+	private int cachedCount, storedCachedCount;
+
+	/** whether a buffer is in use by the current state (including the cache) or by the stored state **/
+	private final boolean [] inCurrent;
+	private final boolean [] inStored;
+	/** free buffers, with the lowest index on top **/
+	private final int [] free;
+	private int freeCount;
+
+	/** topology the cache was built for: left and right child of every internal node **/
+	private int [] lefts, storedLefts;
+	private int [] rights, storedRights;
+
+	/** number of dirty nodes in the current evaluation, -1 if everything should be considered changed **/
+	private int dirtyCount;
+	/** number of dirty nodes in the subtree below every node, including the node itself **/
+	private final int [] dirtyBelow;
+
+	/**
+	 * @param capacity maximum number of buffers kept for other orientations than the current one
+	 */
+	public PartialsBufferPool(int tipCount, int nodeCount, int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity of the partials cache should be at least 0, not " + capacity);
+		}
+		this.tipCount = tipCount;
+		this.nodeCount = nodeCount;
+		this.capacity = capacity;
+		final int internalNodeCount = nodeCount - tipCount;
+		// worst case, the current and stored state each have a buffer for every node and a full cache
+		bufferCount = 2 * (internalNodeCount + capacity);
+
+		buffers = new int[internalNodeCount];
+		storedBuffers = new int[internalNodeCount];
+		orientations = new int[internalNodeCount];
+		storedOrientations = new int[internalNodeCount];
+		cache = new int[internalNodeCount * CACHED_ORIENTATIONS];
+		storedCache = new int[internalNodeCount * CACHED_ORIENTATIONS];
+		Arrays.fill(cache, -1);
+		Arrays.fill(storedCache, -1);
+
+		inCurrent = new boolean[bufferCount];
+		inStored = new boolean[bufferCount];
+		free = new int[bufferCount];
+		for (int i = 0; i < internalNodeCount; i++) {
+			buffers[i] = i;
+			storedBuffers[i] = i;
+			inCurrent[i] = true;
+			inStored[i] = true;
+		}
+		updateFree();
+
+		lefts = new int[nodeCount];
+		storedLefts = new int[nodeCount];
+		rights = new int[nodeCount];
+		storedRights = new int[nodeCount];
+		dirtyBelow = new int[nodeCount];
+	}
+
+	/** @return number of partials buffers needed for tips and pool **/
+	public int getBufferCount() {
+		return tipCount + bufferCount;
+	}
+
+	/** @return BEAGLE index of the current partials buffer of the node **/
+	public int getIndex(int node) {
+		if (node < tipCount) {
+			return node;
+		}
+		return tipCount + buffers[node - tipCount];
+	}
+
+	/** @return orientation of the partials in the current buffer of the internal node **/
+	public int getOrientation(int node) {
+		return orientations[node - tipCount];
+	}
+
+	public int getCachedCount() {
+		return cachedCount;
+	}
+
+	/**
+	 * Prepares for an evaluation: empties the cache if the topology changed or if everything should
+	 * be considered changed, and otherwise drops cached buffers that cover a dirty node.
+	 * @param invalidateAll whether all partials in the cache are out of date, e.g. because the model changed
+	 */
+	public void startEvaluation(TreeInterface tree, boolean invalidateAll) {
+		if (capacity == 0) {
+			dirtyCount = -1;
+			return;
+		}
+		final Node [] nodes = tree.getNodesAsArray();
+		boolean topologyChanged = false;
+		for (int i = tipCount; i < nodeCount; i++) {
+			final int left = nodes[i].getLeft().getNr();
+			final int right = nodes[i].getRight().getNr();
+			if (left != lefts[i] || right != rights[i]) {
+				lefts[i] = left;
+				rights[i] = right;
+				topologyChanged = true;
+			}
+		}
+
+		dirtyCount = 0;
+		for (int i = 0; i < nodeCount && dirtyCount <= MAX_DIRTY_NODES; i++) {
+			if (nodes[i].isDirty() != Tree.IS_CLEAN) {
+				dirtyCount++;
+			}
+		}
+		if (topologyChanged || invalidateAll || dirtyCount > MAX_DIRTY_NODES) {
+			dirtyCount = -1;
+			for (int i = 0; i < cache.length && cachedCount > 0; i++) {
+				drop(i);
+			}
+			return;
+		}
+		if (dirtyCount == 0) {
+			return;
+		}
+
+		Arrays.fill(dirtyBelow, 0);
+		for (int i = 0; i < nodeCount; i++) {
+			if (nodes[i].isDirty() != Tree.IS_CLEAN) {
+				for (Node node = nodes[i]; node != null; node = node.getParent()) {
+					dirtyBelow[node.getNr()]++;
+				}
+			}
+		}
+		for (int i = 0; i < cache.length && cachedCount > 0; i++) {
+			if (cache[i] >= 0 && isAffected(tipCount + i / CACHED_ORIENTATIONS, i % CACHED_ORIENTATIONS)) {
+				drop(i);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the partials of the node in the orientation cover a node that is dirty in the
+	 * current evaluation. Partials below a node cover the node and its descendants, while partials
+	 * of the rest of the tree cover everything except the child they are oriented towards, and its
+	 * descendants.
+	 */
+	private boolean isAffected(int node, int orientation) {
+		if (dirtyCount <= 0) {
+			return dirtyCount < 0;
+		}
+		switch (orientation) {
+		case DOWN:
+			return dirtyBelow[node] > 0;
+		case UP_LEFT:
+			return dirtyBelow[lefts[node]] < dirtyCount;
+		case UP_RIGHT:
+			return dirtyBelow[rights[node]] < dirtyCount;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * @return true if the current buffer of the node holds up to date partials for the orientation,
+	 * which is the case if its orientation did not change, or if a cached buffer could be used
+	 */
+	public boolean reuse(int node, int orientation) {
+		final int i = node - tipCount;
+		if (orientations[i] == orientation) {
+			return true;
+		}
+		if (orientation == PSEUDO_ROOT || cache[entry(i, orientation)] < 0) {
+			return false;
+		}
+		final int buffer = cache[entry(i, orientation)];
+		cache[entry(i, orientation)] = -1;
+		cachedCount--;
+		release(i);
+		buffers[i] = buffer;
+		orientations[i] = orientation;
+		return true;
+	}
+
+	/**
+	 * Makes the current buffer of the node one that can be written with partials for the orientation:
+	 * the node gets a free buffer if its current buffer is part of the stored state, or if it is for
+	 * another orientation, in which case that buffer is cached.
+	 * @return BEAGLE index of the buffer to write to
+	 */
+	public int prepareWrite(int node, int orientation) {
+		final int i = node - tipCount;
+		if (orientations[i] != orientation) {
+			if (orientation != PSEUDO_ROOT && cache[entry(i, orientation)] >= 0) {
+				// out of date, since it is recalculated
+				drop(entry(i, orientation));
+			}
+			release(i);
+			buffers[i] = acquire();
+			orientations[i] = orientation;
+		} else if (inStored[buffers[i]]) {
+			// keep the stored partials for restore
+			unuse(buffers[i]);
+			buffers[i] = acquire();
+		}
+		// else the buffer was written since the last store, so can be overwritten
+		return tipCount + buffers[i];
+	}
+
+	/** lets go of the current buffer of internal node i, which is cached if it is still up to date **/
+	private void release(int i) {
+		final int buffer = buffers[i];
+		final int orientation = orientations[i];
+		if (orientation != PSEUDO_ROOT && cachedCount < capacity && !isAffected(tipCount + i, orientation)) {
+			cache[entry(i, orientation)] = buffer;
+			cachedCount++;
+		} else {
+			unuse(buffer);
+		}
+	}
+
+	private void drop(int entry) {
+		if (cache[entry] >= 0) {
+			unuse(cache[entry]);
+			cache[entry] = -1;
+			cachedCount--;
+		}
+	}
+
+	private void unuse(int buffer) {
+		inCurrent[buffer] = false;
+		if (!inStored[buffer]) {
+			push(buffer);
+		}
+	}
+
+	private int acquire() {
+		if (freeCount == 0) {
+			throw new RuntimeException("Programmer error: no free partials buffers left in the pool");
+		}
+		final int buffer = free[--freeCount];
+		inCurrent[buffer] = true;
+		return buffer;
+	}
+
+	/** adds a free buffer, keeping the free list ordered so that the lowest index is on top **/
+	private void push(int buffer) {
+		int k = freeCount++;
+		while (k > 0 && free[k - 1] < buffer) {
+			free[k] = free[k - 1];
+			k--;
+		}
+		free[k] = buffer;
+	}
+
+	private static int entry(int i, int orientation) {
+		return i * CACHED_ORIENTATIONS + orientation;
+	}
+
+	public void store() {
+		System.arraycopy(buffers, 0, storedBuffers, 0, buffers.length);
+		System.arraycopy(orientations, 0, storedOrientations, 0, orientations.length);
+		System.arraycopy(cache, 0, storedCache, 0, cache.length);
+		storedCachedCount = cachedCount;
+		System.arraycopy(lefts, 0, storedLefts, 0, lefts.length);
+		System.arraycopy(rights, 0, storedRights, 0, rights.length);
+		System.arraycopy(inCurrent, 0, inStored, 0, inCurrent.length);
+		updateFree();
+	}
+
+	public void restore() {
+		System.arraycopy(storedBuffers, 0, buffers, 0, buffers.length);
+		System.arraycopy(storedOrientations, 0, orientations, 0, orientations.length);
+		System.arraycopy(storedCache, 0, cache, 0, cache.length);
+		cachedCount = storedCachedCount;
+		System.arraycopy(storedLefts, 0, lefts, 0, lefts.length);
+		System.arraycopy(storedRights, 0, rights, 0, rights.length);
+		System.arraycopy(inStored, 0, inCurrent, 0, inStored.length);
+		updateFree();
+	}
+
+	private void updateFree() {
+		freeCount = 0;
+		for (int buffer = bufferCount - 1; buffer >= 0; buffer--) {
+			if (!inCurrent[buffer] && !inStored[buffer]) {
+				free[freeCount++] = buffer;
+			}
+		}
+	}
+}
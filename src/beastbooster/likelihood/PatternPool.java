@@ -0,0 +1,119 @@
+package beastbooster.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+
+@Description("Alignment that pools the site patterns of a set of partitions on the same taxa, "
+		+ "so that patterns shared between partitions are stored (and evaluated by a tree likelihood) only once. "
+		+ "Only partitions that share tree, site model and branch rate model should be pooled. "
+		+ "Use with PooledTreeLikelihood to get the log likelihood of individual partitions.")
+public class PatternPool extends Alignment {
+	final public Input<List<Alignment>> partitionInput = new Input<>("partition", "alignment of a partition to be pooled", new ArrayList<>(), Validate.REQUIRED);
+
+	/** for each partition, the index in the pool of each pattern of the partition **/
+	private int [][] poolIndex;
+
+	@Override
+	public void initAndValidate() {
+		List<Alignment> partitions = partitionInput.get();
+		Alignment first = partitions.get(0);
+		for (Alignment partition : partitions) {
+			if (partition.isAscertained || partition.usingTipLikelihoods()) {
+				throw new IllegalArgumentException("Ascertained alignments and alignments with tip likelihoods cannot be pooled: " + partition.getID());
+			}
+			if (partition.getTaxonCount() != first.getTaxonCount()) {
+				throw new IllegalArgumentException("Partitions should have the same taxa, but " + partition.getID() +
+						" has " + partition.getTaxonCount() + " instead of " + first.getTaxonCount() + " taxa");
+			}
+			if (partition.getDataType().getClass() != first.getDataType().getClass() ||
+					partition.getMaxStateCount() != first.getMaxStateCount()) {
+				throw new IllegalArgumentException("Partitions should have the same data type, but " + partition.getID() +
+						" differs from " + first.getID());
+			}
+		}
+
+		m_dataType = first.getDataType();
+		taxaNames = new ArrayList<>(first.getTaxaNames());
+		stateCounts = new ArrayList<>(first.getStateCounts());
+
+		// every pattern of every partition becomes as many sites as its weight,
+		// so that calcPatterns() merges identical patterns across partitions
+		counts = new ArrayList<>();
+		for (int i = 0; i < taxaNames.size(); i++) {
+			counts.add(new ArrayList<>());
+		}
+		int [][] firstSite = new int[partitions.size()][];
+		int siteCount = 0;
+		for (int p = 0; p < partitions.size(); p++) {
+			Alignment partition = partitions.get(p);
+			int [] taxonIndex = new int[taxaNames.size()];
+			for (int i = 0; i < taxonIndex.length; i++) {
+				taxonIndex[i] = partition.getTaxonIndex(taxaNames.get(i));
+				if (taxonIndex[i] < 0) {
+					throw new IllegalArgumentException("Taxon " + taxaNames.get(i) + " not found in partition " + partition.getID());
+				}
+			}
+			firstSite[p] = new int[partition.getPatternCount()];
+			for (int k = 0; k < partition.getPatternCount(); k++) {
+				firstSite[p][k] = siteCount;
+				for (int w = 0; w < partition.getPatternWeight(k); w++) {
+					for (int i = 0; i < taxonIndex.length; i++) {
+						counts.get(i).add(partition.getPattern(taxonIndex[i], k));
+					}
+					siteCount++;
+				}
+			}
+		}
+
+		calcPatterns();
+
+		poolIndex = new int[partitions.size()][];
+		for (int p = 0; p < partitions.size(); p++) {
+			poolIndex[p] = new int[firstSite[p].length];
+			for (int k = 0; k < poolIndex[p].length; k++) {
+				// patterns with zero weight do not contribute, so any pool pattern will do
+				poolIndex[p][k] = partitions.get(p).getPatternWeight(k) > 0 ? getPatternIndex(firstSite[p][k]) : 0;
+			}
+		}
+		Log.info.println("Pooled " + getUnpooledPatternCount() + " patterns of " + partitions.size() +
+				" partitions into " + getPatternCount() + " patterns");
+	}
+
+	public int getPartitionCount() {
+		return poolIndex.length;
+	}
+
+	public Alignment getPartition(int partition) {
+		return partitionInput.get().get(partition);
+	}
+
+	/**
+	 * @return log likelihood of a partition, given the log likelihoods of the patterns of the pool
+	 */
+	public double getPartitionLogLikelihood(int partition, double [] poolLogLikelihoods) {
+		final Alignment alignment = partitionInput.get().get(partition);
+		final int [] index = poolIndex[partition];
+		double logP = 0;
+		for (int k = 0; k < index.length; k++) {
+			logP += poolLogLikelihoods[index[k]] * alignment.getPatternWeight(k);
+		}
+		return logP;
+	}
+
+	/**
+	 * @return number of patterns over all partitions before pooling
+	 */
+	public int getUnpooledPatternCount() {
+		int patternCount = 0;
+		for (int [] index : poolIndex) {
+			patternCount += index.length;
+		}
+		return patternCount;
+	}
+}
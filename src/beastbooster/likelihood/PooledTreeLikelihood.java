@@ -0,0 +1,117 @@
+package beastbooster.likelihood;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+
+@Description("Tree likelihood of a set of partitions that share tree, site model and branch rate model, "
+		+ "calculated on a pattern pool so patterns shared between partitions are evaluated once. "
+		+ "The log likelihood of every partition is obtained as weighted sum of pattern log likelihoods "
+		+ "of the pool, and logged as separate column.")
+public class PooledTreeLikelihood extends Distribution {
+	final public Input<GenericTreeLikelihood> likelihoodInput = new Input<>("likelihood", "tree likelihood (e.g. DuckTreeLikelihood or DuckThreadedTreeLikelihood) "
+			+ "with a PatternPool as data", Validate.REQUIRED);
+
+	private GenericTreeLikelihood likelihood;
+	private PatternPool pool;
+
+	/** log likelihood of each of the partitions **/
+	private double [] partitionLogP;
+	private double [] storedPartitionLogP;
+
+	@Override
+	public void initAndValidate() {
+		likelihood = likelihoodInput.get();
+		if (!(likelihood.dataInput.get() instanceof PatternPool)) {
+			throw new IllegalArgumentException("data of likelihood " + likelihood.getID() + " should be a PatternPool");
+		}
+		if (!(likelihood instanceof TreeLikelihood) && !(likelihood instanceof DuckThreadedTreeLikelihood)) {
+			throw new IllegalArgumentException("likelihood should be a TreeLikelihood or DuckThreadedTreeLikelihood, not " + likelihood.getClass().getName());
+		}
+		pool = (PatternPool) likelihood.dataInput.get();
+		partitionLogP = new double[pool.getPartitionCount()];
+		storedPartitionLogP = new double[pool.getPartitionCount()];
+	}
+
+	@Override
+	public double calculateLogP() {
+		logP = likelihood.calculateLogP();
+		final double [] patternLogLikelihoods = getPatternLogLikelihoods();
+		for (int i = 0; i < partitionLogP.length; i++) {
+			partitionLogP[i] = pool.getPartitionLogLikelihood(i, patternLogLikelihoods);
+		}
+		return logP;
+	}
+
+	private double [] getPatternLogLikelihoods() {
+		if (likelihood instanceof DuckThreadedTreeLikelihood) {
+			return ((DuckThreadedTreeLikelihood) likelihood).getPatternLogLikelihoods();
+		}
+		return ((TreeLikelihood) likelihood).getPatternLogLikelihoods();
+	}
+
+	/**
+	 * @return log likelihood of a partition as calculated by the last call to calculateLogP()
+	 */
+	public double getPartitionLogP(int partition) {
+		return partitionLogP[partition];
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		return likelihood.isDirtyCalculation();
+	}
+
+	@Override
+	public void store() {
+		System.arraycopy(partitionLogP, 0, storedPartitionLogP, 0, partitionLogP.length);
+		super.store();
+	}
+
+	@Override
+	public void restore() {
+		double [] tmp = partitionLogP;
+		partitionLogP = storedPartitionLogP;
+		storedPartitionLogP = tmp;
+		super.restore();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		super.init(out);
+		for (int i = 0; i < partitionLogP.length; i++) {
+			out.print(getID() + "." + pool.getPartition(i).getID() + "\t");
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		super.log(sample, out);
+		for (int i = 0; i < partitionLogP.length; i++) {
+			out.print(partitionLogP[i] + "\t");
+		}
+	}
+
+	@Override
+	public List<String> getArguments() {
+		return likelihood.getArguments();
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return likelihood.getConditions();
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+		throw new UnsupportedOperationException("Can't sample a fixed alignment!");
+	}
+}
@@ -0,0 +1,173 @@
+package beastbooster.likelihood;
+
+/**
+ * Decides, for the dynamic rescaling scheme, which internal nodes get new scale factors when their
+ * partials are updated, and which reuse the scale factors they already have.
+ *
+ * Scale factors are only recomputed for nodes that are updated anyway, that is, along the dirty
+ * path to the root or to the current target, so rescaling never forces a full traversal. A node
+ * gets new scale factors when
+ * - it has no valid scale factors yet, because its partials were calculated before scaling started,
+ * - the evaluation is a refresh, or
+ * - an evaluation that updated it underflowed recently, so its subtree is prone to underflow.
+ *
+ * Refreshes happen every interval evaluations. The interval halves on every underflow and doubles
+ * after every refresh without underflow since the previous refresh, up to a maximum, so refreshes
+ * follow the observed underflow rate. Underflow counts of nodes halve at such refreshes as well.
+ *
+ * Nodes that have no valid scale factors do not contribute to the cumulative scale factors, which is
+ * correct since their partials are not scaled. Which nodes have valid scale factors is part of the
+ * state of the likelihood, so it is stored and restored with it.
+ */
+public class RescalingScheduler {
+	private final int maxInterval;
+	private int interval = 1;
+	private int evaluationsSinceRefresh;
+	private boolean underflowSinceRefresh;
+	private boolean refresh;
+
+	/** recent underflows in evaluations that updated the node, per internal node **/
+	private final int [] underflows;
+	/** whether the scale buffer of the internal node holds valid scale factors **/
+	private boolean [] scaled;
+	private boolean [] storedScaled;
+	private int scaledCount, storedScaledCount;
+
+	/** internal nodes updated in the current evaluation, and whether they got new scale factors **/
+	private final int [] updated;
+	private int updatedCount;
+	private final boolean [] isUpdated;
+	private final boolean [] rescaled;
+	private boolean anyRescaled;
+	private boolean cumulativeFlipped;
+
+	public RescalingScheduler(int internalNodeCount, int maxInterval) {
+		if (maxInterval < 1) {
+			throw new IllegalArgumentException("maximum rescaling interval should be at least 1, not " + maxInterval);
+		}
+		this.maxInterval = maxInterval;
+		underflows = new int[internalNodeCount];
+		scaled = new boolean[internalNodeCount];
+		storedScaled = new boolean[internalNodeCount];
+		updated = new int[internalNodeCount];
+		isUpdated = new boolean[internalNodeCount];
+		rescaled = new boolean[internalNodeCount];
+	}
+
+	/** starts a new evaluation, which is a refresh when the interval has passed **/
+	public void startEvaluation() {
+		for (int i = 0; i < updatedCount; i++) {
+			isUpdated[updated[i]] = false;
+			rescaled[updated[i]] = false;
+		}
+		updatedCount = 0;
+		anyRescaled = false;
+		cumulativeFlipped = false;
+
+		evaluationsSinceRefresh++;
+		refresh = evaluationsSinceRefresh >= interval;
+		if (refresh) {
+			evaluationsSinceRefresh = 0;
+			if (!underflowSinceRefresh) {
+				interval = Math.min(2 * interval, maxInterval);
+				for (int i = 0; i < underflows.length; i++) {
+					underflows[i] >>= 1;
+				}
+			}
+			underflowSinceRefresh = false;
+		}
+	}
+
+	/**
+	 * Called for every internal node that is updated in the current evaluation, possibly again when
+	 * the evaluation is retried.
+	 * @param node index of the internal node, that is, node number minus tip count
+	 * @param force whether the node should get new scale factors, as on a retry after underflow
+	 * @return whether the node gets new scale factors
+	 */
+	public boolean rescale(int node, boolean force) {
+		if (!isUpdated[node]) {
+			isUpdated[node] = true;
+			updated[updatedCount++] = node;
+		}
+		if (force || rescaled[node] || !scaled[node] || refresh || underflows[node] > 0) {
+			rescaled[node] = true;
+			anyRescaled = true;
+			if (!scaled[node]) {
+				scaled[node] = true;
+				scaledCount++;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the node got new scale factors earlier in the current evaluation, in which
+	 * case they should be written to the same scale buffer again when it is retried
+	 */
+	public boolean isRescaled(int node) {
+		return rescaled[node];
+	}
+
+	/** records an underflow for all nodes updated in the current evaluation **/
+	public void underflowed() {
+		for (int i = 0; i < updatedCount; i++) {
+			underflows[updated[i]]++;
+		}
+		underflowSinceRefresh = true;
+		interval = Math.max(interval / 2, 1);
+	}
+
+	/** @return whether any node got new scale factors in the current evaluation **/
+	public boolean hasRescaled() {
+		return anyRescaled;
+	}
+
+	/**
+	 * @return whether the cumulative scale buffer should be flipped before accumulating, which is
+	 * the case once per evaluation, so a retry does not overwrite the stored cumulative scale factors
+	 */
+	public boolean flipCumulative() {
+		if (cumulativeFlipped) {
+			return false;
+		}
+		cumulativeFlipped = true;
+		return true;
+	}
+
+	/** @return whether the scale buffer of the internal node holds valid scale factors **/
+	public boolean isScaled(int node) {
+		return scaled[node];
+	}
+
+	/** @return whether any internal node has valid scale factors **/
+	public boolean hasScaled() {
+		return scaledCount > 0;
+	}
+
+	/** @return whether the current evaluation is a refresh **/
+	public boolean isRefresh() {
+		return refresh;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public int getUnderflowCount(int node) {
+		return underflows[node];
+	}
+
+	public void store() {
+		System.arraycopy(scaled, 0, storedScaled, 0, scaled.length);
+		storedScaledCount = scaledCount;
+	}
+
+	public void restore() {
+		boolean [] tmp = scaled;
+		scaled = storedScaled;
+		storedScaled = tmp;
+		scaledCount = storedScaledCount;
+	}
+}
@@ -0,0 +1,48 @@
+package beastbooster.likelihood;
+
+/**
+ * Transition probability matrices of the current evaluation, shared by likelihoods on slices of the
+ * same alignment, so that every matrix is calculated by only one of them. Matrices are stored per
+ * node together with the orientation and length of the branch they were calculated for, and are
+ * only returned during the evaluation they were set in.
+ *
+ * Matrices are set in one phase, and read in the next, so different threads may set matrices of
+ * different nodes concurrently, as long as the phases are separated by a barrier such as
+ * ExecutorService.invokeAll().
+ */
+class SharedTransitionMatrices {
+	/** matrices for every node and category **/
+	private final double [][][] matrices;
+	private final int [] orientations;
+	private final double [] branchTimes;
+	/** evaluation in which the matrices of a node were set **/
+	private final long [] evaluations;
+	private long evaluation = 1;
+
+	SharedTransitionMatrices(int nodeCount, int categoryCount, int matrixSize) {
+		matrices = new double[nodeCount][categoryCount][matrixSize];
+		orientations = new int[nodeCount];
+		branchTimes = new double[nodeCount];
+		evaluations = new long[nodeCount];
+	}
+
+	/** invalidates all matrices, to be called before matrices are set for a new evaluation **/
+	void nextEvaluation() {
+		evaluation++;
+	}
+
+	void setMatrix(int nodeIndex, int orientation, double branchTime, int category, double [] matrix) {
+		System.arraycopy(matrix, 0, matrices[nodeIndex][category], 0, matrix.length);
+		orientations[nodeIndex] = orientation;
+		branchTimes[nodeIndex] = branchTime;
+		evaluations[nodeIndex] = evaluation;
+	}
+
+	/** @return matrix set in this evaluation for exactly this branch, or null if there is none **/
+	double [] getMatrix(int nodeIndex, int orientation, double branchTime, int category) {
+		if (evaluations[nodeIndex] == evaluation && orientations[nodeIndex] == orientation && branchTimes[nodeIndex] == branchTime) {
+			return matrices[nodeIndex][category];
+		}
+		return null;
+	}
+}
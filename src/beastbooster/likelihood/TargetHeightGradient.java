@@ -0,0 +1,20 @@
+package beastbooster.likelihood;
+
+import beast.base.core.Description;
+
+@Description("Provides the derivative of the log likelihood with respect to the height of the target node, "
+		+ "so that gradient based operators do not need finite differences")
+public interface TargetHeightGradient {
+
+	/**
+	 * @return whether getTargetHeightGradient() can be calculated analytically,
+	 * which may depend on the likelihood core in use
+	 */
+	public boolean hasTargetHeightGradient();
+
+	/**
+	 * @return derivative of the log likelihood with respect to the height of the target node
+	 * (or the root if no target is set) in the state of the last calculateLogP()
+	 */
+	public double getTargetHeightGradient();
+}
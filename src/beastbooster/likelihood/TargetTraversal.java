@@ -0,0 +1,203 @@
+package beastbooster.likelihood;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+
+/**
+ * Post-order traversal of a tree rerooted at a target node, as a flat list of operations.
+ * Every operation has OPERATION_SIZE entries: the node, the neighbour it is visited from
+ * (its origin), the two neighbours its partials are calculated from (-1 for leaves) and
+ * the orientation of the branch between node and origin, which determines how the
+ * transition probability matrix of the node is calculated.
+ *
+ * The last operation is the target itself, which has no origin and a third neighbour
+ * (see getTargetNeighbour3()). The root of the tree is never visited: its two children
+ * are joined by a single branch, and its partials are used for the pseudo-root at the target.
+ *
+ * The list is built without recursion, so deep (e.g. caterpillar) trees cannot overflow the
+ * stack, and is only rebuilt when the target or the topology changes, so evaluating the
+ * likelihood is a loop over the list that does not allocate.
+ */
+class TargetTraversal {
+	final static int OPERATION_SIZE = 5;
+	final static int NODE = 0;
+	final static int ORIGIN = 1;
+	final static int NEIGHBOUR1 = 2;
+	final static int NEIGHBOUR2 = 3;
+	final static int ORIENTATION = 4;
+
+	/** the target itself: branch of length zero **/
+	final static int AT_TARGET = 0;
+	/** origin is the parent of the node **/
+	final static int DOWN = 1;
+	/** node is the parent of the origin **/
+	final static int UP = 2;
+	/** node and origin are both children of the root: branch runs through the root **/
+	final static int THROUGH_ROOT = 3;
+
+	private final int [] operations;
+	private int operationCount;
+	private int target = -1;
+	private int targetNeighbour3;
+
+	/** topology the operations were built for: parent and left child number of every node **/
+	private final int [] parents;
+	private final int [] lefts;
+
+	/** explicit stack for building the post-order **/
+	private final Node [] stackNode;
+	private final Node [] stackOrigin;
+	private final boolean [] stackExpanded;
+
+	TargetTraversal(int nodeCount) {
+		operations = new int[nodeCount * OPERATION_SIZE];
+		parents = new int[nodeCount];
+		lefts = new int[nodeCount];
+		// every expanded node on the stack has at most one unvisited neighbour above it
+		stackNode = new Node[2 * nodeCount + 1];
+		stackOrigin = new Node[2 * nodeCount + 1];
+		stackExpanded = new boolean[2 * nodeCount + 1];
+	}
+
+	/**
+	 * Makes sure the operations are those for the target in the current topology of the tree.
+	 * @return true if the operations had to be rebuilt
+	 */
+	boolean update(TreeInterface tree, int target) {
+		if (target == this.target && !topologyChanged(tree)) {
+			return false;
+		}
+		build(tree, target);
+		return true;
+	}
+
+	int [] getOperations() {
+		return operations;
+	}
+
+	int getOperationCount() {
+		return operationCount;
+	}
+
+	int getTargetNeighbour3() {
+		return targetNeighbour3;
+	}
+
+	private boolean topologyChanged(TreeInterface tree) {
+		final Node [] nodes = tree.getNodesAsArray();
+		for (int i = 0; i < nodes.length; i++) {
+			final Node node = nodes[i];
+			if (parentNr(node) != parents[i] || leftNr(node) != lefts[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void build(TreeInterface tree, int target) {
+		final Node [] nodes = tree.getNodesAsArray();
+		for (int i = 0; i < nodes.length; i++) {
+			parents[i] = parentNr(nodes[i]);
+			lefts[i] = leftNr(nodes[i]);
+		}
+
+		final Node targetNode = tree.getNode(target);
+		this.target = target;
+		targetNeighbour3 = skipRoot(targetNode.getParent(), targetNode).getNr();
+		operationCount = 0;
+
+		int top = 0;
+		push(top++, targetNode, null);
+		while (top > 0) {
+			final int i = top - 1;
+			final Node node = stackNode[i];
+			final Node origin = stackOrigin[i];
+			if (!stackExpanded[i] && !node.isLeaf()) {
+				// push neighbours in reverse order, so they are visited in the order
+				// neighbour3 (target only), neighbour1, neighbour2 and popped as a post-order
+				stackExpanded[i] = true;
+				final Node neighbour1 = getNeighbour1(node, origin);
+				final Node neighbour2 = getNeighbour2(node, origin);
+				push(top++, neighbour2, node);
+				push(top++, neighbour1, node);
+				if (origin == null) {
+					push(top++, skipRoot(node.getParent(), node), node);
+				}
+			} else {
+				top--;
+				addOperation(node, origin);
+			}
+		}
+	}
+
+	private void push(int i, Node node, Node origin) {
+		stackNode[i] = node;
+		stackOrigin[i] = origin;
+		stackExpanded[i] = false;
+	}
+
+	private void addOperation(Node node, Node origin) {
+		final int x = operationCount * OPERATION_SIZE;
+		operations[x + NODE] = node.getNr();
+		operations[x + ORIGIN] = origin == null ? -1 : origin.getNr();
+		if (node.isLeaf()) {
+			operations[x + NEIGHBOUR1] = -1;
+			operations[x + NEIGHBOUR2] = -1;
+		} else {
+			operations[x + NEIGHBOUR1] = getNeighbour1(node, origin).getNr();
+			operations[x + NEIGHBOUR2] = getNeighbour2(node, origin).getNr();
+		}
+		operations[x + ORIENTATION] = getOrientation(node, origin);
+		operationCount++;
+	}
+
+	private static int getOrientation(Node node, Node origin) {
+		if (origin == null) {
+			return AT_TARGET;
+		}
+		if (node.getParent().isRoot() && origin.getParent().isRoot()) {
+			return THROUGH_ROOT;
+		}
+		if (node.getParent() == origin) {
+			return DOWN;
+		}
+		return UP;
+	}
+
+	private static boolean goingDown(Node node, Node origin) {
+		return origin == null || node.getParent() == origin ||
+				(node.getParent().isRoot() && origin.getParent().isRoot());
+	}
+
+	private static Node getNeighbour1(Node node, Node origin) {
+		if (goingDown(node, origin) || node.getRight() == origin) {
+			return node.getLeft();
+		}
+		// coming from the left
+		return skipRoot(node.getParent(), node);
+	}
+
+	private static Node getNeighbour2(Node node, Node origin) {
+		if (goingDown(node, origin) || node.getLeft() == origin) {
+			return node.getRight();
+		}
+		// coming from the right
+		return skipRoot(node.getParent(), node);
+	}
+
+	/** the root is not visited, but replaced by the other child of the root **/
+	private static Node skipRoot(Node parent, Node node) {
+		if (parent.isRoot()) {
+			return parent.getLeft() == node ? parent.getRight() : parent.getLeft();
+		}
+		return parent;
+	}
+
+	private static int parentNr(Node node) {
+		return node.isRoot() ? -1 : node.getParent().getNr();
+	}
+
+	private static int leftNr(Node node) {
+		return node.isLeaf() ? -1 : node.getLeft().getNr();
+	}
+}
@@ -0,0 +1,157 @@
+package beastbooster.likelihood;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a fixed number of tasks in parallel on persistent worker threads, one task per thread,
+ * with the calling thread running the first task itself. Workers wait for the next round by
+ * spinning for a while and then parking, and the caller waits for the workers to finish in the
+ * same way, so that rounds following each other quickly are handed over without system calls.
+ * Unlike ExecutorService.invokeAll() nothing is allocated per round.
+ *
+ * Writes done by the caller before run() are visible to the tasks, and writes done by the tasks
+ * are visible to the caller after run() returns.
+ */
+public class ThreadedEvaluator {
+	/** default number of times a thread checks for work or completion before parking **/
+	public final static int DEFAULT_SPIN_COUNT = 20000;
+
+	private final int threadCount;
+	private final int spinCount;
+	private final Worker [] workers;
+
+	/** tasks of the current round, with task i run by worker i, task 0 by the caller **/
+	private volatile Runnable [] tasks;
+	/** incremented for every round **/
+	private volatile long round;
+	/** number of workers that did not finish the current round yet **/
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile Thread caller;
+	private volatile boolean callerParked;
+	private volatile Throwable failure;
+	private volatile boolean shutdown;
+
+	public ThreadedEvaluator(int threadCount) {
+		this(threadCount, DEFAULT_SPIN_COUNT);
+	}
+
+	public ThreadedEvaluator(int threadCount, int spinCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount should be at least 1, not " + threadCount);
+		}
+		this.threadCount = threadCount;
+		// spinning threads would only take time from those doing the work if there are not enough cores
+		this.spinCount = threadCount <= Runtime.getRuntime().availableProcessors() ? spinCount : 0;
+		workers = new Worker[threadCount];
+		for (int i = 1; i < threadCount; i++) {
+			workers[i] = new Worker(i);
+			workers[i].setName("ThreadedEvaluator-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Runs tasks[i] on thread i, and returns when all tasks are finished.
+	 * @throws RuntimeException if any of the tasks threw, after all tasks finished
+	 */
+	public void run(Runnable [] tasks) {
+		if (tasks.length != threadCount) {
+			throw new IllegalArgumentException("expected " + threadCount + " tasks, not " + tasks.length);
+		}
+		if (shutdown) {
+			throw new IllegalStateException("ThreadedEvaluator is shut down");
+		}
+		this.tasks = tasks;
+		caller = Thread.currentThread();
+		pending.set(threadCount - 1);
+		round++;
+		for (int i = 1; i < threadCount; i++) {
+			if (workers[i].parked) {
+				LockSupport.unpark(workers[i]);
+			}
+		}
+
+		try {
+			tasks[0].run();
+		} catch (Throwable e) {
+			failure = e;
+		}
+
+		int spins = 0;
+		while (pending.get() != 0) {
+			if (spins < spinCount) {
+				spins++;
+			} else {
+				callerParked = true;
+				if (pending.get() != 0) {
+					LockSupport.park(this);
+				}
+				callerParked = false;
+			}
+		}
+
+		if (failure != null) {
+			final Throwable e = failure;
+			failure = null;
+			throw new RuntimeException("ThreadedEvaluator task failed: " + e.getMessage(), e);
+		}
+	}
+
+	/** stops the worker threads, after which run() cannot be called any more **/
+	public void shutdown() {
+		shutdown = true;
+		for (int i = 1; i < threadCount; i++) {
+			LockSupport.unpark(workers[i]);
+		}
+	}
+
+	private class Worker extends Thread {
+		private final int index;
+		volatile boolean parked;
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			long seen = 0;
+			while (true) {
+				int spins = 0;
+				long current;
+				while ((current = round) == seen) {
+					if (shutdown) {
+						return;
+					}
+					if (spins < spinCount) {
+						spins++;
+					} else {
+						// the caller checks parked after incrementing round, so either
+						// it unparks this worker or this worker sees the new round
+						parked = true;
+						if (round == seen && !shutdown) {
+							LockSupport.park(this);
+						}
+						parked = false;
+					}
+				}
+				seen = current;
+
+				try {
+					tasks[index].run();
+				} catch (Throwable e) {
+					failure = e;
+				}
+				if (pending.decrementAndGet() == 0 && callerParked) {
+					LockSupport.unpark(caller);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package beastbooster.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of transition probability matrices, keyed by version of the substitution model,
+ * rate of the site category and branch length, with least recently used entries evicted first.
+ *
+ * Storage for all entries is allocated up front: entries are chained in a hash table on their key
+ * and linked in a list ordered by last use, both as index arrays, so lookups do not allocate.
+ * Matrices calculated for an earlier version are never returned, and are evicted as new matrices
+ * are added, so the cache does not need to be cleared when the substitution model changes.
+ */
+public class TransitionMatrixCache {
+	private final int capacity;
+	private final int matrixSize;
+
+	private final long [] versions;
+	private final double [] categoryRates;
+	private final double [] branchLengths;
+	private final double [][] matrices;
+
+	/** first entry of every bucket, and next entry in the same bucket, -1 if none **/
+	private final int [] buckets;
+	private final int [] nextInBucket;
+	/** doubly linked list of entries, from most (head) to least (tail) recently used **/
+	private final int [] previous;
+	private final int [] next;
+	private int head = -1, tail = -1;
+	private int size;
+
+	private long hitCount, missCount;
+
+	public TransitionMatrixCache(int capacity, int matrixSize) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity of the transition matrix cache should be at least 1, not " + capacity);
+		}
+		this.capacity = capacity;
+		this.matrixSize = matrixSize;
+		versions = new long[capacity];
+		categoryRates = new double[capacity];
+		branchLengths = new double[capacity];
+		matrices = new double[capacity][matrixSize];
+		int bucketCount = 1;
+		while (bucketCount < 2 * capacity) {
+			bucketCount <<= 1;
+		}
+		buckets = new int[bucketCount];
+		Arrays.fill(buckets, -1);
+		nextInBucket = new int[capacity];
+		previous = new int[capacity];
+		next = new int[capacity];
+	}
+
+	/**
+	 * @return the cached matrix for the key, which should not be modified and is only valid
+	 * until the next call to put(), or null if it is not in the cache
+	 */
+	public double [] get(long version, double categoryRate, double branchLength) {
+		for (int i = buckets[bucket(version, categoryRate, branchLength)]; i >= 0; i = nextInBucket[i]) {
+			if (versions[i] == version && categoryRates[i] == categoryRate && branchLengths[i] == branchLength) {
+				moveToHead(i);
+				hitCount++;
+				return matrices[i];
+			}
+		}
+		missCount++;
+		return null;
+	}
+
+	/** adds a copy of the matrix for a key that is not in the cache, evicting the least recently used entry when full **/
+	public void put(long version, double categoryRate, double branchLength, double [] matrix) {
+		int i;
+		if (size < capacity) {
+			i = size++;
+		} else {
+			i = tail;
+			removeFromBucket(i);
+			unlink(i);
+		}
+		versions[i] = version;
+		categoryRates[i] = categoryRate;
+		branchLengths[i] = branchLength;
+		System.arraycopy(matrix, 0, matrices[i], 0, matrixSize);
+		final int b = bucket(version, categoryRate, branchLength);
+		nextInBucket[i] = buckets[b];
+		buckets[b] = i;
+		linkAtHead(i);
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	private int bucket(long version, double categoryRate, double branchLength) {
+		long h = version * 0x9E3779B97F4A7C15L;
+		h ^= Double.doubleToLongBits(categoryRate) * 0xC2B2AE3D27D4EB4FL;
+		h ^= Double.doubleToLongBits(branchLength);
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 32;
+		return (int) h & (buckets.length - 1);
+	}
+
+	private void removeFromBucket(int i) {
+		final int b = bucket(versions[i], categoryRates[i], branchLengths[i]);
+		if (buckets[b] == i) {
+			buckets[b] = nextInBucket[i];
+			return;
+		}
+		int j = buckets[b];
+		while (nextInBucket[j] != i) {
+			j = nextInBucket[j];
+		}
+		nextInBucket[j] = nextInBucket[i];
+	}
+
+	private void moveToHead(int i) {
+		if (head != i) {
+			unlink(i);
+			linkAtHead(i);
+		}
+	}
+
+	private void unlink(int i) {
+		if (previous[i] >= 0) {
+			next[previous[i]] = next[i];
+		} else {
+			head = next[i];
+		}
+		if (next[i] >= 0) {
+			previous[next[i]] = previous[i];
+		} else {
+			tail = previous[i];
+		}
+	}
+
+	private void linkAtHead(int i) {
+		previous[i] = -1;
+		next[i] = head;
+		if (head >= 0) {
+			previous[head] = i;
+		}
+		head = i;
+		if (tail < 0) {
+			tail = i;
+		}
+	}
+}
@@ -2,11 +2,14 @@ package beastbooster.operators;
 
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.math3.util.FastMath;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
+import beast.base.inference.CompoundDistribution;
 import beast.base.inference.Distribution;
 import beast.base.core.Input;
 import beast.base.inference.Runnable;
@@ -15,18 +18,27 @@ import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
+import beastbooster.likelihood.TargetHeightGradient;
 
 @Description("Node operator that proposes node heights in traversal order")
 public class TargetableMALANodeOperator extends TreeOperator implements TargetableOperator {
     final public Input<Double> windowSizeInput = new Input<>("windowSize", "the size of standard deviation of Gaussian", Input.Validate.REQUIRED);
     final public Input<Double> stepUpperLimit = new Input<>("upper", "Upper Limit of step size", 10.0);
     final public Input<Double> stepLowerLimit = new Input<>("lower", "Lower limit of step size", 1e-8);
+    final public Input<List<TargetHeightGradient>> likelihoodInput = new Input<>("likelihood", "tree likelihoods in the posterior that are targeted together "
+    		+ "with this operator and provide the derivative of their log likelihood with respect to the target height. The gradient of these "
+    		+ "is calculated analytically, and that of the rest of the posterior by finite differences. "
+    		+ "If not specified, finite differences of the whole posterior are used", new ArrayList<>());
 
 	private State state;
 	private Distribution posterior;
 	private double windowSize, upper, lower;
 	private Tree tree;
 
+	/** likelihoods with analytic gradient, and distributions in the posterior that are not one of these **/
+	private List<TargetHeightGradient> gradients;
+	private List<Distribution> otherDistributions;
+
 	private int target = -1;
 	
 	@Override
@@ -50,6 +62,30 @@ public class TargetableMALANodeOperator extends TreeOperator implements Targetab
 		windowSize = windowSizeInput.get();
 		upper = stepUpperLimit.get();
 		lower = stepLowerLimit.get();
+
+		gradients = new ArrayList<>();
+		for (TargetHeightGradient gradient : likelihoodInput.get()) {
+			if (gradient.hasTargetHeightGradient()) {
+				gradients.add(gradient);
+			}
+		}
+		otherDistributions = new ArrayList<>();
+		if (gradients.size() > 0) {
+			collectOtherDistributions(posterior);
+		}
+	}
+
+	private void collectOtherDistributions(Distribution distribution) {
+		if (gradients.contains(distribution)) {
+			return;
+		}
+		if (distribution instanceof CompoundDistribution) {
+			for (Distribution d : ((CompoundDistribution) distribution).pDistributions.get()) {
+				collectOtherDistributions(d);
+			}
+		} else {
+			otherDistributions.add(distribution);
+		}
 	}
 	
 	private void getStateAndPosterior() {		
@@ -95,40 +131,29 @@ public class TargetableMALANodeOperator extends TreeOperator implements Targetab
 	
 	@Override
     public double proposal(int target) {
-		// determine gradient in height[target]
-		double logP = posterior.getCurrentLogP();
-
-		// state.storeCalculationNodes();
-        
 		Node node = tree.getNode(target);
 		double height = node.getHeight();
-		node.setHeight(height + EPSILON);
-		if (node.getLength() < 0) {
+
+		// determine gradient in height[target]
+		double gradient = getGradient(node, posterior.getCurrentLogP());
+		if (gradient == Double.NEGATIVE_INFINITY) {
 			// abort when node is higher than its parent,
 			// this should almost never happen
 			return Double.NEGATIVE_INFINITY;
 		}
-
-		state.checkCalculationNodesDirtiness();
-		double logPh = posterior.calculateLogP();
-		
-		double gradient = (logPh - logP) / EPSILON;
 		
 		double newHeight = height + 0.5 * gradient * windowSize + Randomizer.nextGaussian() * windowSize;
 
 		// range check
 		if (node.getLeft().getHeight() < newHeight && node.getRight().getHeight() < newHeight && 
 				(node.isRoot() || node.getParent().getHeight() > newHeight)) {
-			// state.storeCalculationNodes();
-			node.setHeight(newHeight + EPSILON);
-			state.checkCalculationNodesDirtiness();
-			double logPhNew = posterior.calculateLogP();
-			
-			//state.storeCalculationNodes();
 			node.setHeight(newHeight);
 			state.checkCalculationNodesDirtiness();
 			double logPNew = posterior.calculateLogP();
-			double gradientBackward = (logPhNew - logPNew) / EPSILON;
+			double gradientBackward = getGradient(node, logPNew);
+			if (gradientBackward == Double.NEGATIVE_INFINITY) {
+				return Double.NEGATIVE_INFINITY;
+			}
 			
 			double logPForward = logPmove(newHeight - height - 0.5 * gradient * windowSize, windowSize);
 			double logPBackward = logPmove(height - newHeight - 0.5 * gradientBackward * windowSize, windowSize);
@@ -139,6 +164,46 @@ public class TargetableMALANodeOperator extends TreeOperator implements Targetab
 		return Double.NEGATIVE_INFINITY;
 	}
 
+	/**
+	 * Gradient of the posterior with respect to the height of the node, where logP is the posterior at
+	 * the current height of the node. Likelihoods with analytic gradient contribute their gradient,
+	 * the rest of the posterior is perturbed by EPSILON. The node is left at its current height.
+	 * @return gradient, or Double.NEGATIVE_INFINITY if the perturbed node gets higher than its parent
+	 */
+	private double getGradient(Node node, double logP) {
+		double gradient = 0;
+		for (TargetHeightGradient g : gradients) {
+			gradient += g.getTargetHeightGradient();
+		}
+		if (gradients.size() > 0 && otherDistributions.size() == 0) {
+			return gradient;
+		}
+
+		if (gradients.size() > 0) {
+			logP = 0;
+			for (Distribution d : otherDistributions) {
+				logP += d.getCurrentLogP();
+			}
+		}
+		double height = node.getHeight();
+		node.setHeight(height + EPSILON);
+		if (node.getLength() < 0) {
+			node.setHeight(height);
+			return Double.NEGATIVE_INFINITY;
+		}
+		state.checkCalculationNodesDirtiness();
+		double logPh = 0;
+		if (gradients.size() == 0) {
+			logPh = posterior.calculateLogP();
+		} else {
+			for (Distribution d : otherDistributions) {
+				logPh += d.calculateLogP();
+			}
+		}
+		node.setHeight(height);
+		return gradient + (logPh - logP) / EPSILON;
+	}
+
 	/**
 	 * probability a move of size "mean" is made using Randomizer.nextGaussian()
 	 */
@@ -0,0 +1,277 @@
+package test.beastbooster.likelihood;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import beagle.Beagle;
+import beagle.InstanceDetails;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckBeagleTreeLikelihood;
+import beastbooster.likelihood.JavaBeagle;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks that requiresRecalculation() and calculateLogP() of DuckBeagleTreeLikelihood do not
+ * allocate in steady state, with proposals that are accepted and proposals that are rejected.
+ * Uses the Java implementation of BEAGLE, called directly instead of through its dynamic proxy,
+ * which allocates an argument array and boxed arguments per call.
+ */
+public class DuckBeagleAllocationTest extends TestCase {
+	final static int WARM_UP = 5000;
+	final static int ITERATIONS = 1000;
+
+	/** calls the Java implementation of BEAGLE of the likelihood without going through its proxy **/
+	public static class DirectLikelihood extends DuckBeagleTreeLikelihood {
+		void bypassProxy() {
+			beagle = new DirectBeagle((JavaBeagle) Proxy.getInvocationHandler(beagle));
+		}
+	}
+
+	@Test
+	public void testAllocationFree() throws Exception {
+		ThreadMXBean bean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assertTrue("allocation cannot be measured on this JVM", bean.isThreadAllocatedMemorySupported());
+		bean.setThreadAllocatedMemoryEnabled(true);
+		final long threadId = Thread.currentThread().getId();
+
+		System.setProperty("java.only", "false");
+		System.setProperty("duck.java.beagle", "only");
+		try {
+			Alignment data = BEASTTestCase.getAlignment();
+			Tree tree = BEASTTestCase.getTree(data);
+
+			SiteModel siteModel = DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.5");
+
+			DirectLikelihood likelihood = new DirectLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+			likelihood.bypassProxy();
+			final double logP = likelihood.calculateLogP();
+			Node node = tree.getNode(tree.getLeafNodeCount());
+
+			propose(likelihood, node, WARM_UP);
+
+			// measuring may allocate itself, which is the same every time
+			final long start = bean.getThreadAllocatedBytes(threadId);
+			final long overhead = bean.getThreadAllocatedBytes(threadId) - start;
+			final long bytes = bean.getThreadAllocatedBytes(threadId);
+			propose(likelihood, node, ITERATIONS);
+			final long allocated = bean.getThreadAllocatedBytes(threadId) - bytes - overhead;
+
+			assertEquals(0, allocated);
+			assertEquals(logP, likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+		} finally {
+			System.clearProperty("duck.java.beagle");
+		}
+	}
+
+	/**
+	 * Proposes a change of the height of the node, rejecting every other proposal, and
+	 * setting the height back after accepted ones.
+	 */
+	private void propose(DuckBeagleTreeLikelihood likelihood, Node node, int count) {
+		final double height = node.getHeight();
+		final double proposed = (height + node.getParent().getHeight()) / 2;
+		for (int i = 0; i < count; i++) {
+			likelihood.store();
+			node.setHeight(proposed);
+			likelihood.requiresRecalculation();
+			likelihood.calculateLogP();
+			node.setHeight(height);
+			if (i % 2 == 0) {
+				likelihood.restore();
+			} else {
+				likelihood.requiresRecalculation();
+				likelihood.calculateLogP();
+			}
+		}
+	}
+
+	/**
+	 * Forwards the calls DuckBeagleTreeLikelihood makes to the Java implementation of BEAGLE, and
+	 * throws for all others.
+	 */
+	static class DirectBeagle implements Beagle {
+		private static final long serialVersionUID = 1L;
+		private final JavaBeagle engine;
+
+		DirectBeagle(JavaBeagle engine) {
+			this.engine = engine;
+		}
+
+		public void finalize() throws Throwable {
+		}
+
+		public InstanceDetails getDetails() {
+			return engine.getDetails();
+		}
+
+		public void setCPUThreadCount(int threadCount) {
+			engine.setCPUThreadCount(threadCount);
+		}
+
+		public void setPatternWeights(final double[] patternWeights) {
+			engine.setPatternWeights(patternWeights);
+		}
+
+		public void setTipStates(int tipIndex, final int[] inStates) {
+			engine.setTipStates(tipIndex, inStates);
+		}
+
+		public void getTipStates(int tipIndex, final int[] outStates) {
+			engine.getTipStates(tipIndex, outStates);
+		}
+
+		public void setTipPartials(int tipIndex, final double[] inPartials) {
+			engine.setTipPartials(tipIndex, inPartials);
+		}
+
+		public void setPartials(int bufferIndex, final double[] inPartials) {
+			engine.setPartials(bufferIndex, inPartials);
+		}
+
+		public void getPartials(int bufferIndex, int scaleIndex, final double[] outPartials) {
+			engine.getPartials(bufferIndex, scaleIndex, outPartials);
+		}
+
+		public void setEigenDecomposition(int eigenIndex, final double[] inEigenVectors,
+				final double[] inInverseEigenVectors, final double[] inEigenValues) {
+			engine.setEigenDecomposition(eigenIndex, inEigenVectors, inInverseEigenVectors, inEigenValues);
+		}
+
+		public void setStateFrequencies(int stateFrequenciesIndex, final double[] stateFrequencies) {
+			engine.setStateFrequencies(stateFrequenciesIndex, stateFrequencies);
+		}
+
+		public void setCategoryWeights(int categoryWeightsIndex, final double[] categoryWeights) {
+			engine.setCategoryWeights(categoryWeightsIndex, categoryWeights);
+		}
+
+		public void setCategoryRates(final double[] inCategoryRates) {
+			engine.setCategoryRates(inCategoryRates);
+		}
+
+		public void updateTransitionMatrices(int eigenIndex, final int[] probabilityIndices,
+				final int[] firstDerivativeIndices, final int[] secondDervativeIndices,
+				final double[] edgeLengths, int count) {
+			engine.updateTransitionMatrices(eigenIndex, probabilityIndices, firstDerivativeIndices,
+					secondDervativeIndices, edgeLengths, count);
+		}
+
+		public void setTransitionMatrix(int matrixIndex, final double[] inMatrix, double paddedValue) {
+			engine.setTransitionMatrix(matrixIndex, inMatrix, paddedValue);
+		}
+
+		public void getTransitionMatrix(int matrixIndex, final double[] outMatrix) {
+			engine.getTransitionMatrix(matrixIndex, outMatrix);
+		}
+
+		public void updatePartials(final int[] operations, int operationCount, int cumulativeScaleIndex) {
+			engine.updatePartials(operations, operationCount, cumulativeScaleIndex);
+		}
+
+		public void accumulateScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+			engine.accumulateScaleFactors(scaleIndices, count, cumulativeScaleIndex);
+		}
+
+		public void removeScaleFactors(final int[] scaleIndices, final int count, final int cumulativeScaleIndex) {
+			engine.removeScaleFactors(scaleIndices, count, cumulativeScaleIndex);
+		}
+
+		public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+			engine.copyScaleFactors(destScalingIndex, srcScalingIndex);
+		}
+
+		public void resetScaleFactors(int cumulativeScaleIndex) {
+			engine.resetScaleFactors(cumulativeScaleIndex);
+		}
+
+		public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices,
+				int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int count, double[] outSumLogLikelihood) {
+			engine.calculateRootLogLikelihoods(bufferIndices, categoryWeightsIndices, stateFrequenciesIndices,
+					cumulativeScaleIndices, count, outSumLogLikelihood);
+		}
+
+		public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+			engine.getSiteLogLikelihoods(outLogLikelihoods);
+		}
+
+		// not used by DuckBeagleTreeLikelihood
+
+		public void setPatternPartitions(int partitionCount, final int[] patternPartitions) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void getLogScaleFactors(int scaleIndex, final double[] outFactors) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void setCategoryRatesWithIndex(int categoryRatesIndex, final double[] inCategoryRates) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void convolveTransitionMatrices(final int[] firstIndices, final int[] secondIndices,
+				final int[] resultIndices, int matrixCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void updateTransitionMatricesWithMultipleModels(final int[] eigenIndices, final int[] categoryRateIndices,
+				final int[] probabilityIndices, final int[] firstDerivativeIndices, final int[] secondDervativeIndices,
+				final double[] edgeLengths, int count) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void updatePartialsByPartition(final int[] operations, int operationCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void accumulateScaleFactorsByPartition(final int[] scaleIndices, int count, int cumulativeScaleIndex,
+				int partitionIndex) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void removeScaleFactorsByPartition(final int[] scaleIndices, int count, int cumulativeScaleIndex,
+				int partitionIndex) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+				int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int[] partitionIndices, int partitionCount,
+				int count, double[] outSumLogLikelihoodByPartition, double[] outSumLogLikelihood) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void calculateEdgeLogLikelihoods(int[] parentBufferIndices, int[] childBufferIndices,
+				int[] probabilityIndices, int[] firstDerivativeIndices, int[] secondDerivativeIndices,
+				int[] categoryWeightsIndices, int[] stateFrequenciesIndices, int[] cumulativeScaleIndices, int count,
+				double[] outSumLogLikelihood, double[] outSumFirstDerivative, double[] outSumSecondDerivative) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void calculateEdgeLogLikelihoodsByPartition(int[] parentBufferIndices, int[] childBufferIndices,
+				int[] probabilityIndices, int[] firstDerivativeIndices, int[] secondDerivativeIndices,
+				int[] categoryWeightsIndices, int[] stateFrequenciesIndices, int[] cumulativeScaleIndices,
+				int[] partitionIndices, int partitionCount, int count,
+				double[] outSumLogLikelihoodByPartition, double[] outSumLogLikelihood,
+				double[] outSumFirstDerivativeByPartition, double[] outSumFirstDerivative,
+				double[] outSumSecondDerivativeByPartition, double[] outSumSecondDerivative) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void getSiteDerivatives(double[] outFirstDerivatives, double[] outSecondDerivatives) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
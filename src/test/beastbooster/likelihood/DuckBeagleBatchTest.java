@@ -0,0 +1,104 @@
+package test.beastbooster.likelihood;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckBeagleTreeLikelihood;
+import beastbooster.likelihood.DuckTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks that batched likelihoods on the same tree get the same log likelihoods as likelihoods that
+ * are not batched, that evaluating one of them evaluates the others that need recalculating, and
+ * that BEAGLE likelihoods that are replaced are no longer evaluated with the batch.
+ * Uses the Java implementation of BEAGLE, so does not depend on native BEAGLE being installed.
+ */
+public class DuckBeagleBatchTest extends TestCase {
+
+	@Test
+	public void testBatch() throws Exception {
+		System.setProperty("java.only", "false");
+		System.setProperty("duck.java.beagle", "only");
+		try {
+			Alignment data = BEASTTestCase.getAlignment();
+			Tree tree = BEASTTestCase.getTree(data);
+			Alignment [] partitions = new Alignment[2];
+			for (int i = 0; i < partitions.length; i++) {
+				partitions[i] = new FilteredAlignment();
+				partitions[i].initByName("data", data, "filter", (i + 1) + "::2");
+			}
+
+			DuckBeagleTreeLikelihood [] batched = new DuckBeagleTreeLikelihood[2];
+			DuckBeagleTreeLikelihood [] single = new DuckBeagleTreeLikelihood[2];
+			for (int i = 0; i < partitions.length; i++) {
+				batched[i] = newLikelihood(partitions[i], tree, true);
+				single[i] = newLikelihood(partitions[i], tree, false);
+				assertEquals(single[i].calculateLogP(), batched[i].calculateLogP(), BEASTTestCase.PRECISION);
+			}
+
+			Node node = tree.getNode(tree.getLeafNodeCount());
+			node.setHeight((node.getHeight() + node.getParent().getHeight()) / 2);
+			for (int i = 0; i < partitions.length; i++) {
+				assertTrue(batched[i].requiresRecalculation());
+				assertTrue(single[i].requiresRecalculation());
+			}
+			assertEquals(single[0].calculateLogP(), batched[0].calculateLogP(), BEASTTestCase.PRECISION);
+			// the second partition was evaluated with the first
+			final double expected = single[1].calculateLogP();
+			assertEquals(expected, batched[1].getCurrentLogP(), BEASTTestCase.PRECISION);
+			assertEquals(expected, batched[1].calculateLogP(), BEASTTestCase.PRECISION);
+		} finally {
+			System.clearProperty("duck.java.beagle");
+		}
+	}
+
+	/** exposes the BEAGLE likelihood it delegates to **/
+	public static class DelegatingLikelihood extends DuckTreeLikelihood {
+		DuckBeagleTreeLikelihood getBeagleLikelihood() {
+			return (DuckBeagleTreeLikelihood) beagle;
+		}
+	}
+
+	@Test
+	public void testReplacedLikelihoodLeavesBatch() throws Exception {
+		System.setProperty("java.only", "false");
+		System.setProperty("duck.java.beagle", "only");
+		try {
+			Alignment data = BEASTTestCase.getAlignment();
+			Tree tree = BEASTTestCase.getTree(data);
+			DuckBeagleTreeLikelihood other = newLikelihood(data, tree, true);
+
+			DelegatingLikelihood likelihood = new DelegatingLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", other.siteModelInput.get(), "beagleBatch", true);
+			DuckBeagleTreeLikelihood replaced = likelihood.getBeagleLikelihood();
+			assertNotNull(replaced);
+			likelihood.initAndValidate();
+			assertNotSame(replaced, likelihood.getBeagleLikelihood());
+			final double logP = replaced.calculateLogP();
+			assertEquals(logP, other.calculateLogP(), BEASTTestCase.PRECISION);
+
+			Node node = tree.getNode(tree.getLeafNodeCount());
+			node.setHeight((node.getHeight() + node.getParent().getHeight()) / 2);
+			assertTrue(replaced.requiresRecalculation());
+			assertTrue(other.requiresRecalculation());
+			other.calculateLogP();
+			// the replaced likelihood would have been evaluated with the other if it were still in the batch
+			assertEquals(logP, replaced.getCurrentLogP(), 0.0);
+		} finally {
+			System.clearProperty("duck.java.beagle");
+		}
+	}
+
+	private DuckBeagleTreeLikelihood newLikelihood(Alignment data, Tree tree, boolean batch) throws Exception {
+		SiteModel siteModel = DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.5");
+
+		DuckBeagleTreeLikelihood likelihood = new DuckBeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "batch", batch);
+		return likelihood;
+	}
+}
@@ -0,0 +1,81 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckBeagleTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks DuckBeagleTreeLikelihood with a partials cache while the target moves around the tree and
+ * node heights are proposed, accepted and rejected: the log likelihood should be that of a new
+ * likelihood for the same tree, whether partials come from the cache or are recalculated. Uses the
+ * Java implementation of BEAGLE.
+ */
+public class DuckBeaglePartialsCacheTest extends TestCase {
+	final static int PROPOSALS = 200;
+
+	/** exposes the number of cached partials **/
+	public static class CachingLikelihood extends DuckBeagleTreeLikelihood {
+		int getCachedCount() {
+			return partialsPool.getCachedCount();
+		}
+	}
+
+	@Test
+	public void testMovingTarget() throws Exception {
+		System.setProperty("java.only", "false");
+		System.setProperty("duck.java.beagle", "only");
+		try {
+			Random rand = new Random(127);
+			Alignment data = BEASTTestCase.getAlignment();
+			Tree tree = BEASTTestCase.getTree(data);
+			final int tipCount = tree.getLeafNodeCount();
+			final int nodeCount = tree.getNodeCount();
+
+			CachingLikelihood likelihood = new CachingLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.137064"), "partialsCache", 4);
+			assertEquals(newLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+
+			int cached = 0;
+			for (int i = 0; i < PROPOSALS; i++) {
+				tree.setEverythingDirty(false);
+				likelihood.store();
+				likelihood.setTarget(tipCount + rand.nextInt(nodeCount - tipCount));
+
+				Node node = null;
+				double height = 0;
+				if (rand.nextBoolean()) {
+					node = tree.getNode(tipCount + rand.nextInt(nodeCount - tipCount - 1));
+					height = node.getHeight();
+					final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+					node.setHeight(lower + rand.nextDouble() * (node.getParent().getHeight() - lower));
+				}
+				likelihood.requiresRecalculation();
+				assertEquals(newLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+				cached = Math.max(cached, likelihood.getCachedCount());
+
+				if (node != null && rand.nextBoolean()) {
+					node.setHeight(height);
+					likelihood.restore();
+					likelihood.requiresRecalculation();
+					assertEquals(newLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+				}
+			}
+			assertTrue(cached > 0);
+		} finally {
+			System.clearProperty("duck.java.beagle");
+		}
+	}
+
+	private DuckBeagleTreeLikelihood newLikelihood(Alignment data, Tree tree) throws Exception {
+		DuckBeagleTreeLikelihood likelihood = new DuckBeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.137064"));
+		return likelihood;
+	}
+}
@@ -0,0 +1,91 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckBeagleTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks dynamic rescaling of DuckBeagleTreeLikelihood on a caterpillar tree that is deep enough
+ * to underflow without scaling: after height proposals that are accepted or rejected, where only
+ * the nodes on the dirty path get new scale factors, the log likelihood should be that of a new
+ * likelihood for the same tree. Uses the Java implementation of BEAGLE.
+ */
+public class DuckBeagleRescalingTest extends TestCase {
+	final static int TAXA = 600;
+	final static int SITES = 40;
+	final static int PROPOSALS = 20;
+
+	@Test
+	public void testRescaling() throws Exception {
+		System.setProperty("java.only", "false");
+		System.setProperty("duck.java.beagle", "only");
+		try {
+			Random rand = new Random(123);
+			Alignment data = new Alignment();
+			for (int i = 0; i < TAXA; i++) {
+				StringBuilder b = new StringBuilder();
+				for (int k = 0; k < SITES; k++) {
+					b.append("ACGT".charAt(rand.nextInt(4)));
+				}
+				data.sequenceInput.setValue(new Sequence("t" + i, b.toString()), data);
+			}
+			data.initByName("dataType", "nucleotide");
+
+			// caterpillar with internal nodes at heights 0.1, 0.2, ...
+			String newick = "(t0:0.1,t1:0.1)";
+			for (int i = 2; i < TAXA; i++) {
+				newick = "(" + newick + ":0.1,t" + i + ":" + (0.1 * i) + ")";
+			}
+			Tree tree = BEASTTestCase.getTree(data, newick + ";");
+
+			DuckBeagleTreeLikelihood likelihood = newLikelihood(data, tree);
+			final double logP = likelihood.calculateLogP();
+			assertFalse(Double.isInfinite(logP) || Double.isNaN(logP));
+
+			for (int i = 0; i < PROPOSALS; i++) {
+				Node node = tree.getNode(TAXA + rand.nextInt(TAXA - 2));
+				final double height = node.getHeight();
+				final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+				likelihood.store();
+				node.setHeight(lower + rand.nextDouble() * (node.getParent().getHeight() - lower));
+				assertTrue(likelihood.requiresRecalculation());
+				final double proposed = likelihood.calculateLogP();
+				assertEquals(newLikelihood(data, tree).calculateLogP(), proposed, 1e-6);
+				if (i % 2 == 0) {
+					node.setHeight(height);
+					likelihood.restore();
+					likelihood.requiresRecalculation();
+					assertEquals(newLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), 1e-6);
+				}
+			}
+		} finally {
+			System.clearProperty("duck.java.beagle");
+		}
+	}
+
+	private DuckBeagleTreeLikelihood newLikelihood(Alignment data, Tree tree) throws Exception {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data, "estimate", false);
+
+		HKY hky = new HKY();
+		hky.initByName("kappa", "2.0", "frequencies", freqs);
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.5", "substModel", hky);
+
+		DuckBeagleTreeLikelihood likelihood = new DuckBeagleTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+}
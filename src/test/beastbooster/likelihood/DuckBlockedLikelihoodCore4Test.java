@@ -0,0 +1,51 @@
+package test.beastbooster.likelihood;
+
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.assertSamePartials;
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.newCore;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckBlockedLikelihoodCore4;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore4;
+import junit.framework.TestCase;
+
+/**
+ * Checks the register blocked nucleotide core produces exactly the same partials
+ * as the plain unrolled core for all combinations of states and partials.
+ */
+public class DuckBlockedLikelihoodCore4Test extends TestCase {
+	final static int PATTERNS = 37;
+	final static int CATEGORIES = 4;
+
+	@Test
+	public void testTwoWayPruning() {
+		Random rand = new Random(123);
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore4(4), 4, PATTERNS, CATEGORIES, rand);
+		DuckLikelihoodCore blocked = newCore(new DuckBlockedLikelihoodCore4(4), 4, PATTERNS, CATEGORIES, new Random(123));
+
+		int [][] children = {{0, 1}, {0, 3}, {3, 0}, {3, 4}};
+		for (int [] c : children) {
+			core.calculatePartials(c[0], c[1], 6);
+			blocked.calculatePartials(c[0], c[1], 6);
+			assertSamePartials(core, blocked, 4, PATTERNS, CATEGORIES, 0.0);
+		}
+	}
+
+	@Test
+	public void testThreeWayPruning() {
+		Random rand = new Random(456);
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore4(4), 4, PATTERNS, CATEGORIES, rand);
+		DuckLikelihoodCore blocked = newCore(new DuckBlockedLikelihoodCore4(4), 4, PATTERNS, CATEGORIES, new Random(456));
+
+		int [][] children = {{0, 1, 2}, {0, 1, 3}, {0, 3, 1}, {3, 0, 1},
+				{0, 3, 4}, {3, 0, 4}, {3, 4, 0}, {3, 4, 5}};
+		for (int [] c : children) {
+			core.calculatePartials(c[0], c[1], c[2], 6);
+			blocked.calculatePartials(c[0], c[1], c[2], 6);
+			assertSamePartials(core, blocked, 4, PATTERNS, CATEGORIES, 0.0);
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package test.beastbooster.likelihood;
+
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.assertSamePartials;
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.newCore;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckCodonLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import junit.framework.TestCase;
+
+/**
+ * Checks the tiled codon core produces the same partials as the generic core
+ * for all combinations of states and partials, for odd and even state counts,
+ * and that log likelihoods at a pseudo-root are calculated with the tiled kernel.
+ */
+public class DuckCodonLikelihoodCoreTest extends TestCase {
+	// not a multiple of the pattern tile size
+	final static int PATTERNS = 37;
+	final static int CATEGORIES = 2;
+
+	@Test
+	public void testTwoWayPruning() {
+		for (int stateCount : new int[]{60, 61}) {
+			DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(123));
+			DuckLikelihoodCore codonCore = newCore(new DuckCodonLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(123));
+
+			int [][] children = {{0, 1}, {0, 3}, {3, 0}, {3, 4}};
+			for (int [] c : children) {
+				core.calculatePartials(c[0], c[1], 6);
+				codonCore.calculatePartials(c[0], c[1], 6);
+				assertSamePartials(core, codonCore, stateCount, PATTERNS, CATEGORIES, 1e-13);
+			}
+		}
+	}
+
+	@Test
+	public void testThreeWayPruning() {
+		for (int stateCount : new int[]{60, 61}) {
+			DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(456));
+			DuckLikelihoodCore codonCore = newCore(new DuckCodonLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(456));
+
+			int [][] children = {{0, 1, 2}, {0, 1, 3}, {0, 3, 1}, {3, 0, 1},
+					{0, 3, 4}, {3, 0, 4}, {3, 4, 0}, {3, 4, 5}};
+			for (int [] c : children) {
+				core.calculatePartials(c[0], c[1], c[2], 6);
+				codonCore.calculatePartials(c[0], c[1], c[2], 6);
+				assertSamePartials(core, codonCore, stateCount, PATTERNS, CATEGORIES, 1e-13);
+			}
+		}
+	}
+
+	/** counts tiles of child partials multiplied in, to check which kernel is used **/
+	static class CountingCodonCore extends DuckCodonLikelihoodCore {
+		int partialsTiles;
+
+		CountingCodonCore(int stateCount) {
+			super(stateCount);
+		}
+
+		@Override
+		protected void multiplyPartialsTile(double[] partials, double[] matrices, int w, int count, double[] out, int u) {
+			partialsTiles++;
+			super.multiplyPartialsTile(partials, matrices, w, count, out, u);
+		}
+	}
+
+	@Test
+	public void testPseudoRootUsesTiles() {
+		for (int stateCount : new int[]{60, 61}) {
+			DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(789));
+			CountingCodonCore codonCore = (CountingCodonCore) newCore(new CountingCodonCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(789));
+			double [] proportions = new double[CATEGORIES];
+			Arrays.fill(proportions, 1.0 / CATEGORIES);
+			double [] frequencies = new double[stateCount];
+			Arrays.fill(frequencies, 1.0 / stateCount);
+			double [] expected = new double[PATTERNS];
+			double [] actual = new double[PATTERNS];
+
+			int [][] children = {{0, 1, 3}, {3, 4, 5}};
+			for (int [] c : children) {
+				core.calculateLogLikelihoods(c[0], c[1], c[2], 6, proportions, frequencies, null, 0.0, expected);
+				codonCore.partialsTiles = 0;
+				codonCore.calculateLogLikelihoods(c[0], c[1], c[2], 6, proportions, frequencies, null, 0.0, actual);
+				// one tile per child with partials, category and block of patterns
+				final int tiles = (PATTERNS + 15) / 16 * CATEGORIES;
+				assertEquals(c[0] < 3 ? tiles : 3 * tiles, codonCore.partialsTiles);
+				for (int k = 0; k < PATTERNS; k++) {
+					assertEquals(expected[k], actual[k], 1e-12 * Math.max(1.0, Math.abs(expected[k])));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package test.beastbooster.likelihood;
+
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beastbooster.likelihood.DuckThreadedTreeLikelihood;
+
+//all test cases are in beast.evolution.likelihood.DuckTreeLikelihoodTest
+public class DuckDedicatedThreadsTreeLikelihoodTest extends DuckThreadedTreeLikelihoodTest {
+
+    @Override
+    protected GenericTreeLikelihood newTreeLikelihood() {
+    	System.setProperty("java.only","true");
+    	DuckThreadedTreeLikelihood likelihood = new DuckThreadedTreeLikelihood();
+    	likelihood.setInputValue("dedicatedThreads", true);
+        return likelihood;
+    }
+
+} // class DuckDedicatedThreadsTreeLikelihoodTest
@@ -0,0 +1,92 @@
+package test.beastbooster.likelihood;
+
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.assertSamePartials;
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.newCore;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckDirectLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import junit.framework.TestCase;
+
+/**
+ * Checks the off-heap core gives the same partials as the heap based core, including
+ * scaling and store/restore of the double buffered partials.
+ */
+public class DuckDirectLikelihoodCoreTest extends TestCase {
+	final static int PATTERNS = 113;
+	final static int CATEGORIES = 3;
+
+	@Test
+	public void testPruning() {
+		for (int stateCount : new int[]{4, 20}) {
+			DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(123));
+			DuckLikelihoodCore direct = newCore(new DuckDirectLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(123));
+
+			int [][] children = {{0, 1}, {0, 3}, {3, 0}, {3, 4}};
+			for (int [] c : children) {
+				core.calculatePartials(c[0], c[1], 6);
+				direct.calculatePartials(c[0], c[1], 6);
+				assertSamePartials(core, direct, stateCount, PATTERNS, CATEGORIES, 1e-13);
+			}
+			children = new int[][]{{0, 1, 2}, {0, 1, 3}, {0, 3, 1}, {3, 0, 1},
+					{0, 3, 4}, {3, 0, 4}, {3, 4, 0}, {3, 4, 5}};
+			for (int [] c : children) {
+				core.calculatePartials(c[0], c[1], c[2], 6);
+				direct.calculatePartials(c[0], c[1], c[2], 6);
+				assertSamePartials(core, direct, stateCount, PATTERNS, CATEGORIES, 1e-13);
+			}
+		}
+	}
+
+	@Test
+	public void testScaling() {
+		int stateCount = 4;
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(456));
+		DuckLikelihoodCore direct = newCore(new DuckDirectLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(456));
+		core.setUseScaling(1.01);
+		direct.setUseScaling(1.01);
+
+		// make partials of node 3 tiny so scaling kicks in
+		double [] partials = new double[PATTERNS * stateCount * CATEGORIES];
+		core.getNodePartials(3, partials);
+		for (int k = 0; k < partials.length; k++) {
+			partials[k] *= 1e-200;
+		}
+		core.setNodePartials(3, partials);
+		direct.setNodePartials(3, partials);
+
+		core.calculatePartials(3, 0, 6);
+		direct.calculatePartials(3, 0, 6);
+		assertSamePartials(core, direct, stateCount, PATTERNS, CATEGORIES, 1e-13);
+		for (int k = 0; k < PATTERNS; k++) {
+			assertEquals(core.getLogScalingFactor(k), direct.getLogScalingFactor(k), 1e-10);
+			assertTrue(direct.getLogScalingFactor(k) < -400);
+		}
+	}
+
+	@Test
+	public void testStoreRestore() {
+		int stateCount = 4;
+		DuckLikelihoodCore direct = newCore(new DuckDirectLikelihoodCore(stateCount), stateCount, PATTERNS, CATEGORIES, new Random(789));
+		double [] before = new double[PATTERNS * stateCount * CATEGORIES];
+		double [] after = new double[PATTERNS * stateCount * CATEGORIES];
+
+		direct.calculatePartials(0, 3, 6);
+		direct.getNodePartials(6, before);
+		direct.store();
+
+		direct.setNodePartialsForUpdate(6);
+		direct.calculatePartials(4, 5, 6);
+		direct.getNodePartials(6, after);
+		assertTrue(before[0] != after[0]);
+
+		direct.restore();
+		direct.getNodePartials(6, after);
+		for (int k = 0; k < before.length; k++) {
+			assertEquals(before[k], after[k], 0.0);
+		}
+	}
+}
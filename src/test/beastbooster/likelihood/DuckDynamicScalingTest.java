@@ -0,0 +1,188 @@
+package test.beastbooster.likelihood;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.likelihood.BeerLikelihoodCore;
+import beast.base.evolution.likelihood.LikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore4;
+import junit.framework.TestCase;
+
+/**
+ * Compares pattern log likelihoods of Duck cores with dynamic scaling against those of
+ * BeerLikelihoodCore, which checks every pattern at every node, on a caterpillar tree that
+ * is deep enough to underflow without scaling.
+ */
+public class DuckDynamicScalingTest extends TestCase {
+	final static int PATTERNS = 300;
+	final static int CATEGORIES = 4;
+	final static int TAXA = 300;
+
+	@Test
+	public void testNucleotideScaling() {
+		testScaling(new DuckLikelihoodCore4(4), 4);
+		testScaling(new DuckLikelihoodCore(4), 4);
+	}
+
+	@Test
+	public void testAminoAcidScaling() {
+		testScaling(new DuckLikelihoodCore(20), 20);
+	}
+
+	private void testScaling(DuckLikelihoodCore core, int stateCount) {
+		Random rand = new Random(123);
+		int nodeCount = 2 * TAXA - 1;
+		// extra tip with only gaps, used as third child of the root
+		int gap = nodeCount;
+		BeerLikelihoodCore beer = new BeerLikelihoodCore(stateCount);
+		beer.initialize(nodeCount + 1, PATTERNS, CATEGORIES, true, false);
+		core.initialize(nodeCount + 1, PATTERNS, CATEGORIES, true, false);
+		beer.setUseScaling(1.01);
+		core.setUseScaling(1.01);
+		for (int i = 0; i < TAXA; i++) {
+			int [] states = new int[PATTERNS];
+			for (int k = 0; k < PATTERNS; k++) {
+				// first half of the patterns is constant, so these blocks underflow much later
+				states[k] = k < PATTERNS / 2 ? k % stateCount : rand.nextInt(stateCount + 1);
+			}
+			beer.setNodeStates(i, states);
+			core.setNodeStates(i, states);
+		}
+		int [] gaps = new int[PATTERNS];
+		Arrays.fill(gaps, stateCount);
+		beer.setNodeStates(gap, gaps);
+		core.setNodeStates(gap, gaps);
+		for (int i = TAXA; i < nodeCount; i++) {
+			beer.createNodePartials(i);
+			core.createNodePartials(i);
+		}
+
+		for (int iteration = 0; iteration < 3; iteration++) {
+			calculate(beer, core, rand, stateCount, 0.1 * iteration);
+			assertLogLikelihoods(beer, core, nodeCount - 1, stateCount);
+			beer.store();
+			core.store();
+		}
+	}
+
+	/**
+	 * Patterns that are far from underflow after short branches should be checked again when
+	 * longer branches make them underflow.
+	 */
+	@Test
+	public void testBranchLengthChange() {
+		final int stateCount = 20;
+		DuckLikelihoodCore core = new DuckLikelihoodCore(stateCount);
+		BeerLikelihoodCore beer = new BeerLikelihoodCore(stateCount);
+		Random rand = new Random(456);
+		int nodeCount = 2 * TAXA - 1;
+		beer.initialize(nodeCount + 1, PATTERNS, CATEGORIES, true, false);
+		core.initialize(nodeCount + 1, PATTERNS, CATEGORIES, true, false);
+		beer.setUseScaling(1.01);
+		core.setUseScaling(1.01);
+		int [] states = new int[PATTERNS];
+		for (int k = 0; k < PATTERNS; k++) {
+			states[k] = k % stateCount;
+		}
+		for (int i = 0; i < TAXA; i++) {
+			// constant patterns only, so short branches keep all partials close to 1
+			beer.setNodeStates(i, states);
+			core.setNodeStates(i, states);
+		}
+		int [] gaps = new int[PATTERNS];
+		Arrays.fill(gaps, stateCount);
+		beer.setNodeStates(nodeCount, gaps);
+		core.setNodeStates(nodeCount, gaps);
+		for (int i = TAXA; i < nodeCount; i++) {
+			beer.createNodePartials(i);
+			core.createNodePartials(i);
+		}
+
+		calculate(beer, core, rand, stateCount, 1000.0);
+		assertEquals(0.0, core.getLogScalingFactor(0));
+		beer.store();
+		core.store();
+		calculate(beer, core, rand, stateCount, 0.0);
+		// these patterns would underflow if they were not checked again
+		assertTrue(core.getLogScalingFactor(0) < 0.0);
+		assertLogLikelihoods(beer, core, nodeCount - 1, stateCount);
+	}
+
+	/**
+	 * Sets random matrices, with diagonal added to the diagonal before normalising, and calculates
+	 * partials for a caterpillar tree, with the gap tip as third child of the root.
+	 */
+	private void calculate(BeerLikelihoodCore beer, DuckLikelihoodCore core, Random rand, int stateCount, double diagonal) {
+		int nodeCount = 2 * TAXA - 1;
+		int gap = nodeCount;
+		for (int i = 0; i <= nodeCount; i++) {
+			beer.setNodeMatrixForUpdate(i);
+			core.setNodeMatrixForUpdate(i);
+			setMatrices(beer, core, rand, i, stateCount, diagonal);
+		}
+
+		int previous = 0;
+		for (int i = 1; i < TAXA - 1; i++) {
+			int parent = TAXA + i - 1;
+			beer.setNodePartialsForUpdate(parent);
+			core.setNodePartialsForUpdate(parent);
+			beer.calculatePartials(previous, i, parent);
+			core.calculatePartials(previous, i, parent);
+			previous = parent;
+		}
+		int root = nodeCount - 1;
+		beer.setNodePartialsForUpdate(root);
+		core.setNodePartialsForUpdate(root);
+		beer.calculatePartials(previous, TAXA - 1, root);
+		core.calculatePartials(previous, TAXA - 1, gap, root);
+	}
+
+	private void setMatrices(LikelihoodCore beer, LikelihoodCore core, Random rand, int nodeIndex, int stateCount, double diagonal) {
+		for (int j = 0; j < CATEGORIES; j++) {
+			double [] matrix = new double[stateCount * stateCount];
+			for (int r = 0; r < stateCount; r++) {
+				double sum = 0;
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] = (r == c ? diagonal : 0) + rand.nextDouble();
+					sum += matrix[r * stateCount + c];
+				}
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] /= sum;
+				}
+			}
+			beer.setNodeMatrix(nodeIndex, j, matrix);
+			core.setNodeMatrix(nodeIndex, j, matrix);
+		}
+	}
+
+	private void assertLogLikelihoods(LikelihoodCore beer, LikelihoodCore core, int rootIndex, int stateCount) {
+		double [] proportions = new double[CATEGORIES];
+		for (int j = 0; j < CATEGORIES; j++) {
+			proportions[j] = 1.0 / CATEGORIES;
+		}
+		double [] frequencies = new double[stateCount];
+		for (int j = 0; j < stateCount; j++) {
+			frequencies[j] = 1.0 / stateCount;
+		}
+		double [] rootPartials = new double[PATTERNS * stateCount];
+		double [] expected = new double[PATTERNS];
+		double [] actual = new double[PATTERNS];
+		beer.integratePartials(rootIndex, proportions, rootPartials);
+		beer.calculateLogLikelihoods(rootPartials, frequencies, expected);
+		core.integratePartials(rootIndex, proportions, rootPartials);
+		core.calculateLogLikelihoods(rootPartials, frequencies, actual);
+		int scaledCount = 0;
+		for (int k = 0; k < PATTERNS; k++) {
+			assertFalse(Double.isInfinite(actual[k]));
+			assertEquals(expected[k], actual[k], Math.abs(expected[k]) * 1e-12);
+			if (expected[k] < Math.log(1e-100)) {
+				scaledCount++;
+			}
+		}
+		// make sure scaling kicked in for a good part of the patterns
+		assertTrue(scaledCount > PATTERNS / 4);
+	}
+}
@@ -0,0 +1,141 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckFloatLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import junit.framework.TestCase;
+
+/**
+ * Compares pattern log likelihoods of the float partials core with those of the
+ * double precision core on a caterpillar tree that is deep enough to require scaling
+ * of float partials.
+ */
+public class DuckFloatLikelihoodCoreTest extends TestCase {
+	final static int PATTERNS = 253;
+	final static int CATEGORIES = 4;
+
+	@Test
+	public void testNucleotideDrift() {
+		testDrift(4, 100);
+	}
+
+	@Test
+	public void testAminoAcidDrift() {
+		testDrift(20, 50);
+	}
+
+	@Test
+	public void testThreeWayPruning() {
+		int stateCount = 4;
+		Random rand = new Random(789);
+		DuckLikelihoodCore core = new DuckLikelihoodCore(stateCount);
+		DuckLikelihoodCore floatCore = new DuckFloatLikelihoodCore(stateCount);
+		core.initialize(6, PATTERNS, CATEGORIES, true, false);
+		floatCore.initialize(6, PATTERNS, CATEGORIES, true, false);
+		for (int i = 0; i < 3; i++) {
+			int [] states = randomStates(rand, stateCount);
+			core.setNodeStates(i, states);
+			floatCore.setNodeStates(i, states);
+		}
+		for (int i = 3; i < 6; i++) {
+			core.createNodePartials(i);
+			floatCore.createNodePartials(i);
+		}
+		for (int i = 0; i < 6; i++) {
+			setMatrices(core, floatCore, rand, i, stateCount);
+		}
+		core.calculatePartials(0, 1, 3);
+		floatCore.calculatePartials(0, 1, 3);
+		core.calculatePartials(3, 2, 4);
+		floatCore.calculatePartials(3, 2, 4);
+		core.calculatePartials(0, 3, 4, 5);
+		floatCore.calculatePartials(0, 3, 4, 5);
+		assertLogLikelihoods(core, floatCore, 5, stateCount, 1e-5);
+	}
+
+	private void testDrift(int stateCount, int taxonCount) {
+		Random rand = new Random(123);
+		int nodeCount = 2 * taxonCount - 1;
+		DuckLikelihoodCore core = new DuckLikelihoodCore(stateCount);
+		DuckLikelihoodCore floatCore = new DuckFloatLikelihoodCore(stateCount);
+		core.initialize(nodeCount, PATTERNS, CATEGORIES, true, false);
+		floatCore.initialize(nodeCount, PATTERNS, CATEGORIES, true, false);
+		core.setUseScaling(1.01);
+		for (int i = 0; i < taxonCount; i++) {
+			int [] states = randomStates(rand, stateCount);
+			core.setNodeStates(i, states);
+			floatCore.setNodeStates(i, states);
+		}
+		for (int i = taxonCount; i < nodeCount; i++) {
+			core.createNodePartials(i);
+			floatCore.createNodePartials(i);
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			setMatrices(core, floatCore, rand, i, stateCount);
+		}
+
+		// caterpillar tree
+		int previous = 0;
+		for (int i = 1; i < taxonCount; i++) {
+			int parent = taxonCount + i - 1;
+			core.calculatePartials(previous, i, parent);
+			floatCore.calculatePartials(previous, i, parent);
+			previous = parent;
+		}
+		assertLogLikelihoods(core, floatCore, nodeCount - 1, stateCount, 1e-4);
+	}
+
+	private int [] randomStates(Random rand, int stateCount) {
+		int [] states = new int[PATTERNS];
+		for (int k = 0; k < PATTERNS; k++) {
+			// mostly constant sites with some gaps
+			double r = rand.nextDouble();
+			states[k] = r < 0.05 ? stateCount : (r < 0.7 ? k % stateCount : rand.nextInt(stateCount));
+		}
+		return states;
+	}
+
+	private void setMatrices(DuckLikelihoodCore core, DuckLikelihoodCore floatCore, Random rand, int nodeIndex, int stateCount) {
+		for (int j = 0; j < CATEGORIES; j++) {
+			// random row stochastic matrix with large diagonal
+			double [] matrix = new double[stateCount * stateCount];
+			for (int r = 0; r < stateCount; r++) {
+				double sum = 0;
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] = (r == c ? stateCount : 0) + rand.nextDouble();
+					sum += matrix[r * stateCount + c];
+				}
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] /= sum;
+				}
+			}
+			core.setNodeMatrix(nodeIndex, j, matrix);
+			floatCore.setNodeMatrix(nodeIndex, j, matrix);
+		}
+	}
+
+	private void assertLogLikelihoods(DuckLikelihoodCore core, DuckLikelihoodCore floatCore, int rootIndex, int stateCount, double relativeTolerance) {
+		double [] proportions = new double[CATEGORIES];
+		for (int j = 0; j < CATEGORIES; j++) {
+			proportions[j] = 1.0 / CATEGORIES;
+		}
+		double [] frequencies = new double[stateCount];
+		for (int j = 0; j < stateCount; j++) {
+			frequencies[j] = 1.0 / stateCount;
+		}
+		double [] rootPartials = new double[PATTERNS * stateCount];
+		double [] expected = new double[PATTERNS];
+		double [] actual = new double[PATTERNS];
+		core.integratePartials(rootIndex, proportions, rootPartials);
+		core.calculateLogLikelihoods(rootPartials, frequencies, expected);
+		floatCore.integratePartials(rootIndex, proportions, rootPartials);
+		floatCore.calculateLogLikelihoods(rootPartials, frequencies, actual);
+		for (int k = 0; k < PATTERNS; k++) {
+			assertFalse(Double.isInfinite(actual[k]));
+			assertEquals(expected[k], actual[k], Math.max(Math.abs(expected[k]) * relativeTolerance, 1e-10));
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package test.beastbooster.likelihood;
+
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beastbooster.likelihood.DuckThreadedTreeLikelihood;
+
+//all test cases are in beast.evolution.likelihood.DuckTreeLikelihoodTest
+public class DuckForkJoinTreeLikelihoodTest extends DuckThreadedTreeLikelihoodTest {
+
+    @Override
+    protected GenericTreeLikelihood newTreeLikelihood() {
+    	System.setProperty("java.only","true");
+    	DuckThreadedTreeLikelihood likelihood = new DuckThreadedTreeLikelihood();
+    	likelihood.setInputValue("forkJoin", true);
+    	likelihood.setInputValue("chunksPerThread", 5);
+        return likelihood;
+    }
+
+} // class DuckForkJoinTreeLikelihoodTest
@@ -0,0 +1,204 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore20;
+import beastbooster.likelihood.DuckLikelihoodCore4;
+import junit.framework.TestCase;
+
+/**
+ * Checks derivatives of pattern log likelihoods with respect to the height of a node
+ * against central finite differences, under a Jukes-Cantor like model for S states
+ * with closed form transition probabilities.
+ */
+public class DuckHeightGradientTest extends TestCase {
+	final static int PATTERNS = 37;
+	final static double [] RATES = {0.3, 0.8, 1.2, 1.7};
+	final static int CATEGORIES = RATES.length;
+	final static double PROPORTION_INVARIANT = 0.1;
+	final static double DELTA = 1e-6;
+	// leaves 0-4, tree ((((0,1)5,2)6,(3,4)7)8
+	final static int NODES = 9;
+	final static int ROOT = 8;
+	final static double [] HEIGHTS = {0.0, 0.05, 0.1, 0.0, 0.02, 0.15, 0.25, 0.2, 0.4};
+	final static int [] PARENT = {5, 5, 6, 7, 7, 6, 8, 8, -1};
+
+	@Test
+	public void testNucleotide() {
+		testGradient(new DuckLikelihoodCore4(4), 4);
+		testGradient(new DuckLikelihoodCore(4), 4);
+	}
+
+	@Test
+	public void testAminoAcid() {
+		testGradient(new DuckLikelihoodCore20(20), 20);
+	}
+
+	private void testGradient(DuckLikelihoodCore core, int stateCount) {
+		Random rand = new Random(123);
+		core.initialize(NODES, PATTERNS, CATEGORIES, true, false);
+		for (int i = 0; i < 5; i++) {
+			int [] states = new int[PATTERNS];
+			for (int k = 0; k < PATTERNS; k++) {
+				// first patterns are constant, state stateCount represents a gap
+				states[k] = k < 3 ? k : rand.nextInt(stateCount + 1);
+			}
+			core.setNodeStates(i, states);
+		}
+		for (int i = 5; i < NODES; i++) {
+			core.createNodePartials(i);
+		}
+		double [] proportions = new double[CATEGORIES];
+		for (int i = 0; i < CATEGORIES; i++) {
+			proportions[i] = (1.0 - PROPORTION_INVARIANT) / CATEGORIES;
+		}
+		double [] frequencies = new double[stateCount];
+		for (int i = 0; i < stateCount; i++) {
+			frequencies[i] = 1.0 / stateCount;
+		}
+		int [] constantPattern = new int[3];
+		for (int k = 0; k < 3; k++) {
+			constantPattern[k] = k * stateCount + k;
+		}
+		double [] heights = HEIGHTS.clone();
+		double [] actual = new double[PATTERNS];
+
+		// root with two children
+		calculateTree(core, heights, stateCount);
+		double [] expected = finiteDifference(core, heights, ROOT, stateCount, proportions, frequencies, constantPattern, -1);
+		core.calculateLogLikelihoodDerivatives(6, 7, -1,
+				derivatives(heights, 6, ROOT, 1.0, stateCount), derivatives(heights, 7, ROOT, 1.0, stateCount), null,
+				proportions, frequencies, constantPattern, PROPORTION_INVARIANT, actual);
+		assertDerivatives(expected, actual);
+
+		// pseudo-root at node 6 with neighbours 5, 2 and 7
+		setMatrix(core, heights[8] - heights[6] + heights[8] - heights[7], 7, stateCount);
+		expected = finiteDifference(core, heights, 6, stateCount, proportions, frequencies, constantPattern, 7);
+		core.calculateLogLikelihoodDerivatives(5, 2, 7,
+				derivatives(heights, 5, 6, 1.0, stateCount), derivatives(heights, 2, 6, 1.0, stateCount),
+				derivatives(heights[8] - heights[6] + heights[8] - heights[7], -1.0, stateCount),
+				proportions, frequencies, constantPattern, PROPORTION_INVARIANT, actual);
+		assertDerivatives(expected, actual);
+
+		// pre-order partials at nodes 6 and 5
+		calculateTree(core, heights, stateCount);
+		expected = finiteDifference(core, heights, 6, stateCount, proportions, frequencies, constantPattern, -1);
+		core.calculatePreOrderLogLikelihoodDerivatives(-1, 7, 6, 5, 2,
+				derivatives(heights, 6, ROOT, -1.0, stateCount),
+				derivatives(heights, 5, 6, 1.0, stateCount), derivatives(heights, 2, 6, 1.0, stateCount),
+				proportions, frequencies, constantPattern, PROPORTION_INVARIANT, actual);
+		assertDerivatives(expected, actual);
+
+		expected = finiteDifference(core, heights, 5, stateCount, proportions, frequencies, constantPattern, -1);
+		core.setNodePreOrderPartialsForUpdate(6);
+		core.calculateRootChildPreOrderPartials(frequencies, 7, 6);
+		core.calculatePreOrderLogLikelihoodDerivatives(6, 2, 5, 0, 1,
+				derivatives(heights, 5, 6, -1.0, stateCount),
+				derivatives(heights, 0, 5, 1.0, stateCount), derivatives(heights, 1, 5, 1.0, stateCount),
+				proportions, frequencies, constantPattern, PROPORTION_INVARIANT, actual);
+		assertDerivatives(expected, actual);
+	}
+
+	private void assertDerivatives(double [] expected, double [] actual) {
+		for (int k = 0; k < PATTERNS; k++) {
+			assertEquals(expected[k], actual[k], 1e-6 * Math.max(1.0, Math.abs(expected[k])));
+		}
+	}
+
+	/**
+	 * Central differences of pattern log likelihoods in the height of a node. If neighbour3 >= 0, the
+	 * likelihood is calculated at node 6 as pseudo-root with neighbours 5, 2 and neighbour3,
+	 * otherwise at the root of the tree.
+	 */
+	private double [] finiteDifference(DuckLikelihoodCore core, double [] heights, int nodeIndex, int stateCount,
+			double [] proportions, double [] frequencies, int [] constantPattern, int neighbour3) {
+		double [] upper = new double[PATTERNS];
+		double [] lower = new double[PATTERNS];
+		double height = heights[nodeIndex];
+		heights[nodeIndex] = height + DELTA;
+		logLikelihoods(core, heights, stateCount, proportions, frequencies, constantPattern, neighbour3, upper);
+		heights[nodeIndex] = height - DELTA;
+		logLikelihoods(core, heights, stateCount, proportions, frequencies, constantPattern, neighbour3, lower);
+		heights[nodeIndex] = height;
+		// leave the core in the state for the original heights
+		calculateTree(core, heights, stateCount);
+		if (neighbour3 >= 0) {
+			setMatrix(core, heights[8] - heights[6] + heights[8] - heights[7], 7, stateCount);
+		}
+		double [] derivatives = new double[PATTERNS];
+		for (int k = 0; k < PATTERNS; k++) {
+			derivatives[k] = (upper[k] - lower[k]) / (2 * DELTA);
+		}
+		return derivatives;
+	}
+
+	private void logLikelihoods(DuckLikelihoodCore core, double [] heights, int stateCount,
+			double [] proportions, double [] frequencies, int [] constantPattern, int neighbour3, double [] out) {
+		calculateTree(core, heights, stateCount);
+		if (neighbour3 >= 0) {
+			// branch from 6 through the root to 7
+			setMatrix(core, heights[8] - heights[6] + heights[8] - heights[7], 7, stateCount);
+			core.calculateLogLikelihoods(5, 2, neighbour3, ROOT, proportions, frequencies, constantPattern, PROPORTION_INVARIANT, out);
+		} else {
+			double [] rootPartials = new double[PATTERNS * stateCount];
+			core.integratePartials(ROOT, proportions, rootPartials);
+			for (int i : constantPattern) {
+				rootPartials[i] += PROPORTION_INVARIANT;
+			}
+			core.calculateLogLikelihoods(rootPartials, frequencies, out);
+		}
+	}
+
+	private void calculateTree(DuckLikelihoodCore core, double [] heights, int stateCount) {
+		for (int i = 0; i < ROOT; i++) {
+			setMatrix(core, heights[PARENT[i]] - heights[i], i, stateCount);
+		}
+		core.setNodePartialsForUpdate(5);
+		core.calculatePartials(0, 1, 5);
+		core.setNodePartialsForUpdate(6);
+		core.calculatePartials(5, 2, 6);
+		core.setNodePartialsForUpdate(7);
+		core.calculatePartials(3, 4, 7);
+		core.setNodePartialsForUpdate(ROOT);
+		core.calculatePartials(6, 7, ROOT);
+	}
+
+	private void setMatrix(DuckLikelihoodCore core, double branchLength, int nodeIndex, int stateCount) {
+		core.setNodeMatrixForUpdate(nodeIndex);
+		for (int l = 0; l < CATEGORIES; l++) {
+			double [] matrix = new double[stateCount * stateCount];
+			double e = Math.exp(-stateCount * branchLength * RATES[l] / (stateCount - 1));
+			for (int i = 0; i < stateCount; i++) {
+				for (int j = 0; j < stateCount; j++) {
+					matrix[i * stateCount + j] = 1.0 / stateCount + ((i == j ? 1.0 : 0.0) - 1.0 / stateCount) * e;
+				}
+			}
+			core.setNodeMatrix(nodeIndex, l, matrix);
+		}
+	}
+
+	/**
+	 * Derivatives of the matrices of the branch from child to parent with respect to a height,
+	 * where lengthDerivative is the derivative of the branch length with respect to that height.
+	 */
+	private double [] derivatives(double [] heights, int child, int parent, double lengthDerivative, int stateCount) {
+		return derivatives(heights[parent] - heights[child], lengthDerivative, stateCount);
+	}
+
+	private double [] derivatives(double branchLength, double lengthDerivative, int stateCount) {
+		double [] derivatives = new double[stateCount * stateCount * CATEGORIES];
+		for (int l = 0; l < CATEGORIES; l++) {
+			double rate = stateCount * RATES[l] / (stateCount - 1);
+			double de = -rate * Math.exp(-rate * branchLength) * lengthDerivative;
+			for (int i = 0; i < stateCount; i++) {
+				for (int j = 0; j < stateCount; j++) {
+					derivatives[(l * stateCount + i) * stateCount + j] = ((i == j ? 1.0 : 0.0) - 1.0 / stateCount) * de;
+				}
+			}
+		}
+		return derivatives;
+	}
+}
@@ -0,0 +1,27 @@
+package test.beastbooster.likelihood;
+
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beastbooster.likelihood.DuckBeagleTreeLikelihood;
+
+// all test cases are in beast.evolution.likelihood.DuckTreeLikelihoodTest
+public class DuckJavaBeagleTreeLikelihoodTest extends DuckTreeLikelihoodTest {
+
+    public DuckJavaBeagleTreeLikelihoodTest() {
+        super();
+    }
+
+    @Override
+    protected GenericTreeLikelihood newTreeLikelihood() {
+    	System.setProperty("java.only","false");
+    	// use the Java implementation of BEAGLE even if native BEAGLE is installed
+    	System.setProperty("duck.java.beagle","only");
+        return new DuckBeagleTreeLikelihood();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+    	System.clearProperty("duck.java.beagle");
+    	super.tearDown();
+    }
+
+} // class DuckJavaBeagleTreeLikelihoodTest
@@ -0,0 +1,87 @@
+package test.beastbooster.likelihood;
+
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.assertSamePartials;
+import static test.beastbooster.likelihood.LikelihoodCoreTestHelper.newCore;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore20;
+import junit.framework.TestCase;
+
+/**
+ * Checks the amino acid core produces exactly the same partials
+ * as the generic core for all combinations of states and partials,
+ * also when calculating log likelihoods at a pseudo-root.
+ */
+public class DuckLikelihoodCore20Test extends TestCase {
+	final static int PATTERNS = 37;
+	final static int CATEGORIES = 4;
+
+	@Test
+	public void testTwoWayPruning() {
+		Random rand = new Random(123);
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(20), 20, PATTERNS, CATEGORIES, rand);
+		DuckLikelihoodCore core20 = newCore(new DuckLikelihoodCore20(20), 20, PATTERNS, CATEGORIES, new Random(123));
+
+		int [][] children = {{0, 1}, {0, 3}, {3, 0}, {3, 4}};
+		for (int [] c : children) {
+			core.calculatePartials(c[0], c[1], 6);
+			core20.calculatePartials(c[0], c[1], 6);
+			assertSamePartials(core, core20, 20, PATTERNS, CATEGORIES, 0.0);
+		}
+	}
+
+	@Test
+	public void testThreeWayPruning() {
+		Random rand = new Random(456);
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(20), 20, PATTERNS, CATEGORIES, rand);
+		DuckLikelihoodCore core20 = newCore(new DuckLikelihoodCore20(20), 20, PATTERNS, CATEGORIES, new Random(456));
+
+		int [][] children = {{0, 1, 2}, {0, 1, 3}, {0, 3, 1}, {3, 0, 1},
+				{0, 3, 4}, {3, 0, 4}, {3, 4, 0}, {3, 4, 5}};
+		for (int [] c : children) {
+			core.calculatePartials(c[0], c[1], c[2], 6);
+			core20.calculatePartials(c[0], c[1], c[2], 6);
+			assertSamePartials(core, core20, 20, PATTERNS, CATEGORIES, 0.0);
+		}
+	}
+
+	/** counts calls of the blocked kernel for three children with partials **/
+	static class CountingCore20 extends DuckLikelihoodCore20 {
+		int calls;
+
+		CountingCore20() {
+			super(20);
+		}
+
+		@Override
+		protected void calculatePartialsPartialsPartialsPruning(double[] partials1, double[] matrices1,
+				double[] partials2, double[] matrices2, double[] partials3, double[] matrices3, double[] partials4) {
+			calls++;
+			super.calculatePartialsPartialsPartialsPruning(partials1, matrices1, partials2, matrices2, partials3, matrices3, partials4);
+		}
+	}
+
+	@Test
+	public void testPseudoRootUsesBlockedKernel() {
+		DuckLikelihoodCore core = newCore(new DuckLikelihoodCore(20), 20, PATTERNS, CATEGORIES, new Random(789));
+		CountingCore20 core20 = (CountingCore20) newCore(new CountingCore20(), 20, PATTERNS, CATEGORIES, new Random(789));
+		double [] proportions = new double[CATEGORIES];
+		Arrays.fill(proportions, 1.0 / CATEGORIES);
+		double [] frequencies = new double[20];
+		Arrays.fill(frequencies, 1.0 / 20);
+		double [] expected = new double[PATTERNS];
+		double [] actual = new double[PATTERNS];
+
+		core.calculateLogLikelihoods(3, 4, 5, 6, proportions, frequencies, null, 0.0, expected);
+		core20.calculateLogLikelihoods(3, 4, 5, 6, proportions, frequencies, null, 0.0, actual);
+		assertEquals(1, core20.calls);
+		for (int k = 0; k < PATTERNS; k++) {
+			assertEquals(expected[k], actual[k], 1e-12 * Math.max(1.0, Math.abs(expected[k])));
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package test.beastbooster.likelihood;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckBlockedLikelihoodCore4;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore20;
+import junit.framework.TestCase;
+
+/**
+ * Checks pattern log likelihoods calculated at internal nodes from partials and pre-order
+ * partials against those calculated at the root, and that pre-order partials are restored.
+ */
+public class DuckPreOrderPartialsTest extends TestCase {
+	final static int PATTERNS = 57;
+	final static int CATEGORIES = 4;
+	final static double PROPORTION_INVARIANT = 0.2;
+	// leaves 0-4, tree ((((0,1)5,2)6,(3,4)7)8
+	final static int NODES = 9;
+	final static int ROOT = 8;
+
+	@Test
+	public void testNucleotide() {
+		testPreOrder(new DuckBlockedLikelihoodCore4(4), 4);
+		testPreOrder(new DuckLikelihoodCore(4), 4);
+	}
+
+	@Test
+	public void testAminoAcid() {
+		testPreOrder(new DuckLikelihoodCore20(20), 20);
+	}
+
+	private void testPreOrder(DuckLikelihoodCore core, int stateCount) {
+		Random rand = new Random(123);
+		core.initialize(NODES, PATTERNS, CATEGORIES, true, false);
+		for (int i = 0; i < 5; i++) {
+			int [] states = new int[PATTERNS];
+			for (int k = 0; k < PATTERNS; k++) {
+				// first patterns are constant, state stateCount represents a gap
+				states[k] = k < stateCount ? k : rand.nextInt(stateCount + 1);
+			}
+			core.setNodeStates(i, states);
+		}
+		for (int i = 5; i < NODES; i++) {
+			core.createNodePartials(i);
+		}
+		for (int i = 0; i < ROOT; i++) {
+			setMatrices(core, rand, i, stateCount);
+		}
+		core.setNodePartialsForUpdate(5);
+		core.calculatePartials(0, 1, 5);
+		core.setNodePartialsForUpdate(6);
+		core.calculatePartials(5, 2, 6);
+		core.setNodePartialsForUpdate(7);
+		core.calculatePartials(3, 4, 7);
+		core.setNodePartialsForUpdate(ROOT);
+		core.calculatePartials(6, 7, ROOT);
+
+		double [] proportions = new double[CATEGORIES];
+		for (int i = 0; i < CATEGORIES; i++) {
+			proportions[i] = (1.0 - PROPORTION_INVARIANT) / CATEGORIES;
+		}
+		double [] frequencies = new double[stateCount];
+		double sum = 0;
+		for (int i = 0; i < stateCount; i++) {
+			frequencies[i] = 0.5 + rand.nextDouble();
+			sum += frequencies[i];
+		}
+		for (int i = 0; i < stateCount; i++) {
+			frequencies[i] /= sum;
+		}
+		int [] constantPattern = new int[stateCount];
+		for (int k = 0; k < stateCount; k++) {
+			constantPattern[k] = k * stateCount + k;
+		}
+
+		double [] rootPartials = new double[PATTERNS * stateCount];
+		double [] expected = new double[PATTERNS];
+		core.integratePartials(ROOT, proportions, rootPartials);
+		for (int i : constantPattern) {
+			rootPartials[i] += PROPORTION_INVARIANT;
+		}
+		core.calculateLogLikelihoods(rootPartials, frequencies, expected);
+
+		core.setNodePreOrderPartialsForUpdate(6);
+		core.calculateRootChildPreOrderPartials(frequencies, 7, 6);
+		core.setNodePreOrderPartialsForUpdate(7);
+		core.calculateRootChildPreOrderPartials(frequencies, 6, 7);
+		core.setNodePreOrderPartialsForUpdate(5);
+		core.calculatePreOrderPartials(6, 2, 5);
+
+		double [] actual = new double[PATTERNS];
+		for (int node = 5; node < ROOT; node++) {
+			core.calculatePreOrderLogLikelihoods(node, proportions, frequencies, constantPattern, PROPORTION_INVARIANT, actual);
+			for (int k = 0; k < PATTERNS; k++) {
+				assertEquals(expected[k], actual[k], Math.abs(expected[k]) * 1e-12);
+			}
+		}
+
+		// pre-order partials of 5 depend on the branch above leaf 2
+		int size = PATTERNS * stateCount * CATEGORIES;
+		double [] stored = new double[size];
+		core.getNodePreOrderPartials(5, stored);
+		core.store();
+		core.setNodeMatrixForUpdate(2);
+		setMatrices(core, rand, 2, stateCount);
+		core.setNodePreOrderPartialsForUpdate(5);
+		core.calculatePreOrderPartials(6, 2, 5);
+		double [] changed = new double[size];
+		core.getNodePreOrderPartials(5, changed);
+		assertFalse(Arrays.equals(stored, changed));
+		core.restore();
+		double [] restored = new double[size];
+		core.getNodePreOrderPartials(5, restored);
+		assertTrue(Arrays.equals(stored, restored));
+	}
+
+	private void setMatrices(DuckLikelihoodCore core, Random rand, int nodeIndex, int stateCount) {
+		for (int j = 0; j < CATEGORIES; j++) {
+			double [] matrix = new double[stateCount * stateCount];
+			for (int r = 0; r < stateCount; r++) {
+				double sum = 0;
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] = (r == c ? 1.0 : 0) + rand.nextDouble();
+					sum += matrix[r * stateCount + c];
+				}
+				for (int c = 0; c < stateCount; c++) {
+					matrix[r * stateCount + c] /= sum;
+				}
+			}
+			core.setNodeMatrix(nodeIndex, j, matrix);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckBlockedLikelihoodCore4;
+import beastbooster.likelihood.DuckCodonLikelihoodCore;
+import beastbooster.likelihood.DuckDirectLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore20;
+import beastbooster.likelihood.DuckLikelihoodCore4;
+import beastbooster.likelihood.DuckTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks fused pattern log likelihoods at a pseudo-root against pruning into the
+ * root, integrating across categories and calculating log likelihoods in separate steps,
+ * and that a likelihood using them stays correct when the target moves and is restored.
+ */
+public class DuckPseudoRootLikelihoodTest extends TestCase {
+	final static int PATTERNS = 57;
+	final static int CATEGORIES = 4;
+	// nodes 0-2 have states, 3-5 have partials, 6 is used for the root
+	final static int NODES = 7;
+
+	@Test
+	public void testNucleotide() {
+		testPseudoRoot(new DuckLikelihoodCore4(4), 4);
+		testPseudoRoot(new DuckBlockedLikelihoodCore4(4), 4);
+		testPseudoRoot(new DuckLikelihoodCore(4), 4);
+		testPseudoRoot(new DuckDirectLikelihoodCore(4), 4);
+	}
+
+	@Test
+	public void testAminoAcid() {
+		testPseudoRoot(new DuckLikelihoodCore20(20), 20);
+	}
+
+	@Test
+	public void testCodon() {
+		testPseudoRoot(new DuckCodonLikelihoodCore(61), 61);
+	}
+
+	private void testPseudoRoot(DuckLikelihoodCore core, int stateCount) {
+		Random rand = new Random(123);
+		core.initialize(NODES, PATTERNS, CATEGORIES, true, false);
+		for (int i = 0; i < 3; i++) {
+			int [] states = new int[PATTERNS];
+			for (int k = 0; k < PATTERNS; k++) {
+				// state stateCount represents a gap
+				states[k] = rand.nextInt(stateCount + 1);
+			}
+			core.setNodeStates(i, states);
+		}
+		for (int i = 3; i < NODES; i++) {
+			core.createNodePartials(i);
+			double [] partials = new double[PATTERNS * stateCount * CATEGORIES];
+			for (int k = 0; k < partials.length; k++) {
+				partials[k] = rand.nextDouble();
+			}
+			core.setNodePartials(i, partials);
+		}
+		for (int i = 0; i < NODES; i++) {
+			for (int j = 0; j < CATEGORIES; j++) {
+				double [] matrix = new double[stateCount * stateCount];
+				for (int k = 0; k < matrix.length; k++) {
+					matrix[k] = rand.nextDouble();
+				}
+				core.setNodeMatrix(i, j, matrix);
+			}
+		}
+
+		double [] proportions = new double[CATEGORIES];
+		for (int j = 0; j < CATEGORIES; j++) {
+			proportions[j] = 0.8 / CATEGORIES;
+		}
+		double [] frequencies = new double[stateCount];
+		for (int j = 0; j < stateCount; j++) {
+			frequencies[j] = (1.0 + j) / (stateCount * (stateCount + 1) / 2);
+		}
+		// every third pattern is constant in a state
+		int [] constantPattern = new int[(PATTERNS + 2) / 3];
+		for (int k = 0; k < constantPattern.length; k++) {
+			constantPattern[k] = 3 * k * stateCount + k % stateCount;
+		}
+
+		int [][] children = {{0, 1, 2}, {0, 1, 3}, {3, 0, 1}, {0, 3, 4}, {3, 4, 0}, {3, 4, 5}};
+		double [] rootPartials = new double[PATTERNS * stateCount];
+		double [] expected = new double[PATTERNS];
+		double [] actual = new double[PATTERNS];
+		for (int [] c : children) {
+			for (int [] invariant : new int[][]{null, constantPattern}) {
+				core.calculatePartials(c[0], c[1], c[2], 6);
+				core.integratePartials(6, proportions, rootPartials);
+				if (invariant != null) {
+					for (int i : invariant) {
+						rootPartials[i] += 0.2;
+					}
+				}
+				core.calculateLogLikelihoods(rootPartials, frequencies, expected);
+
+				core.calculateLogLikelihoods(c[0], c[1], c[2], 6, proportions, frequencies, invariant, 0.2, actual);
+				for (int k = 0; k < PATTERNS; k++) {
+					assertEquals(expected[k], actual[k], 1e-12);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The fused calculation leaves the partials of the target out of date. When the subtree of the
+	 * target changed, the target moved in a rejected proposal, and the next proposal uses the new
+	 * target again, the partials of the old target should still be recalculated.
+	 */
+	@Test
+	public void testRestoreAfterTargetMove() throws Exception {
+		System.setProperty("java.only", "true");
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+
+		// the old target has an internal child, which is moved while it is the target
+		Node target = null;
+		for (Node node : tree.getInternalNodes()) {
+			if (!node.isRoot() && !node.getLeft().isLeaf()) {
+				target = node;
+			}
+		}
+		assertNotNull(target);
+		final Node child = target.getLeft();
+		Node newTarget = null;
+		for (Node node : tree.getInternalNodes()) {
+			if (node != target && node != child && !node.isRoot()) {
+				newTarget = node;
+			}
+		}
+		assertNotNull(newTarget);
+
+		DuckTreeLikelihood likelihood = newTreeLikelihood(data, tree);
+		likelihood.setTarget(target.getNr());
+		assertEquals(newTreeLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+
+		// accepted proposals in the subtree of the target
+		final double lower = Math.max(child.getLeft().getHeight(), child.getRight().getHeight());
+		for (int i = 1; i <= 3; i++) {
+			tree.setEverythingDirty(false);
+			likelihood.store();
+			child.setHeight(lower + (target.getHeight() - lower) * i / 4.0);
+			likelihood.requiresRecalculation();
+			assertEquals(newTreeLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+		}
+
+		// rejected proposal at the new target
+		final double height = newTarget.getHeight();
+		tree.setEverythingDirty(false);
+		likelihood.store();
+		likelihood.setTarget(newTarget.getNr());
+		newTarget.setHeight(height + (newTarget.getParent().getHeight() - height) / 2);
+		likelihood.requiresRecalculation();
+		likelihood.calculateLogP();
+		newTarget.setHeight(height);
+		likelihood.restore();
+
+		// next proposal at the new target
+		tree.setEverythingDirty(false);
+		likelihood.store();
+		likelihood.setTarget(newTarget.getNr());
+		newTarget.setHeight(height + (newTarget.getParent().getHeight() - height) / 4);
+		likelihood.requiresRecalculation();
+		assertEquals(newTreeLikelihood(data, tree).calculateLogP(), likelihood.calculateLogP(), BEASTTestCase.PRECISION);
+	}
+
+	private DuckTreeLikelihood newTreeLikelihood(Alignment data, Tree tree) throws Exception {
+		SiteModel siteModel = DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.137064");
+
+		// no scaling, so the fused calculation at the pseudo-root is used
+		DuckTreeLikelihood likelihood = new DuckTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", TreeLikelihood.Scaling.none);
+		return likelihood;
+	}
+}
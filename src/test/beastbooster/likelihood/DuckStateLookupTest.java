@@ -0,0 +1,96 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.DuckLikelihoodCore4;
+import junit.framework.TestCase;
+
+/**
+ * Checks partials of nodes with only tips as children are the same whether they are
+ * calculated through tip state lookup tables or directly.
+ */
+public class DuckStateLookupTest extends TestCase {
+	final static int CATEGORIES = 3;
+	// nodes 0-2 have states, 3 is used for the result
+	final static int NODES = 4;
+
+	@Test
+	public void testNucleotideLookup() {
+		// 200 > 5^3 patterns, so lookup is used for 2 and 3 children
+		testLookup(new DuckLikelihoodCore4(4), new DuckLikelihoodCore4(4) {
+			@Override
+			protected boolean useStateLookup(int childCount) {
+				return false;
+			}
+		}, 4, 200);
+	}
+
+	@Test
+	public void testGenericLookup() {
+		testLookup(new DuckLikelihoodCore(4), new DuckLikelihoodCore(4) {
+			@Override
+			protected boolean useStateLookup(int childCount) {
+				return false;
+			}
+		}, 4, 200);
+	}
+
+	@Test
+	public void testAminoAcidLookup() {
+		// 500 > 21^2 patterns, so lookup is used for 2 children only
+		testLookup(new DuckLikelihoodCore(20), new DuckLikelihoodCore(20) {
+			@Override
+			protected boolean useStateLookup(int childCount) {
+				return false;
+			}
+		}, 20, 500);
+	}
+
+	private void testLookup(DuckLikelihoodCore lookup, DuckLikelihoodCore direct, int stateCount, int patternCount) {
+		Random rand = new Random(123);
+		lookup.initialize(NODES, patternCount, CATEGORIES, true, false);
+		direct.initialize(NODES, patternCount, CATEGORIES, true, false);
+		for (int i = 0; i < 3; i++) {
+			int [] states = new int[patternCount];
+			for (int k = 0; k < patternCount; k++) {
+				// states >= stateCount represent gaps and ambiguities
+				states[k] = rand.nextInt(stateCount + 3);
+			}
+			lookup.setNodeStates(i, states);
+			direct.setNodeStates(i, states);
+		}
+		lookup.createNodePartials(3);
+		direct.createNodePartials(3);
+		for (int i = 0; i < NODES; i++) {
+			for (int j = 0; j < CATEGORIES; j++) {
+				double [] matrix = new double[stateCount * stateCount];
+				for (int k = 0; k < matrix.length; k++) {
+					matrix[k] = rand.nextDouble();
+				}
+				lookup.setNodeMatrix(i, j, matrix);
+				direct.setNodeMatrix(i, j, matrix);
+			}
+		}
+
+		lookup.calculatePartials(0, 1, 3);
+		direct.calculatePartials(0, 1, 3);
+		assertSamePartials(lookup, direct, stateCount * patternCount * CATEGORIES);
+
+		lookup.calculatePartials(0, 1, 2, 3);
+		direct.calculatePartials(0, 1, 2, 3);
+		assertSamePartials(lookup, direct, stateCount * patternCount * CATEGORIES);
+	}
+
+	private void assertSamePartials(DuckLikelihoodCore lookup, DuckLikelihoodCore direct, int size) {
+		double [] expected = new double[size];
+		double [] actual = new double[size];
+		direct.getNodePartials(3, expected);
+		lookup.getNodePartials(3, actual);
+		for (int k = 0; k < size; k++) {
+			assertEquals(expected[k], actual[k], 0.0);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package test.beastbooster.likelihood;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckThreadedTreeLikelihood;
+import beastbooster.likelihood.DuckTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks the threaded likelihood still matches the single threaded one after automatic
+ * balancing moved the ranges of sites of threads that start out badly out of balance,
+ * also when a proposal during which the ranges moved is rejected.
+ */
+public class DuckThreadedBalanceTest extends TestCase {
+	final static int PROPOSALS = 1000;
+
+	/** exposes the boundaries of the ranges of sites of the threads **/
+	public static class BalancedLikelihood extends DuckThreadedTreeLikelihood {
+		int [] getPatternPoints() {
+			return patternPoints.clone();
+		}
+	}
+
+	@Test
+	public void testAutoBalance() throws Exception {
+		System.setProperty("java.only", "true");
+		// makes the threaded likelihood store and restore its internal likelihoods itself
+		System.setProperty("beast.is.junit.testing", "true");
+		try {
+			ProgramStatus.m_nThreads = 2;
+			ProgramStatus.g_exec = Executors.newFixedThreadPool(ProgramStatus.m_nThreads);
+			Alignment data = BEASTTestCase.getAlignment();
+			Tree tree = BEASTTestCase.getTree(data);
+			SiteModel siteModel = DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.5");
+			Node node = tree.getNode(tree.getLeafNodeCount());
+			final double height = node.getHeight();
+			final double proposedHeight = (height + node.getParent().getHeight()) / 2;
+
+			final double expected = newLikelihood(data, tree, siteModel).calculateLogP();
+			node.setHeight(proposedHeight);
+			final double expectedProposed = newLikelihood(data, tree, siteModel).calculateLogP();
+			node.setHeight(height);
+			tree.setEverythingDirty(false);
+
+			BalancedLikelihood threaded = new BalancedLikelihood();
+			threaded.initByName("data", data, "tree", tree, "siteModel", siteModel,
+					"threads", 2, "proportions", "1 19", "autoBalance", true);
+			final int [] initialPoints = threaded.getPatternPoints();
+			assertEquals(expected, threaded.calculateLogP(), BEASTTestCase.PRECISION);
+
+			// proposals toggle the height of the node, and every third one is rejected, so ranges
+			// move during evaluations of proposals that are accepted as well as ones that are rejected
+			boolean proposed = false;
+			for (int i = 0; i < PROPOSALS; i++) {
+				threaded.store();
+				proposed = !proposed;
+				node.setHeight(proposed ? proposedHeight : height);
+				threaded.setTarget(tree.getLeafNodeCount() + i % (tree.getLeafNodeCount() - 1));
+				threaded.requiresRecalculation();
+				assertEquals(proposed ? expectedProposed : expected, threaded.calculateLogP(), BEASTTestCase.PRECISION);
+				tree.setEverythingDirty(false);
+
+				if (i % 3 == 0) {
+					proposed = !proposed;
+					node.setHeight(proposed ? proposedHeight : height);
+					threaded.restore();
+					threaded.requiresRecalculation();
+					assertEquals(proposed ? expectedProposed : expected, threaded.calculateLogP(), BEASTTestCase.PRECISION);
+					tree.setEverythingDirty(false);
+				}
+			}
+			assertFalse(Arrays.equals(initialPoints, threaded.getPatternPoints()));
+		} finally {
+			System.clearProperty("beast.is.junit.testing");
+		}
+	}
+
+	private DuckTreeLikelihood newLikelihood(Alignment data, Tree tree, SiteModel siteModel) throws Exception {
+		DuckTreeLikelihood likelihood = new DuckTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+}
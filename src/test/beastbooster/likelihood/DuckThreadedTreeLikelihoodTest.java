@@ -27,9 +27,4 @@ public class DuckThreadedTreeLikelihoodTest extends DuckTreeLikelihoodTest {
     	// ThreadedTreeLikelihood does not handle uncertain characters, so skip this test
     }
     
-    @Override
-    public void testAscertainedJC69Likelihood() throws Exception {
-    	// ThreadedTreeLikelihood does not handle ascertainment correction, so skip this test
-    }
-    
 } // class DuckThreadedTreeLikelihoodTest
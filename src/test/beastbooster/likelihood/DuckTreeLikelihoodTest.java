@@ -42,6 +42,19 @@ public class DuckTreeLikelihoodTest extends TestCase {
         return new DuckTreeLikelihood();
     }
 
+    /** HKY85+G site model with empirical frequencies, kappa = 29.739445 and 4 gamma categories, shared with other likelihood tests **/
+    static SiteModel newHKYGammaSiteModel(Alignment data, String shape) throws Exception {
+        Frequencies freqs = new Frequencies();
+        freqs.initByName("data", data, "estimate", false);
+
+        HKY hky = new HKY();
+        hky.initByName("kappa", "29.739445", "frequencies", freqs);
+
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", shape, "substModel", hky);
+        return siteModel;
+    }
+
     @Test
     public void testJC69Likelihood() throws Exception {
     	for (int i = 6; i < 11; i++) {
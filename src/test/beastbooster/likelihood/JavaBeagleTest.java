@@ -0,0 +1,186 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import beagle.Beagle;
+import beastbooster.likelihood.DuckLikelihoodCore;
+import beastbooster.likelihood.JavaBeagle;
+import junit.framework.TestCase;
+
+/**
+ * Checks the Java implementation of BEAGLE calculates the same likelihood as a Duck likelihood core
+ * for a tree ((0,1)3,2)4, with and without scaling, and calculates transition matrices from an
+ * eigen decomposition.
+ */
+public class JavaBeagleTest extends TestCase {
+	final static int STATES = 4;
+	final static int PATTERNS = 50;
+	final static int CATEGORIES = 3;
+	final static int TIPS = 3;
+	final static int NODES = 5;
+
+	final static int [] OPERATIONS = {
+			3, Beagle.NONE, Beagle.NONE, 0, 0, 1, 1,
+			4, Beagle.NONE, Beagle.NONE, 3, 3, 2, 2};
+
+	private Random rand = new Random(123);
+	private int [][] states = new int[2][PATTERNS];
+	private double [] tipPartials = new double[CATEGORIES * PATTERNS * STATES];
+	private double [][] matrices = new double[NODES][CATEGORIES * STATES * STATES];
+	private double [] weights = {0.2, 0.3, 0.5};
+	private double [] frequencies = {0.1, 0.2, 0.3, 0.4};
+	private double [] patternWeights = new double[PATTERNS];
+
+	public JavaBeagleTest() {
+		for (int i = 0; i < 2; i++) {
+			for (int k = 0; k < PATTERNS; k++) {
+				// states >= STATES represent gaps and ambiguities
+				states[i][k] = rand.nextInt(STATES + 2);
+			}
+		}
+		for (int k = 0; k < PATTERNS * STATES; k++) {
+			tipPartials[k] = rand.nextDouble();
+		}
+		for (int l = 1; l < CATEGORIES; l++) {
+			System.arraycopy(tipPartials, 0, tipPartials, l * PATTERNS * STATES, PATTERNS * STATES);
+		}
+		for (int i = 0; i < NODES; i++) {
+			for (int k = 0; k < matrices[i].length; k++) {
+				matrices[i][k] = rand.nextDouble();
+			}
+		}
+		for (int k = 0; k < PATTERNS; k++) {
+			patternWeights[k] = 1 + rand.nextInt(3);
+		}
+	}
+
+	@Test
+	public void testLikelihood() {
+		Beagle beagle = newBeagle();
+		beagle.updatePartials(OPERATIONS, 2, Beagle.NONE);
+		double [] logL = new double[1];
+		beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{Beagle.NONE}, 1, logL);
+		assertEquals(expectedLogL(), logL[0], 1e-10);
+
+		double [] siteLogL = new double[PATTERNS];
+		beagle.getSiteLogLikelihoods(siteLogL);
+		double sum = 0;
+		for (int k = 0; k < PATTERNS; k++) {
+			sum += siteLogL[k] * patternWeights[k];
+		}
+		assertEquals(logL[0], sum, 1e-10);
+	}
+
+	@Test
+	public void testScaling() {
+		final double expected = expectedLogL();
+		int [] operations = OPERATIONS.clone();
+		operations[1] = 0;
+		operations[Beagle.OPERATION_TUPLE_SIZE + 1] = 1;
+		double [] logL = new double[1];
+
+		// scale factors accumulated while updating partials
+		Beagle beagle = newBeagle();
+		beagle.resetScaleFactors(2);
+		beagle.updatePartials(operations, 2, 2);
+		beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{2}, 1, logL);
+		assertEquals(expected, logL[0], 1e-10);
+
+		// scale factors accumulated afterwards
+		beagle.resetScaleFactors(2);
+		beagle.updatePartials(operations, 2, Beagle.NONE);
+		beagle.accumulateScaleFactors(new int[]{0, 1}, 2, 2);
+		beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{2}, 1, logL);
+		assertEquals(expected, logL[0], 1e-10);
+
+		// existing scale factors applied
+		operations[1] = Beagle.NONE;
+		operations[2] = 0;
+		operations[Beagle.OPERATION_TUPLE_SIZE + 1] = Beagle.NONE;
+		operations[Beagle.OPERATION_TUPLE_SIZE + 2] = 1;
+		beagle.updatePartials(operations, 2, Beagle.NONE);
+		beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{2}, 1, logL);
+		assertEquals(expected, logL[0], 1e-10);
+	}
+
+	@Test
+	public void testTransitionMatrices() {
+		// Jukes Cantor: eigen vectors are orthonormal, so the inverse is the transpose
+		double [][] v = {
+				{0.5, 0.5, 0.5, 0.5},
+				{1 / Math.sqrt(2), -1 / Math.sqrt(2), 0, 0},
+				{1 / Math.sqrt(6), 1 / Math.sqrt(6), -2 / Math.sqrt(6), 0},
+				{1 / Math.sqrt(12), 1 / Math.sqrt(12), 1 / Math.sqrt(12), -3 / Math.sqrt(12)}};
+		double [] vectors = new double[STATES * STATES];
+		double [] inverse = new double[STATES * STATES];
+		for (int i = 0; i < STATES; i++) {
+			for (int k = 0; k < STATES; k++) {
+				vectors[i * STATES + k] = v[k][i];
+				inverse[k * STATES + i] = v[k][i];
+			}
+		}
+		double [] values = {0, -4.0 / 3, -4.0 / 3, -4.0 / 3};
+		double [] rates = {0.5, 1.0, 2.0};
+
+		Beagle beagle = JavaBeagle.loadBeagleInstance(TIPS, NODES, TIPS, STATES, PATTERNS, 1, NODES, CATEGORIES, 3, 0);
+		beagle.setEigenDecomposition(0, vectors, inverse, values);
+		beagle.setCategoryRates(rates);
+		beagle.updateTransitionMatrices(0, new int[]{1, 3}, null, null, new double[]{0.1, 0.7}, 2);
+
+		double [] matrix = new double[CATEGORIES * STATES * STATES];
+		beagle.getTransitionMatrix(3, matrix);
+		for (int l = 0; l < CATEGORIES; l++) {
+			final double e = Math.exp(-4.0 / 3 * 0.7 * rates[l]);
+			for (int i = 0; i < STATES; i++) {
+				for (int j = 0; j < STATES; j++) {
+					final double expected = i == j ? 0.25 + 0.75 * e : 0.25 - 0.25 * e;
+					assertEquals(expected, matrix[(l * STATES + i) * STATES + j], 1e-12);
+				}
+			}
+		}
+	}
+
+	private Beagle newBeagle() {
+		Beagle beagle = JavaBeagle.loadBeagleInstance(TIPS, NODES, TIPS, STATES, PATTERNS, 1, NODES, CATEGORIES, 3, 0);
+		beagle.setTipStates(0, states[0]);
+		beagle.setTipStates(1, states[1]);
+		beagle.setPartials(2, tipPartials);
+		for (int i = 0; i < NODES; i++) {
+			beagle.setTransitionMatrix(i, matrices[i], 1.0);
+		}
+		beagle.setCategoryWeights(0, weights);
+		beagle.setStateFrequencies(0, frequencies);
+		beagle.setPatternWeights(patternWeights);
+		return beagle;
+	}
+
+	private double expectedLogL() {
+		DuckLikelihoodCore core = new DuckLikelihoodCore(STATES);
+		core.initialize(NODES, PATTERNS, CATEGORIES, true, false);
+		core.setNodeStates(0, states[0]);
+		core.setNodeStates(1, states[1]);
+		core.setNodePartials(2, tipPartials);
+		core.createNodePartials(3);
+		core.createNodePartials(4);
+		for (int i = 0; i < NODES; i++) {
+			for (int l = 0; l < CATEGORIES; l++) {
+				double [] matrix = new double[STATES * STATES];
+				System.arraycopy(matrices[i], l * STATES * STATES, matrix, 0, STATES * STATES);
+				core.setNodeMatrix(i, l, matrix);
+			}
+		}
+		core.calculatePartials(0, 1, 3);
+		core.calculatePartials(3, 2, 4);
+		double [] rootPartials = new double[PATTERNS * STATES];
+		core.integratePartials(4, weights, rootPartials);
+		double [] logLs = new double[PATTERNS];
+		core.calculateLogLikelihoods(rootPartials, frequencies, logLs);
+		double logL = 0;
+		for (int k = 0; k < PATTERNS; k++) {
+			logL += logLs[k] * patternWeights[k];
+		}
+		return logL;
+	}
+}
@@ -0,0 +1,58 @@
+package test.beastbooster.likelihood;
+
+import java.util.Random;
+
+import beastbooster.likelihood.DuckLikelihoodCore;
+import junit.framework.Assert;
+
+/**
+ * Random set up shared by the tests comparing a likelihood core against a reference core.
+ * Nodes 0-2 have states, 3-5 have partials, and node 6 is used for the result.
+ */
+public class LikelihoodCoreTestHelper {
+	final static int NODES = 7;
+	final static int RESULT_NODE = 6;
+
+	/** initialises core with random states, partials and matrices drawn from rand **/
+	static DuckLikelihoodCore newCore(DuckLikelihoodCore core, int stateCount, int patterns, int categories, Random rand) {
+		core.initialize(NODES, patterns, categories, true, false);
+		for (int i = 0; i < 3; i++) {
+			int [] states = new int[patterns];
+			for (int k = 0; k < patterns; k++) {
+				// state stateCount represents a gap
+				states[k] = rand.nextInt(stateCount + 1);
+			}
+			core.setNodeStates(i, states);
+		}
+		for (int i = 3; i < NODES; i++) {
+			core.createNodePartials(i);
+			double [] partials = new double[patterns * stateCount * categories];
+			for (int k = 0; k < partials.length; k++) {
+				partials[k] = rand.nextDouble();
+			}
+			core.setNodePartials(i, partials);
+		}
+		for (int i = 0; i < NODES; i++) {
+			for (int j = 0; j < categories; j++) {
+				double [] matrix = new double[stateCount * stateCount];
+				for (int k = 0; k < matrix.length; k++) {
+					matrix[k] = rand.nextDouble();
+				}
+				core.setNodeMatrix(i, j, matrix);
+			}
+		}
+		return core;
+	}
+
+	/** compares partials of the result node, relative tolerance 0 means identical **/
+	static void assertSamePartials(DuckLikelihoodCore core, DuckLikelihoodCore other, int stateCount, int patterns, int categories,
+			double tolerance) {
+		double [] expected = new double[patterns * stateCount * categories];
+		double [] actual = new double[patterns * stateCount * categories];
+		core.getNodePartials(RESULT_NODE, expected);
+		other.getNodePartials(RESULT_NODE, actual);
+		for (int k = 0; k < expected.length; k++) {
+			Assert.assertEquals(expected[k], actual[k], Math.abs(expected[k]) * tolerance);
+		}
+	}
+}
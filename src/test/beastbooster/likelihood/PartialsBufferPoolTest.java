@@ -0,0 +1,124 @@
+package test.beastbooster.likelihood;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.PartialsBufferPool;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the partials buffer pool keeps buffers of other orientations for reuse, never hands out
+ * buffers of the stored state for writing, and restores the mapping of nodes to buffers.
+ */
+public class PartialsBufferPoolTest extends TestCase {
+	final static int TIPS = 4;
+	final static int NODES = 7;
+	final static int CAPACITY = 2;
+
+	@Test
+	public void testReuseOtherOrientation() {
+		PartialsBufferPool pool = new PartialsBufferPool(TIPS, NODES, CAPACITY);
+		assertEquals(TIPS + 2 * (NODES - TIPS + CAPACITY), pool.getBufferCount());
+		assertEquals(2, pool.getIndex(2));
+		assertEquals(5, pool.getIndex(5));
+
+		// the initial buffers are stored, so are not overwritten
+		final int down = pool.prepareWrite(5, PartialsBufferPool.DOWN);
+		assertTrue(down != 5);
+		assertEquals(down, pool.prepareWrite(5, PartialsBufferPool.DOWN));
+
+		final int up = pool.prepareWrite(5, PartialsBufferPool.UP_LEFT);
+		assertTrue(up != down);
+		assertEquals(1, pool.getCachedCount());
+		assertEquals(PartialsBufferPool.UP_LEFT, pool.getOrientation(5));
+
+		assertTrue(pool.reuse(5, PartialsBufferPool.UP_LEFT));
+		assertFalse(pool.reuse(5, PartialsBufferPool.UP_RIGHT));
+		assertTrue(pool.reuse(5, PartialsBufferPool.DOWN));
+		assertEquals(down, pool.getIndex(5));
+		assertEquals(PartialsBufferPool.DOWN, pool.getOrientation(5));
+		assertTrue(pool.reuse(5, PartialsBufferPool.UP_LEFT));
+		assertEquals(up, pool.getIndex(5));
+		assertEquals(1, pool.getCachedCount());
+	}
+
+	@Test
+	public void testPseudoRootIsNotCached() {
+		PartialsBufferPool pool = new PartialsBufferPool(TIPS, NODES, CAPACITY);
+		pool.prepareWrite(6, PartialsBufferPool.PSEUDO_ROOT);
+		assertEquals(1, pool.getCachedCount());
+		assertTrue(pool.reuse(6, PartialsBufferPool.DOWN));
+		assertEquals(0, pool.getCachedCount());
+		assertFalse(pool.reuse(6, PartialsBufferPool.PSEUDO_ROOT));
+	}
+
+	@Test
+	public void testCapacity() {
+		PartialsBufferPool pool = new PartialsBufferPool(TIPS, NODES, CAPACITY);
+		for (int node = TIPS; node < NODES; node++) {
+			pool.prepareWrite(node, PartialsBufferPool.UP_RIGHT);
+		}
+		assertEquals(CAPACITY, pool.getCachedCount());
+		assertTrue(pool.reuse(4, PartialsBufferPool.DOWN));
+		assertFalse(pool.reuse(6, PartialsBufferPool.DOWN));
+	}
+
+	@Test
+	public void testStoreRestore() {
+		PartialsBufferPool pool = new PartialsBufferPool(TIPS, NODES, CAPACITY);
+		final int down = pool.prepareWrite(4, PartialsBufferPool.DOWN);
+		pool.store();
+
+		final int up = pool.prepareWrite(4, PartialsBufferPool.UP_LEFT);
+		assertTrue(up != down);
+		final int other = pool.prepareWrite(5, PartialsBufferPool.DOWN);
+		assertTrue(other != 5);
+		pool.restore();
+		assertEquals(down, pool.getIndex(4));
+		assertEquals(5, pool.getIndex(5));
+		assertEquals(PartialsBufferPool.DOWN, pool.getOrientation(4));
+		assertEquals(0, pool.getCachedCount());
+		assertFalse(pool.reuse(4, PartialsBufferPool.UP_LEFT));
+	}
+
+	@Test
+	public void testStoredBuffersAreNotHandedOut() {
+		PartialsBufferPool pool = new PartialsBufferPool(TIPS, NODES, CAPACITY);
+		Random rand = new Random(127);
+		for (int i = 0; i < 10000; i++) {
+			final int node = TIPS + rand.nextInt(NODES - TIPS);
+			final int orientation = rand.nextInt(4);
+			switch (rand.nextInt(5)) {
+			case 0:
+				pool.store();
+				break;
+			case 1:
+				pool.restore();
+				break;
+			case 2:
+				pool.reuse(node, orientation);
+				break;
+			default:
+				pool.store();
+				Set<Integer> stored = currentBuffers(pool);
+				final int buffer = pool.prepareWrite(node, orientation);
+				assertFalse(stored.contains(buffer));
+			}
+			assertTrue(pool.getCachedCount() <= CAPACITY);
+			assertEquals(NODES - TIPS, currentBuffers(pool).size());
+		}
+	}
+
+	private Set<Integer> currentBuffers(PartialsBufferPool pool) {
+		Set<Integer> buffers = new HashSet<>();
+		for (int node = TIPS; node < NODES; node++) {
+			final int buffer = pool.getIndex(node);
+			assertTrue(buffer >= TIPS && buffer < pool.getBufferCount());
+			buffers.add(buffer);
+		}
+		return buffers;
+	}
+}
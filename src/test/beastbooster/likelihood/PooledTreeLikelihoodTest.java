@@ -0,0 +1,89 @@
+package test.beastbooster.likelihood;
+
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.FilteredAlignment;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Tree;
+import beastbooster.likelihood.DuckThreadedTreeLikelihood;
+import beastbooster.likelihood.DuckTreeLikelihood;
+import beastbooster.likelihood.PatternPool;
+import beastbooster.likelihood.PooledTreeLikelihood;
+import junit.framework.TestCase;
+import test.beast.BEASTTestCase;
+
+/**
+ * Checks partition log likelihoods calculated on a pattern pool, by a single and by a threaded
+ * likelihood, match those of tree likelihoods calculated for every partition separately.
+ */
+public class PooledTreeLikelihoodTest extends TestCase {
+
+	@Test
+	public void testPooledLikelihood() throws Exception {
+		System.setProperty("java.only", "true");
+		testPooledLikelihood(new DuckTreeLikelihood());
+	}
+
+	/** patterns of the pool occur in several ranges of sites of the threads, so should be mapped back to the pool **/
+	@Test
+	public void testThreadedPooledLikelihood() throws Exception {
+		System.setProperty("java.only", "true");
+		ProgramStatus.m_nThreads = 2;
+		ProgramStatus.g_exec = Executors.newFixedThreadPool(ProgramStatus.m_nThreads);
+		DuckThreadedTreeLikelihood threaded = new DuckThreadedTreeLikelihood();
+		threaded.setInputValue("threads", 2);
+		testPooledLikelihood(threaded);
+
+		DuckThreadedTreeLikelihood forkJoin = new DuckThreadedTreeLikelihood();
+		forkJoin.setInputValue("threads", 2);
+		forkJoin.setInputValue("forkJoin", true);
+		forkJoin.setInputValue("chunksPerThread", 5);
+		testPooledLikelihood(forkJoin);
+	}
+
+	private void testPooledLikelihood(GenericTreeLikelihood likelihood) throws Exception {
+		Alignment data = BEASTTestCase.getAlignment();
+		Tree tree = BEASTTestCase.getTree(data);
+		SiteModel siteModel = DuckTreeLikelihoodTest.newHKYGammaSiteModel(data, "0.5");
+
+		String [] filters = {"1-300", "301-768", "1-768:3", "100-500"};
+		Alignment [] partitions = new Alignment[filters.length];
+		PatternPool pool = new PatternPool();
+		double expectedLogP = 0;
+		double [] expectedPartitionLogP = new double[filters.length];
+		for (int i = 0; i < filters.length; i++) {
+			FilteredAlignment partition = new FilteredAlignment();
+			partition.initByName("data", data, "filter", filters[i]);
+			partition.setID("partition" + i);
+			partitions[i] = partition;
+			pool.setInputValue("partition", partition);
+
+			DuckTreeLikelihood partitionLikelihood = new DuckTreeLikelihood();
+			partitionLikelihood.initByName("data", partition, "tree", tree, "siteModel", siteModel);
+			expectedPartitionLogP[i] = partitionLikelihood.calculateLogP();
+			expectedLogP += expectedPartitionLogP[i];
+		}
+		pool.initAndValidate();
+
+		int patternCount = 0;
+		for (Alignment partition : partitions) {
+			patternCount += partition.getPatternCount();
+		}
+		assertTrue(pool.getPatternCount() < patternCount);
+		assertEquals(patternCount, pool.getUnpooledPatternCount());
+
+		likelihood.initByName("data", pool, "tree", tree, "siteModel", siteModel);
+		PooledTreeLikelihood pooled = new PooledTreeLikelihood();
+		pooled.initByName("likelihood", likelihood);
+
+		assertEquals(expectedLogP, pooled.calculateLogP(), BEASTTestCase.PRECISION);
+		for (int i = 0; i < filters.length; i++) {
+			assertEquals(expectedPartitionLogP[i], pooled.getPartitionLogP(i), BEASTTestCase.PRECISION);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package test.beastbooster.likelihood;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.RescalingScheduler;
+import junit.framework.TestCase;
+
+/**
+ * Checks which nodes the rescaling scheduler gives new scale factors, how its refresh interval
+ * follows underflows, and that the nodes with scale factors are stored and restored.
+ */
+public class RescalingSchedulerTest extends TestCase {
+	final static int NODES = 5;
+	final static int MAX_INTERVAL = 8;
+
+	@Test
+	public void testUnscaledNodesAreRescaled() {
+		RescalingScheduler scheduler = new RescalingScheduler(NODES, MAX_INTERVAL);
+		// first evaluation is a refresh, the interval grows to 2
+		scheduler.startEvaluation();
+		assertFalse(scheduler.hasScaled());
+		assertTrue(scheduler.rescale(0, false));
+		assertTrue(scheduler.isScaled(0));
+		assertFalse(scheduler.isScaled(1));
+
+		// no refresh: scaled nodes reuse their scale factors, unscaled nodes get new ones
+		scheduler.startEvaluation();
+		assertFalse(scheduler.rescale(0, false));
+		assertFalse(scheduler.hasRescaled());
+		assertTrue(scheduler.rescale(1, false));
+		assertTrue(scheduler.hasRescaled());
+		assertTrue(scheduler.rescale(0, true));
+	}
+
+	@Test
+	public void testInterval() {
+		RescalingScheduler scheduler = new RescalingScheduler(NODES, MAX_INTERVAL);
+		for (int i = 0; i < 100; i++) {
+			scheduler.startEvaluation();
+		}
+		assertEquals(MAX_INTERVAL, scheduler.getInterval());
+
+		scheduler.startEvaluation();
+		scheduler.rescale(2, false);
+		scheduler.underflowed();
+		assertEquals(MAX_INTERVAL / 2, scheduler.getInterval());
+		assertEquals(1, scheduler.getUnderflowCount(2));
+		assertEquals(0, scheduler.getUnderflowCount(3));
+		scheduler.underflowed();
+		assertEquals(MAX_INTERVAL / 4, scheduler.getInterval());
+
+		// a node that underflowed gets new scale factors until its underflow count decays
+		scheduler.rescale(3, false);
+		do {
+			scheduler.startEvaluation();
+		} while (scheduler.isRefresh());
+		assertTrue(scheduler.rescale(2, false));
+		assertFalse(scheduler.rescale(3, false));
+
+		// refreshes without underflow double the interval again
+		for (int i = 0; i < 100; i++) {
+			scheduler.startEvaluation();
+		}
+		assertEquals(MAX_INTERVAL, scheduler.getInterval());
+		assertEquals(0, scheduler.getUnderflowCount(2));
+	}
+
+	@Test
+	public void testRefresh() {
+		RescalingScheduler scheduler = new RescalingScheduler(NODES, 2);
+		scheduler.startEvaluation();
+		scheduler.rescale(4, false);
+		int rescaled = 0;
+		for (int i = 0; i < 10; i++) {
+			scheduler.startEvaluation();
+			if (scheduler.rescale(4, false)) {
+				rescaled++;
+			}
+		}
+		// every other evaluation is a refresh
+		assertEquals(5, rescaled);
+	}
+
+	@Test
+	public void testRetry() {
+		RescalingScheduler scheduler = new RescalingScheduler(NODES, MAX_INTERVAL);
+		scheduler.startEvaluation();
+		assertFalse(scheduler.isRescaled(1));
+		scheduler.rescale(1, false);
+		assertTrue(scheduler.isRescaled(1));
+		assertTrue(scheduler.flipCumulative());
+		// the retry writes to the same buffers
+		assertTrue(scheduler.rescale(1, true));
+		assertFalse(scheduler.flipCumulative());
+
+		scheduler.startEvaluation();
+		assertFalse(scheduler.isRescaled(1));
+		assertTrue(scheduler.flipCumulative());
+	}
+
+	@Test
+	public void testStoreRestore() {
+		RescalingScheduler scheduler = new RescalingScheduler(NODES, MAX_INTERVAL);
+		scheduler.startEvaluation();
+		scheduler.rescale(0, false);
+		scheduler.store();
+
+		scheduler.startEvaluation();
+		scheduler.rescale(1, false);
+		assertTrue(scheduler.isScaled(1));
+		scheduler.restore();
+		assertTrue(scheduler.isScaled(0));
+		assertFalse(scheduler.isScaled(1));
+
+		scheduler.store();
+		scheduler.restore();
+		assertTrue(scheduler.isScaled(0));
+		assertFalse(scheduler.isScaled(1));
+	}
+}
@@ -0,0 +1,61 @@
+package test.beastbooster.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import beastbooster.likelihood.ThreadedEvaluator;
+
+/**
+ * Measures the time to hand over an evaluation to threads and wait for them to finish, for tasks
+ * that do (almost) no work, with ExecutorService.invokeAll() as used by DuckThreadedTreeLikelihood
+ * by default and with ThreadedEvaluator as used with dedicatedThreads="true".
+ *
+ * Usage: ThreadedEvaluatorBenchmark [threads] [evaluations]
+ */
+public class ThreadedEvaluatorBenchmark {
+	private static volatile double sink;
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int evaluations = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		final double [] results = new double[threads];
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Callable<Double>> callers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			callers.add(() -> results[index] += 1.0);
+		}
+		ThreadedEvaluator evaluator = new ThreadedEvaluator(threads);
+		Runnable [] tasks = new Runnable[threads];
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			tasks[i] = () -> results[index] += 1.0;
+		}
+
+		// warm up both, then measure
+		for (int repeat = 0; repeat < 2; repeat++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < evaluations; i++) {
+				pool.invokeAll(callers);
+			}
+			final double executorTime = (System.nanoTime() - start) / 1000.0 / evaluations;
+
+			start = System.nanoTime();
+			for (int i = 0; i < evaluations; i++) {
+				evaluator.run(tasks);
+			}
+			final double evaluatorTime = (System.nanoTime() - start) / 1000.0 / evaluations;
+			if (repeat > 0) {
+				System.out.println(String.format("%d threads: invokeAll %.2f us, ThreadedEvaluator %.2f us per evaluation",
+						threads, executorTime, evaluatorTime));
+			}
+		}
+		sink = results[0];
+		pool.shutdown();
+		evaluator.shutdown();
+	}
+}
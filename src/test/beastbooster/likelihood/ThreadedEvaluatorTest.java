@@ -0,0 +1,71 @@
+package test.beastbooster.likelihood;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.ThreadedEvaluator;
+import junit.framework.TestCase;
+
+/**
+ * Checks that every round of the threaded evaluator runs every task exactly once, that
+ * results of tasks are visible to the caller, also after workers parked, and that
+ * failures of tasks are passed on to the caller.
+ */
+public class ThreadedEvaluatorTest extends TestCase {
+	final static int THREADS = 4;
+	final static int ROUNDS = 10000;
+
+	@Test
+	public void testRounds() throws Exception {
+		// short spin count, so that workers park as well
+		ThreadedEvaluator evaluator = new ThreadedEvaluator(THREADS, 10);
+		final long [] counts = new long[THREADS];
+		final long [] inputs = new long[THREADS];
+		Runnable [] tasks = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			tasks[i] = () -> counts[index] += inputs[index];
+		}
+		for (int round = 1; round <= ROUNDS; round++) {
+			for (int i = 0; i < THREADS; i++) {
+				inputs[i] = round;
+			}
+			evaluator.run(tasks);
+			for (int i = 0; i < THREADS; i++) {
+				assertEquals((long) round * (round + 1) / 2, counts[i]);
+			}
+			if (round % 1000 == 0) {
+				// let workers park
+				Thread.sleep(5);
+			}
+		}
+		evaluator.shutdown();
+	}
+
+	@Test
+	public void testFailure() {
+		ThreadedEvaluator evaluator = new ThreadedEvaluator(THREADS);
+		final int [] counts = new int[THREADS];
+		Runnable [] tasks = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int index = i;
+			tasks[i] = () -> {
+				counts[index]++;
+				if (index == THREADS - 1 && counts[index] == 1) {
+					throw new IllegalStateException("first round fails");
+				}
+			};
+		}
+		try {
+			evaluator.run(tasks);
+			fail("expected failure of task to be passed on");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		// other tasks completed, and the evaluator can still be used
+		evaluator.run(tasks);
+		for (int i = 0; i < THREADS; i++) {
+			assertEquals(2, counts[i]);
+		}
+		evaluator.shutdown();
+	}
+}
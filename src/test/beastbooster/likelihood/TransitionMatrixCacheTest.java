@@ -0,0 +1,66 @@
+package test.beastbooster.likelihood;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import beastbooster.likelihood.TransitionMatrixCache;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the transition matrix cache returns matrices only for the exact key they were
+ * added with, and evicts the least recently used matrix when full.
+ */
+public class TransitionMatrixCacheTest extends TestCase {
+	final static int CAPACITY = 3;
+	final static int MATRIX_SIZE = 16;
+
+	@Test
+	public void testLookup() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(CAPACITY, MATRIX_SIZE);
+		double [] matrix = matrix(1.0);
+		cache.put(1, 0.5, 0.1, matrix);
+		// the cache keeps a copy
+		matrix[0] = -1;
+		assertEquals(1.0, cache.get(1, 0.5, 0.1)[0]);
+		assertNull(cache.get(2, 0.5, 0.1));
+		assertNull(cache.get(1, 0.6, 0.1));
+		assertNull(cache.get(1, 0.5, 0.1 + 1e-15));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+	}
+
+	@Test
+	public void testEviction() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(CAPACITY, MATRIX_SIZE);
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(1, 1.0, i, matrix(i));
+		}
+		// use the oldest, so the second becomes least recently used
+		assertNotNull(cache.get(1, 1.0, 0));
+		cache.put(1, 1.0, 10, matrix(10));
+		assertNull(cache.get(1, 1.0, 1));
+		assertEquals(0.0, cache.get(1, 1.0, 0)[0]);
+		assertEquals(2.0, cache.get(1, 1.0, 2)[0]);
+		assertEquals(10.0, cache.get(1, 1.0, 10)[0]);
+
+		// many more entries than buckets and capacity
+		for (int i = 0; i < 100 * CAPACITY; i++) {
+			cache.put(2, 1.0, i, matrix(i));
+			assertEquals((double) i, cache.get(2, 1.0, i)[0]);
+		}
+		for (int i = 0; i < 100 * CAPACITY; i++) {
+			if (i < 99 * CAPACITY) {
+				assertNull(cache.get(2, 1.0, i));
+			} else {
+				assertEquals((double) i, cache.get(2, 1.0, i)[MATRIX_SIZE - 1]);
+			}
+		}
+	}
+
+	private double [] matrix(double value) {
+		double [] matrix = new double[MATRIX_SIZE];
+		Arrays.fill(matrix, value);
+		return matrix;
+	}
+}